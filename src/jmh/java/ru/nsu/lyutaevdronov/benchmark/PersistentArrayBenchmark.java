@@ -0,0 +1,165 @@
+package ru.nsu.lyutaevdronov.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.nsu.lyutaevdronov.array.PersistentArray;
+import ru.nsu.lyutaevdronov.common.RetentionPolicy;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарки операций персистентного массива и ArrayList как базовой линии.
+ * <p>
+ * Массив строится одной версией, изменяющие бенчмарки хранят последние {@link #HISTORY} версий,
+ * чтобы история не росла за время измерения. Бенчмарки, меняющие размер, возвращают его обратно
+ * в той же операции: добавление парой с удалением, вставка в середину парой с удалением.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class PersistentArrayBenchmark {
+    private static final int HISTORY = 128;
+    private static final int UNDO_DEPTH = 64;
+    private static final int INDICES = 1 << 10;
+
+    @Param({"10", "1000", "100000", "10000000"})
+    private int size;
+
+    @Param({"3", "5", "7"})
+    private int bitPerEdge;
+
+    private PersistentArray<Integer> array;
+    private ArrayList<Integer> list;
+    /**
+     * Случайные индексы, чтобы обращения не попадали в один лист
+     */
+    private int[] indices;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        array = new PersistentArray<Integer>((int) Math.ceil(31.0 / bitPerEdge), bitPerEdge)
+                .withMutations(transientArray -> {
+                    for (int i = 0; i < size; i++) {
+                        transientArray.add(i);
+                    }
+                });
+        array.setRetentionPolicy(RetentionPolicy.keepLast(HISTORY));
+        for (int i = 0; i < UNDO_DEPTH; i++) {
+            array.set(i % size, -i);
+        }
+
+        list = new ArrayList<>(array);
+
+        Random random = new Random(42);
+        indices = new int[INDICES];
+        for (int i = 0; i < INDICES; i++) {
+            indices[i] = random.nextInt(size);
+        }
+    }
+
+    @Benchmark
+    public Integer get() {
+        return array.get(nextIndex());
+    }
+
+    @Benchmark
+    public Integer listGet() {
+        return list.get(nextIndex());
+    }
+
+    @Benchmark
+    public Integer set() {
+        int index = nextIndex();
+        return array.set(index, index);
+    }
+
+    @Benchmark
+    public Integer listSet() {
+        int index = nextIndex();
+        return list.set(index, index);
+    }
+
+    @Benchmark
+    public Integer addAndPop() {
+        array.add(size);
+        return array.pop();
+    }
+
+    @Benchmark
+    public Integer listAddAndRemoveLast() {
+        list.add(size);
+        return list.remove(list.size() - 1);
+    }
+
+    @Benchmark
+    public Integer insertAndRemoveMiddle() {
+        array.add(size / 2, size);
+        return array.remove(size / 2);
+    }
+
+    @Benchmark
+    public Integer listInsertAndRemoveMiddle() {
+        list.add(size / 2, size);
+        return list.remove(size / 2);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        for (Integer element : array) {
+            blackhole.consume(element);
+        }
+    }
+
+    @Benchmark
+    public void listIterate(Blackhole blackhole) {
+        for (Integer element : list) {
+            blackhole.consume(element);
+        }
+    }
+
+    @Benchmark
+    public PersistentArray<Integer> conj() {
+        return array.conj(size);
+    }
+
+    @Benchmark
+    public PersistentArray<Integer> assoc() {
+        int index = nextIndex();
+        return array.assoc(index, -index);
+    }
+
+    /**
+     * Цепочка из UNDO_DEPTH отмен и стольких же повторов
+     */
+    @Benchmark
+    public int undoRedo() {
+        for (int i = 0; i < UNDO_DEPTH; i++) {
+            array.undo();
+        }
+        for (int i = 0; i < UNDO_DEPTH; i++) {
+            array.redo();
+        }
+        return array.size();
+    }
+
+    private int nextIndex() {
+        return indices[next++ & (INDICES - 1)];
+    }
+}
@@ -0,0 +1,146 @@
+package ru.nsu.lyutaevdronov.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.nsu.lyutaevdronov.common.RetentionPolicy;
+import ru.nsu.lyutaevdronov.map.PersistentAssociativeArray;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарки операций персистентного ассоциативного массива и HashMap как базовой линии.
+ * <p>
+ * Таблица ассоциативного массива имеет фиксированные 16 корзин и поиск внутри корзины линейный,
+ * поэтому размеры ограничены 10^5. Изменяющие бенчмарки хранят последние {@link #HISTORY} версий.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class PersistentAssociativeArrayBenchmark {
+    private static final int HISTORY = 128;
+    private static final int UNDO_DEPTH = 64;
+    private static final int KEYS = 1 << 10;
+
+    @Param({"10", "1000", "100000"})
+    private int size;
+
+    private PersistentAssociativeArray<Integer, Integer> map;
+    private HashMap<Integer, Integer> hashMap;
+    /**
+     * Случайные существующие ключи
+     */
+    private Integer[] keys;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = new PersistentAssociativeArray<>();
+        map.setRetentionPolicy(RetentionPolicy.keepLast(HISTORY));
+        for (int i = 0; i < size; i++) {
+            map.put(i, i);
+        }
+        for (int i = 0; i < UNDO_DEPTH; i++) {
+            map.put(i % size, -i);
+        }
+
+        hashMap = new HashMap<>(map);
+
+        Random random = new Random(42);
+        keys = new Integer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = random.nextInt(size);
+        }
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(nextKey());
+    }
+
+    @Benchmark
+    public Integer hashMapGet() {
+        return hashMap.get(nextKey());
+    }
+
+    @Benchmark
+    public Integer put() {
+        Integer key = nextKey();
+        return map.put(key, key);
+    }
+
+    @Benchmark
+    public Integer hashMapPut() {
+        Integer key = nextKey();
+        return hashMap.put(key, key);
+    }
+
+    @Benchmark
+    public Integer removeAndPut() {
+        Integer key = nextKey();
+        Integer value = map.remove(key);
+        map.put(key, value);
+        return value;
+    }
+
+    @Benchmark
+    public Integer hashMapRemoveAndPut() {
+        Integer key = nextKey();
+        Integer value = hashMap.remove(key);
+        hashMap.put(key, value);
+        return value;
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            blackhole.consume(entry);
+        }
+    }
+
+    @Benchmark
+    public void hashMapIterate(Blackhole blackhole) {
+        for (Map.Entry<Integer, Integer> entry : hashMap.entrySet()) {
+            blackhole.consume(entry);
+        }
+    }
+
+    @Benchmark
+    public PersistentAssociativeArray<Integer, Integer> conj() {
+        Integer key = nextKey();
+        return map.conj(key, -key);
+    }
+
+    /**
+     * Цепочка из UNDO_DEPTH отмен и стольких же повторов
+     */
+    @Benchmark
+    public int undoRedo() {
+        for (int i = 0; i < UNDO_DEPTH; i++) {
+            map.undo();
+        }
+        for (int i = 0; i < UNDO_DEPTH; i++) {
+            map.redo();
+        }
+        return map.size();
+    }
+
+    private Integer nextKey() {
+        return keys[next++ & (KEYS - 1)];
+    }
+}
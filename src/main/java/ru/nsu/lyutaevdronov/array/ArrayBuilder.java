@@ -0,0 +1,93 @@
+package ru.nsu.lyutaevdronov.array;
+
+import java.util.*;
+
+/**
+ * Построитель версии персистентного массива из последовательности элементов.
+ * <p>
+ * Элементы складываются в листы по width штук, дерево собирается один раз при вызове {@link #build()}
+ * снизу вверх, без копирования путей на каждое добавление. Куски ровно из width элементов, начинающиеся
+ * на границе листа, становятся листами без копирования.
+ * </p>
+ *
+ * @param <E> тип элементов
+ */
+final class ArrayBuilder<E> {
+    private final ArrayTree<E> tree;
+    private final int width;
+    private final List<Object[]> leaves = new ArrayList<>();
+    /**
+     * Заполняемый лист, заполнены первые length элементов
+     */
+    private Object[] current;
+    private int length;
+
+    ArrayBuilder(ArrayTree<E> tree) {
+        this.tree = tree;
+        this.width = tree.width();
+    }
+
+    ArrayBuilder<E> add(Object element) {
+        if (current == null) {
+            current = new Object[width];
+        }
+        current[length++] = element;
+        if (length == width) {
+            leaves.add(current);
+            current = null;
+            length = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Добавляет элементы values[from, to). Массив не должен изменяться после вызова:
+     * он может стать листом дерева.
+     */
+    ArrayBuilder<E> addChunk(Object[] values, int from, int to) {
+        while (from < to) {
+            if (length == 0 && to - from >= width) {
+                leaves.add(from == 0 && values.length == width ? values : Arrays.copyOfRange(values, from, from + width));
+                from += width;
+                continue;
+            }
+
+            if (current == null) {
+                current = new Object[width];
+            }
+            int count = Math.min(width - length, to - from);
+            System.arraycopy(values, from, current, length, count);
+            length += count;
+            from += count;
+            if (length == width) {
+                leaves.add(current);
+                current = null;
+                length = 0;
+            }
+        }
+        return this;
+    }
+
+    ArrayBuilder<E> addChunks(List<Object[]> chunks) {
+        for (Object[] chunk : chunks) {
+            addChunk(chunk, 0, chunk.length);
+        }
+        return this;
+    }
+
+    /**
+     * Возвращает версию, содержащую все добавленные элементы.
+     */
+    HeadArray<E> build() {
+        Object[] tail;
+        if (length > 0) {
+            tail = Arrays.copyOf(current, length);
+        } else if (!leaves.isEmpty()) {
+            // Хвост не может быть пустым в непустом массиве: последний лист становится хвостом
+            tail = leaves.remove(leaves.size() - 1);
+        } else {
+            return tree.empty();
+        }
+        return tree.fromLeaves(leaves, tail);
+    }
+}
@@ -0,0 +1,179 @@
+package ru.nsu.lyutaevdronov.array;
+
+import java.util.*;
+
+/**
+ * Поиск диапазонов индексов, элементы в которых различаются в двух версиях массива.
+ * <p>
+ * Версии обходятся одновременно как списки поддеревьев с диапазонами индексов. Поддеревья
+ * с одинаковым диапазоном, общие для обеих версий, пропускаются без спуска, различные -
+ * раскрываются в списки потомков. Поэтому изменение одного элемента стоит O(width * log n).
+ * Там, где границы поддеревьев не совпадают, например после вставки в середину одной из версий,
+ * элементы сравниваются по одному до ближайшей общей границы. Листья и хвосты сравниваются
+ * по массивам значений, поэтому хвост, перенесенный в дерево целым листом, остается общим.
+ * </p>
+ *
+ * @param <E> тип элементов
+ */
+final class ArrayDiff<E> {
+    private final ArrayTree<E> tree;
+    private final HeadArray<E> first;
+    private final HeadArray<E> second;
+    /**
+     * Конец общей части версий
+     */
+    private final int end;
+    private final List<IndexRange> ranges = new ArrayList<>();
+
+    private ArrayDiff(ArrayTree<E> tree, HeadArray<E> first, HeadArray<E> second) {
+        this.tree = tree;
+        this.first = first;
+        this.second = second;
+        this.end = Math.min(first.getSize(), second.getSize());
+    }
+
+    /**
+     * Возвращает упорядоченные непересекающиеся диапазоны индексов, элементы в которых различаются.
+     * Если размеры версий различаются, последний диапазон включает элементы, которые есть только в большей версии.
+     */
+    static <E> List<IndexRange> diff(ArrayTree<E> tree, HeadArray<E> first, HeadArray<E> second) {
+        ArrayDiff<E> diff = new ArrayDiff<>(tree, first, second);
+        if (first != second) {
+            diff.walk(diff.top(first), diff.top(second));
+            diff.changed(diff.end, Math.max(first.getSize(), second.getSize()));
+        }
+        return diff.ranges;
+    }
+
+    private List<Segment<E>> top(HeadArray<E> head) {
+        List<Segment<E>> segments = new ArrayList<>(2);
+        int tailOffset = head.getTailOffset();
+        if (tailOffset > 0) {
+            segments.add(segment(head.getRoot(), head.getShift(), 0, tailOffset));
+        }
+        if (head.getTail().length > 0) {
+            segments.add(new Segment<>(null, head.getTail(), 0, tailOffset, head.getTail().length));
+        }
+        return segments;
+    }
+
+    private void walk(List<Segment<E>> firstSegments, List<Segment<E>> secondSegments) {
+        int i = 0;
+        int j = 0;
+        while (i < firstSegments.size() && j < secondSegments.size()) {
+            Segment<E> x = firstSegments.get(i);
+            Segment<E> y = secondSegments.get(j);
+            if (x.start() >= end) {
+                return;
+            }
+
+            if (x.start() == y.start() && x.size() == y.size()) {
+                if (!x.sameNode(y)) {
+                    if (x.branch() != null && y.branch() != null) {
+                        walk(expand(x), expand(y));
+                    } else {
+                        compare(x.start(), x.end());
+                    }
+                }
+                i++;
+                j++;
+                continue;
+            }
+
+            // Границы не совпали: сравниваем элементы до ближайшей общей границы
+            int firstEnd = x.end();
+            int secondEnd = y.end();
+            while (firstEnd != secondEnd) {
+                if (firstEnd < secondEnd) {
+                    if (++i == firstSegments.size()) {
+                        break;
+                    }
+                    firstEnd = firstSegments.get(i).end();
+                } else {
+                    if (++j == secondSegments.size()) {
+                        break;
+                    }
+                    secondEnd = secondSegments.get(j).end();
+                }
+            }
+            compare(x.start(), Math.max(firstEnd, secondEnd));
+            i++;
+            j++;
+        }
+    }
+
+    private List<Segment<E>> expand(Segment<E> segment) {
+        BTreeBranch<E> branch = segment.branch();
+        int childLevel = segment.level() - tree.bitPerEdge();
+        List<Segment<E>> childs = new ArrayList<>(branch.slotCount());
+        int start = segment.start();
+        for (BTreeNode<E> child : branch.getChilds()) {
+            int size = tree.size(child, childLevel);
+            childs.add(segment(child, childLevel, start, size));
+            start += size;
+        }
+        return childs;
+    }
+
+    private Segment<E> segment(BTreeNode<E> node, int level, int start, int size) {
+        if (node instanceof BTreeLeaf<E> leaf) {
+            return new Segment<>(null, leaf.getValues(), 0, start, size);
+        }
+        return new Segment<>((BTreeBranch<E>) node, null, level, start, size);
+    }
+
+    /**
+     * Сравнивает элементы версий в диапазоне [from, to) общей части
+     */
+    private void compare(int from, int to) {
+        to = Math.min(to, end);
+        if (from >= to) {
+            return;
+        }
+        PersistentArraySpliterator<E> x = new PersistentArraySpliterator<>(tree, first, from, to);
+        PersistentArraySpliterator<E> y = new PersistentArraySpliterator<>(tree, second, from, to);
+        int changedFrom = -1;
+        for (int index = from; index < to; index++) {
+            boolean equal = Objects.equals(x.next(), y.next());
+            if (!equal && changedFrom < 0) {
+                changedFrom = index;
+            } else if (equal && changedFrom >= 0) {
+                changed(changedFrom, index);
+                changedFrom = -1;
+            }
+        }
+        if (changedFrom >= 0) {
+            changed(changedFrom, to);
+        }
+    }
+
+    /**
+     * Добавляет диапазон, объединяя его с предыдущим, если они соседние
+     */
+    private void changed(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        if (!ranges.isEmpty() && ranges.get(ranges.size() - 1).to() == from) {
+            from = ranges.remove(ranges.size() - 1).from();
+        }
+        ranges.add(new IndexRange(from, to));
+    }
+
+    /**
+     * Поддерево или хвост с диапазоном индексов [start, start + size): внутренний узел уровня level
+     * или массив значений листа либо хвоста
+     */
+    private record Segment<E>(BTreeBranch<E> branch, Object[] values, int level, int start, int size) {
+        int end() {
+            return start + size;
+        }
+
+        /**
+         * Возвращает true, если оба сегмента ссылаются на один и тот же узел или массив значений
+         */
+        boolean sameNode(Segment<E> other) {
+            return branch != null ? branch == other.branch : values == other.values;
+        }
+    }
+}
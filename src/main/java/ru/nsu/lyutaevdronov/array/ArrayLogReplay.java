@@ -0,0 +1,107 @@
+package ru.nsu.lyutaevdronov.array;
+
+import ru.nsu.lyutaevdronov.common.ElementCodec;
+import ru.nsu.lyutaevdronov.common.LogOperation;
+import ru.nsu.lyutaevdronov.common.OperationLog;
+import ru.nsu.lyutaevdronov.common.SnapshotInput;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Применяет записи журнала операций к персистентному массиву теми же публичными методами,
+ * которыми они были сделаны, поэтому массив получает те же версии.
+ *
+ * @param <E> тип элементов
+ */
+final class ArrayLogReplay<E> implements OperationLog.RecordHandler {
+    private final PersistentArray<E> array;
+    private final ElementCodec<E> codec;
+
+    ArrayLogReplay(PersistentArray<E> array, ElementCodec<E> codec) {
+        this.array = array;
+        this.codec = codec;
+    }
+
+    @Override
+    public void apply(LogOperation operation, SnapshotInput in) throws IOException {
+        switch (operation) {
+            case ADD -> array.add(codec.read(in));
+            case INSERT -> {
+                int index = in.readInt();
+                array.add(index, codec.read(in));
+            }
+            case SET -> {
+                int index = in.readInt();
+                array.set(index, codec.read(in));
+            }
+            case POP -> array.pop();
+            case REMOVE -> array.remove(in.readInt());
+            case CLEAR -> array.clear();
+            case ADD_ALL -> array.addAll(readElements(in));
+            case INSERT_ALL -> {
+                int index = in.readInt();
+                array.addAll(index, readElements(in));
+            }
+            case UNDO -> array.undo();
+            case REDO -> array.redo();
+            case CREATE_BRANCH -> array.createBranch(in.readString());
+            case SWITCH_BRANCH -> array.switchBranch(in.readString());
+            case RENAME_BRANCH -> {
+                String name = in.readString();
+                array.renameBranch(name, in.readString());
+            }
+            case DELETE_BRANCH -> array.deleteBranch(in.readString());
+            case BATCH -> applyBatch(in);
+            case MERGE -> applyMerge(in);
+            case RESTORE -> array.restore(HeadArray.codec(codec).read(in));
+            default -> throw new IOException("Operation " + operation + " is not supported by PersistentArray");
+        }
+    }
+
+    /**
+     * Повторяет изменения транзиентной версии и сохраняет их одной версией
+     */
+    private void applyBatch(SnapshotInput in) throws IOException {
+        PersistentArray.Transient<E> transientArray = array.asTransient();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            LogOperation operation = LogOperation.of(in.readByte());
+            switch (operation) {
+                case ADD -> transientArray.add(codec.read(in));
+                case SET -> {
+                    int index = in.readInt();
+                    transientArray.set(index, codec.read(in));
+                }
+                case POP -> transientArray.pop();
+                default -> throw new IOException("Operation " + operation + " is not supported by Transient");
+            }
+        }
+        transientArray.persistent();
+    }
+
+    /**
+     * Повторяет слияние, возвращая записанные решения конфликтов в том же порядке
+     */
+    private void applyMerge(SnapshotInput in) throws IOException {
+        long base = in.readLong();
+        long left = in.readLong();
+        long right = in.readLong();
+        int count = in.readInt();
+        List<E> resolved = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            resolved.add(in.readBoolean() ? codec.read(in) : null);
+        }
+        Iterator<E> answers = resolved.iterator();
+        array.merge(base, left, right, (index, baseValue, leftValue, rightValue) -> answers.next());
+    }
+
+    private List<E> readElements(SnapshotInput in) throws IOException {
+        int count = in.readInt();
+        List<E> elements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(codec.read(in));
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,116 @@
+package ru.nsu.lyutaevdronov.array;
+
+import ru.nsu.lyutaevdronov.common.ConflictResolver;
+
+import java.util.*;
+
+/**
+ * Трехстороннее слияние версий массива по позициям.
+ * <p>
+ * Изменения обеих версий относительно общей предыдущей находятся структурным сравнением
+ * {@link ArrayDiff}, которое пропускает общие поддеревья. Результат строится из левой версии:
+ * в нее переносятся только позиции, измененные в правой, поэтому её поддеревья без изменений
+ * правой версии остаются общими, а стоимость слияния пропорциональна количеству изменений,
+ * умноженному на высоту дерева. Если одна из версий совпадает с общей, результатом
+ * становится другая версия целиком.
+ * </p>
+ */
+final class ArrayMerge {
+    private ArrayMerge() {
+    }
+
+    /**
+     * Возвращает результат слияния версий left и right, полученных из общей версии base.
+     * <p>
+     * Позиция, измененная только в одной версии, берет её значение, измененная в обеих одинаково -
+     * это значение, иначе значение выбирает resolver. Элементы за концом наименьшей из трех версий
+     * сливаются целиком: если их изменила одна сторона, берется её окончание, если обе только
+     * добавили элементы в конец base - окончание левой, затем правой.
+     * </p>
+     *
+     * @throws IllegalStateException если обе версии по-разному изменили элементы за концом наименьшей версии
+     */
+    static <E> HeadArray<E> merge(ArrayTree<E> tree, HeadArray<E> base, HeadArray<E> left, HeadArray<E> right,
+                                  ConflictResolver<Integer, E> resolver) {
+        if (left == base || left == right) {
+            return right;
+        }
+        if (right == base) {
+            return left;
+        }
+
+        int common = Math.min(base.getSize(), Math.min(left.getSize(), right.getSize()));
+        List<IndexRange> leftChanges = ArrayDiff.diff(tree, base, left);
+        List<IndexRange> rightChanges = ArrayDiff.diff(tree, base, right);
+        HeadArray<E> result = mergeCommon(tree, base, left, right, common, leftChanges, rightChanges, resolver);
+
+        boolean leftEndChanged = changedAfter(leftChanges, common);
+        boolean rightEndChanged = changedAfter(rightChanges, common);
+        if (!rightEndChanged) {
+            return result;
+        }
+        if (!leftEndChanged) {
+            return tree.concat(tree.take(result, common), tree.drop(right, common));
+        }
+        if (left.getSize() == right.getSize() && !changedAfter(ArrayDiff.diff(tree, left, right), common)) {
+            return result;
+        }
+        if (base.getSize() == common) {
+            return tree.concat(result, tree.drop(right, common));
+        }
+        throw new IllegalStateException("Both versions changed the end of the array");
+    }
+
+    /**
+     * Переносит в левую версию изменения правой в диапазоне [0, common)
+     */
+    private static <E> HeadArray<E> mergeCommon(ArrayTree<E> tree, HeadArray<E> base, HeadArray<E> left,
+                                                HeadArray<E> right, int common, List<IndexRange> leftChanges,
+                                                List<IndexRange> rightChanges, ConflictResolver<Integer, E> resolver) {
+        // Узлы, скопированные слиянием, помечены своей сессией и изменяются на месте
+        Object edit = new Object();
+        BTreeNode<E> root = left.getRoot();
+        Object[] tail = left.getTail();
+        boolean tailCopied = false;
+        int tailOffset = left.getTailOffset();
+
+        int next = 0;
+        for (IndexRange range : rightChanges) {
+            for (int index = range.from(); index < Math.min(range.to(), common); index++) {
+                while (next < leftChanges.size() && leftChanges.get(next).to() <= index) {
+                    next++;
+                }
+                E value = tree.get(right, index);
+                if (next < leftChanges.size() && leftChanges.get(next).from() <= index) {
+                    E leftValue = tree.get(left, index);
+                    if (Objects.equals(leftValue, value)) {
+                        continue;
+                    }
+                    value = resolver.resolve(index, tree.get(base, index), leftValue, value);
+                    if (Objects.equals(leftValue, value)) {
+                        continue;
+                    }
+                }
+
+                if (index >= tailOffset) {
+                    if (!tailCopied) {
+                        tail = tail.clone();
+                        tailCopied = true;
+                    }
+                    tail[index - tailOffset] = value;
+                } else {
+                    root = tree.copyLeafToChange(root, left.getShift(), index, value, edit);
+                }
+            }
+        }
+
+        if (root == left.getRoot() && tail == left.getTail()) {
+            return left;
+        }
+        return new HeadArray<>(root, left.getShift(), tail, left.getSize());
+    }
+
+    private static boolean changedAfter(List<IndexRange> changes, int index) {
+        return !changes.isEmpty() && changes.get(changes.size() - 1).to() > index;
+    }
+}
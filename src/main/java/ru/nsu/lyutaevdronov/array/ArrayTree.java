@@ -0,0 +1,789 @@
+package ru.nsu.lyutaevdronov.array;
+
+import ru.nsu.lyutaevdronov.common.Pair;
+
+import java.util.*;
+
+/**
+ * Операции над деревом персистентного массива.
+ * <p>
+ * Дерево является relaxed radix balanced (RRB) деревом. Узел без таблицы размеров индексируется
+ * битами индекса, как обычное префиксное дерево: все его потомки, кроме последнего, заполнены.
+ * Узел с таблицей размеров появляется после вставки или удаления в середине и после конкатенации,
+ * он хранит накопленные размеры поддеревьев, и нужный потомок ищется по ней.
+ * </p>
+ * <p>
+ * Операции копируют только узлы на затронутых путях, остальные узлы переиспользуются.
+ * Узлы, помеченные маркером edit транзиентной сессии, изменяются на месте.
+ * </p>
+ *
+ * @param <E> тип элементов
+ */
+final class ArrayTree<E> {
+    /**
+     * Допустимое количество лишних узлов на уровне после конкатенации по сравнению с оптимальным
+     */
+    private static final int EXTRAS = 2;
+
+    private final int bitPerEdge;
+    private final int width;
+    private final int mask;
+
+    ArrayTree(int bitPerEdge) {
+        this.bitPerEdge = bitPerEdge;
+        this.width = 1 << bitPerEdge;
+        this.mask = width - 1;
+    }
+
+    /**
+     * Возвращает пустую версию массива.
+     */
+    HeadArray<E> empty() {
+        return new HeadArray<>(BTreeNode.emptyNode(), 0, new Object[0], 0);
+    }
+
+    /**
+     * Возвращает количество бит индекса на уровень дерева.
+     */
+    int bitPerEdge() {
+        return bitPerEdge;
+    }
+
+    /**
+     * Возвращает количество элементов в заполненном листе.
+     */
+    int width() {
+        return width;
+    }
+
+    /**
+     * Собирает версию из заполненных листов снизу вверх: каждый уровень заполняется слева направо,
+     * поэтому узлам не нужны таблицы размеров.
+     *
+     * @param leaves значения листов, каждый из width элементов
+     * @param tail   хвост, непустой, если есть хотя бы один лист
+     */
+    HeadArray<E> fromLeaves(List<Object[]> leaves, Object[] tail) {
+        if (leaves.isEmpty()) {
+            return new HeadArray<>(BTreeNode.emptyNode(), 0, tail, tail.length);
+        }
+
+        BTreeNode<E>[] nodes = BTreeBranch.newChilds(leaves.size());
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new BTreeLeaf<>(leaves.get(i));
+        }
+        int shift = 0;
+        while (nodes.length > 1) {
+            shift += bitPerEdge;
+            BTreeNode<E>[] parents = BTreeBranch.newChilds((nodes.length + width - 1) / width);
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = new BTreeBranch<>(
+                        Arrays.copyOfRange(nodes, i * width, Math.min(nodes.length, (i + 1) * width)), null);
+            }
+            nodes = parents;
+        }
+        return new HeadArray<>(nodes[0], shift, tail, leaves.size() * width + tail.length);
+    }
+
+    E get(HeadArray<E> head, int index) {
+        if (index >= head.getTailOffset()) {
+            return head.getFromTail(index);
+        }
+
+        BTreeNode<E> node = head.getRoot();
+        for (int level = head.getShift(); level > 0; level -= bitPerEdge) {
+            BTreeBranch<E> branch = (BTreeBranch<E>) node;
+            int widthIndex = childIndex(branch, level, index);
+            index -= offset(branch, level, widthIndex);
+            node = branch.child(widthIndex);
+        }
+        return ((BTreeLeaf<E>) node).get(index);
+    }
+
+    /**
+     * Возвращает версию, в которой элемент с индексом index заменен на element.
+     */
+    HeadArray<E> set(HeadArray<E> head, int index, E element) {
+        int tailOffset = head.getTailOffset();
+        if (index >= tailOffset) {
+            // Элемент лежит в хвосте: копируем только хвост, дерево переиспользуется
+            Object[] newTail = head.getTail().clone();
+            newTail[index - tailOffset] = element;
+            return new HeadArray<>(head.getRoot(), head.getShift(), newTail, head.getSize());
+        }
+
+        BTreeNode<E> newRoot = copyLeafToChange(head.getRoot(), head.getShift(), index, element, null);
+        return new HeadArray<>(newRoot, head.getShift(), head.getTail(), head.getSize());
+    }
+
+    /**
+     * Возвращает версию, в конец которой добавлен элемент.
+     * Пока хвост не заполнен, дерево переиспользуется целиком.
+     */
+    HeadArray<E> append(HeadArray<E> head, E element) {
+        Object[] tail = head.getTail();
+        if (tail.length < width) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = element;
+            return new HeadArray<>(head.getRoot(), head.getShift(), newTail, head.getSize() + 1);
+        }
+
+        // Хвост заполнен: переносим его в дерево целым листом, массив хвоста больше не меняется
+        Pair<BTreeNode<E>, Integer> tree = pushLeaf(head.getRoot(), head.getShift(), head.getTailOffset(),
+                leaf(tail, null), null);
+        return new HeadArray<>(tree.key(), tree.value(), new Object[]{element}, head.getSize() + 1);
+    }
+
+    /**
+     * Возвращает версию, содержащую первые count элементов.
+     * Лист с последним сохраняемым элементом становится хвостом.
+     */
+    HeadArray<E> take(HeadArray<E> head, int count) {
+        if (count == 0) {
+            return empty();
+        }
+
+        int tailOffset = head.getTailOffset();
+        if (count > tailOffset) {
+            return new HeadArray<>(head.getRoot(), head.getShift(),
+                    Arrays.copyOf(head.getTail(), count - tailOffset), count);
+        }
+
+        Pair<BTreeLeaf<E>, Integer> leaf = findLeaf(head.getRoot(), head.getShift(), count - 1);
+        Object[] newTail = Arrays.copyOf(leaf.key().getValues(), leaf.value() + 1);
+        int treeSize = count - newTail.length;
+        if (treeSize == 0) {
+            return new HeadArray<>(BTreeNode.emptyNode(), 0, newTail, count);
+        }
+
+        BTreeNode<E> newRoot = copyLeafToMove(head.getRoot(), head.getShift(), treeSize);
+        return shrink(newRoot, head.getShift(), newTail, count);
+    }
+
+    /**
+     * Возвращает версию без первых count элементов.
+     */
+    HeadArray<E> drop(HeadArray<E> head, int count) {
+        if (count == 0) {
+            return head;
+        }
+
+        int tailOffset = head.getTailOffset();
+        if (count >= tailOffset) {
+            Object[] tail = head.getTail();
+            return new HeadArray<>(BTreeNode.emptyNode(), 0,
+                    Arrays.copyOfRange(tail, count - tailOffset, tail.length), head.getSize() - count);
+        }
+
+        BTreeNode<E> newRoot = dropTree(head.getRoot(), head.getShift(), count);
+        return shrink(newRoot, head.getShift(), head.getTail(), head.getSize() - count);
+    }
+
+    /**
+     * Возвращает версию, в которой за элементами left следуют элементы right.
+     * Поддеревья обеих версий переиспользуются, перестраивается только шов между ними.
+     */
+    HeadArray<E> concat(HeadArray<E> left, HeadArray<E> right) {
+        if (left.getSize() == 0) {
+            return right;
+        }
+        if (right.getSize() == 0) {
+            return left;
+        }
+
+        int size = left.getSize() + right.getSize();
+        Object[] leftTail = left.getTail();
+        Object[] rightTail = right.getTail();
+        if (right.getTailOffset() == 0 && leftTail.length + rightTail.length <= width) {
+            Object[] tail = Arrays.copyOf(leftTail, leftTail.length + rightTail.length);
+            System.arraycopy(rightTail, 0, tail, leftTail.length, rightTail.length);
+            return new HeadArray<>(left.getRoot(), left.getShift(), tail, size);
+        }
+
+        Pair<BTreeNode<E>, Integer> tree = pushLeaf(left.getRoot(), left.getShift(), left.getTailOffset(),
+                leaf(leftTail, null), null);
+        if (right.getTailOffset() > 0) {
+            tree = concat(tree.key(), tree.value(), right.getRoot(), right.getShift());
+        }
+        return new HeadArray<>(tree.key(), tree.value(), rightTail, size);
+    }
+
+    /**
+     * Убирает корни с единственным потомком, пока высота дерева больше необходимой.
+     *
+     * @return новый корень и его уровень
+     */
+    Pair<BTreeNode<E>, Integer> shrink(BTreeNode<E> root, int shift) {
+        while (shift > 0 && root.slotCount() == 1) {
+            root = ((BTreeBranch<E>) root).child(0);
+            shift -= bitPerEdge;
+        }
+        return new Pair<>(root, shift);
+    }
+
+    private HeadArray<E> shrink(BTreeNode<E> root, int shift, Object[] tail, int size) {
+        Pair<BTreeNode<E>, Integer> tree = shrink(root, shift);
+        return new HeadArray<>(tree.key(), tree.value(), tail, size);
+    }
+
+    /**
+     * Находит лист, содержащий элемент с индексом index.
+     *
+     * @return лист и индекс элемента в нем
+     */
+    Pair<BTreeLeaf<E>, Integer> findLeaf(BTreeNode<E> root, int shift, int index) {
+        BTreeNode<E> node = root;
+        for (int level = shift; level > 0; level -= bitPerEdge) {
+            BTreeBranch<E> branch = (BTreeBranch<E>) node;
+            int widthIndex = childIndex(branch, level, index);
+            index -= offset(branch, level, widthIndex);
+            node = branch.child(widthIndex);
+        }
+        return new Pair<>((BTreeLeaf<E>) node, index);
+    }
+
+    /**
+     * Находит лист (или хвост), содержащий элемент с индексом index.
+     *
+     * @return значения листа и индекс его первого элемента в массиве
+     */
+    Pair<Object[], Integer> leafAt(HeadArray<E> head, int index) {
+        int tailOffset = head.getTailOffset();
+        if (index >= tailOffset) {
+            return new Pair<>(head.getTail(), tailOffset);
+        }
+        Pair<BTreeLeaf<E>, Integer> leaf = findLeaf(head.getRoot(), head.getShift(), index);
+        return new Pair<>(leaf.key().getValues(), index - leaf.value());
+    }
+
+    /**
+     * Выбирает границу поддеревьев внутри диапазона [from, to), ближайшую к его середине.
+     * Границей считается начало любого поддерева (в том числе листа) и начало хвоста.
+     *
+     * @return индекс границы из (from, to) или -1, если диапазон лежит в одном листе
+     */
+    int splitIndex(HeadArray<E> head, int from, int to) {
+        int tailOffset = head.getTailOffset();
+        if (from >= tailOffset) {
+            return -1;
+        }
+
+        int middle = (from + to) >>> 1;
+        int best = to > tailOffset ? tailOffset : -1;
+        int last = Math.min(to, tailOffset) - 1;
+        BTreeNode<E> node = head.getRoot();
+        int base = 0;
+        for (int level = head.getShift(); level > 0; level -= bitPerEdge) {
+            BTreeBranch<E> branch = (BTreeBranch<E>) node;
+            int first = childIndex(branch, level, from - base);
+            int lastChild = childIndex(branch, level, last - base);
+            if (first != lastChild) {
+                for (int i = first + 1; i <= lastChild; i++) {
+                    int boundary = base + offset(branch, level, i);
+                    if (best == -1 || Math.abs(boundary - middle) < Math.abs(best - middle)) {
+                        best = boundary;
+                    }
+                }
+                return best;
+            }
+            base += offset(branch, level, first);
+            node = branch.child(first);
+        }
+        return best;
+    }
+
+    /**
+     * Копируем все ноды на пути до нужного индекса, остальные переиспользуются
+     * Для операций, изменения элемента по индексу
+     */
+    BTreeNode<E> copyLeafToChange(BTreeNode<E> node, int level, int index, E element, Object edit) {
+        if (level == 0) {
+            BTreeLeaf<E> leaf = editable((BTreeLeaf<E>) node, edit);
+            leaf.getValues()[index] = element;
+            return leaf;
+        }
+
+        BTreeBranch<E> branch = (BTreeBranch<E>) node;
+        int widthIndex = childIndex(branch, level, index);
+        BTreeNode<E> child = copyLeafToChange(branch.child(widthIndex), level - bitPerEdge,
+                index - offset(branch, level, widthIndex), element, edit);
+        BTreeBranch<E> result = editable(branch, edit);
+        result.getChilds()[widthIndex] = child;
+        return result;
+    }
+
+    /**
+     * Добавляет лист в конец дерева, при необходимости увеличивая высоту дерева.
+     *
+     * @param treeSize количество элементов в дереве
+     * @return новый корень и его уровень
+     */
+    Pair<BTreeNode<E>, Integer> pushLeaf(BTreeNode<E> root, int shift, int treeSize, BTreeLeaf<E> leaf, Object edit) {
+        if (treeSize == 0) {
+            return new Pair<>(newPath(shift, leaf, edit), shift);
+        }
+
+        BTreeNode<E> newRoot = pushLeaf(root, shift, leaf, edit);
+        if (newRoot != null) {
+            return new Pair<>(newRoot, shift);
+        }
+
+        // Места в дереве нет: добавляем новый уровень над корнем
+        int newShift = shift + bitPerEdge;
+        BTreeNode<E>[] childs = BTreeBranch.newChilds(2);
+        childs[0] = root;
+        childs[1] = newPath(shift, leaf, edit);
+        int[] sizes = null;
+        if (treeSize != 1 << newShift) {
+            sizes = new int[]{treeSize, treeSize + leaf.slotCount()};
+        }
+        return new Pair<>(branch(childs, sizes, edit), newShift);
+    }
+
+    /**
+     * @return измененный узел или null, если в поддереве нет места для листа
+     */
+    private BTreeBranch<E> pushLeaf(BTreeNode<E> node, int level, BTreeLeaf<E> leaf, Object edit) {
+        if (level == 0) {
+            return null;
+        }
+
+        BTreeBranch<E> branch = (BTreeBranch<E>) node;
+        int count = branch.slotCount();
+        int leafSize = leaf.slotCount();
+        if (level > bitPerEdge && count > 0) {
+            BTreeBranch<E> child = pushLeaf(branch.child(count - 1), level - bitPerEdge, leaf, edit);
+            if (child != null) {
+                BTreeBranch<E> result = editable(branch, edit);
+                result.getChilds()[count - 1] = child;
+                if (result.getSizes() != null) {
+                    result.getSizes()[count - 1] += leafSize;
+                }
+                return result;
+            }
+        }
+
+        if (count == width) {
+            return null;
+        }
+
+        int[] sizes = branch.getSizes();
+        if (sizes == null && count > 0 && size(branch.child(count - 1), level - bitPerEdge) != 1 << level) {
+            // Последний потомок не заполнен, индексировать битами индекса больше нельзя
+            sizes = sizes(branch.getChilds(), level);
+        }
+        if (sizes != null) {
+            sizes = Arrays.copyOf(sizes, count + 1);
+            sizes[count] = (count > 0 ? sizes[count - 1] : 0) + leafSize;
+        }
+        BTreeNode<E>[] childs = Arrays.copyOf(branch.getChilds(), count + 1);
+        childs[count] = newPath(level - bitPerEdge, leaf, edit);
+        return withSlots(branch, childs, sizes, edit);
+    }
+
+    /**
+     * Возвращает самый правый лист дерева.
+     */
+    BTreeLeaf<E> lastLeaf(BTreeNode<E> root, int shift) {
+        BTreeNode<E> node = root;
+        for (int level = shift; level > 0; level -= bitPerEdge) {
+            BTreeBranch<E> branch = (BTreeBranch<E>) node;
+            node = branch.child(branch.slotCount() - 1);
+        }
+        return (BTreeLeaf<E>) node;
+    }
+
+    /**
+     * Удаляет самый правый лист дерева, удаляя опустевшие узлы.
+     *
+     * @return измененный узел или null, если узел опустел
+     */
+    BTreeNode<E> removeLastLeaf(BTreeNode<E> node, int level, Object edit) {
+        if (level == 0) {
+            return null;
+        }
+
+        BTreeBranch<E> branch = (BTreeBranch<E>) node;
+        int last = branch.slotCount() - 1;
+        BTreeNode<E> child = removeLastLeaf(branch.child(last), level - bitPerEdge, edit);
+        if (child == null) {
+            if (last == 0) {
+                return null;
+            }
+            int[] sizes = branch.getSizes() == null ? null : Arrays.copyOf(branch.getSizes(), last);
+            return withSlots(branch, Arrays.copyOf(branch.getChilds(), last), sizes, edit);
+        }
+
+        BTreeBranch<E> result = editable(branch, edit);
+        result.getChilds()[last] = child;
+        if (result.getSizes() != null) {
+            result.getSizes()[last] = (last > 0 ? result.getSizes()[last - 1] : 0) + size(child, level - bitPerEdge);
+        }
+        return result;
+    }
+
+    /**
+     * Копирует ноды следующим образом:
+     * элементы "до нужного индекса" переиспользуются,
+     * "после нужного индекса" пропускаются
+     *
+     * @param count количество сохраняемых элементов поддерева, больше нуля
+     */
+    private BTreeNode<E> copyLeafToMove(BTreeNode<E> node, int level, int count) {
+        if (count == size(node, level)) {
+            return node;
+        }
+        if (level == 0) {
+            return new BTreeLeaf<>(Arrays.copyOf(((BTreeLeaf<E>) node).getValues(), count));
+        }
+
+        BTreeBranch<E> branch = (BTreeBranch<E>) node;
+        int widthIndex = childIndex(branch, level, count - 1);
+        BTreeNode<E>[] childs = Arrays.copyOf(branch.getChilds(), widthIndex + 1);
+        childs[widthIndex] = copyLeafToMove(branch.child(widthIndex), level - bitPerEdge,
+                count - offset(branch, level, widthIndex));
+        int[] sizes = null;
+        if (branch.getSizes() != null) {
+            sizes = Arrays.copyOf(branch.getSizes(), widthIndex + 1);
+            sizes[widthIndex] = count;
+        }
+        return new BTreeBranch<>(childs, sizes);
+    }
+
+    /**
+     * Копирует ноды следующим образом:
+     * элементы "до нужного индекса" пропускаются,
+     * "после нужного индекса" переиспользуются
+     *
+     * @param count количество пропускаемых элементов поддерева, больше нуля и меньше размера поддерева
+     */
+    private BTreeNode<E> dropTree(BTreeNode<E> node, int level, int count) {
+        if (level == 0) {
+            Object[] values = ((BTreeLeaf<E>) node).getValues();
+            return new BTreeLeaf<>(Arrays.copyOfRange(values, count, values.length));
+        }
+
+        BTreeBranch<E> branch = (BTreeBranch<E>) node;
+        int widthIndex = childIndex(branch, level, count);
+        int before = offset(branch, level, widthIndex);
+        BTreeNode<E>[] childs = Arrays.copyOfRange(branch.getChilds(), widthIndex, branch.slotCount());
+        if (count > before) {
+            childs[0] = dropTree(childs[0], level - bitPerEdge, count - before);
+        }
+
+        int[] sizes = new int[childs.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = cumulativeSize(branch, level, widthIndex + i) - count;
+        }
+        return new BTreeBranch<>(childs, relaxed(sizes, level) ? sizes : null);
+    }
+
+    /**
+     * Конкатенирует два непустых дерева.
+     *
+     * @return новый корень и его уровень
+     */
+    Pair<BTreeNode<E>, Integer> concat(BTreeNode<E> left, int leftShift, BTreeNode<E> right, int rightShift) {
+        BTreeBranch<E> merged = concatSubTree(left, leftShift, right, rightShift);
+        int shift = Math.max(leftShift, rightShift);
+        if (merged.slotCount() == 1) {
+            return new Pair<>(merged.child(0), shift);
+        }
+        return new Pair<>(merged, shift + bitPerEdge);
+    }
+
+    /**
+     * Сливает правый край левого дерева с левым краем правого.
+     *
+     * @return узел уровня max(leftShift, rightShift) + bitPerEdge с одним или двумя потомками
+     */
+    private BTreeBranch<E> concatSubTree(BTreeNode<E> left, int leftShift, BTreeNode<E> right, int rightShift) {
+        if (leftShift > rightShift) {
+            BTreeBranch<E> centre = concatSubTree(lastChild(left), leftShift - bitPerEdge, right, rightShift);
+            return rebalance((BTreeBranch<E>) left, centre, null, leftShift);
+        }
+        if (leftShift < rightShift) {
+            BTreeBranch<E> centre = concatSubTree(left, leftShift, ((BTreeBranch<E>) right).child(0),
+                    rightShift - bitPerEdge);
+            return rebalance(null, centre, (BTreeBranch<E>) right, rightShift);
+        }
+
+        if (leftShift == 0) {
+            Object[] leftValues = ((BTreeLeaf<E>) left).getValues();
+            Object[] rightValues = ((BTreeLeaf<E>) right).getValues();
+            if (leftValues.length + rightValues.length <= width) {
+                Object[] values = Arrays.copyOf(leftValues, leftValues.length + rightValues.length);
+                System.arraycopy(rightValues, 0, values, leftValues.length, rightValues.length);
+                return parent(childsOf(new BTreeLeaf<>(values)), bitPerEdge);
+            }
+            return parent(childsOf(left, right), bitPerEdge);
+        }
+
+        BTreeBranch<E> centre = concatSubTree(lastChild(left), leftShift - bitPerEdge,
+                ((BTreeBranch<E>) right).child(0), rightShift - bitPerEdge);
+        return rebalance((BTreeBranch<E>) left, centre, (BTreeBranch<E>) right, leftShift);
+    }
+
+    /**
+     * Перераспределяет потомков узлов уровня level вокруг шва так, чтобы количество узлов
+     * превышало оптимальное не более чем на EXTRAS
+     *
+     * @return узел уровня level + bitPerEdge с одним или двумя потомками
+     */
+    private BTreeBranch<E> rebalance(BTreeBranch<E> left, BTreeBranch<E> centre, BTreeBranch<E> right, int level) {
+        List<BTreeNode<E>> all = new ArrayList<>(2 * width);
+        if (left != null) {
+            all.addAll(Arrays.asList(left.getChilds()).subList(0, left.slotCount() - 1));
+        }
+        all.addAll(Arrays.asList(centre.getChilds()));
+        if (right != null) {
+            all.addAll(Arrays.asList(right.getChilds()).subList(1, right.slotCount()));
+        }
+
+        BTreeNode<E>[] nodes = executeConcatPlan(all, concatPlan(all), level - bitPerEdge);
+        if (nodes.length <= width) {
+            return parent(childsOf(parent(nodes, level)), level + bitPerEdge);
+        }
+        return parent(childsOf(parent(Arrays.copyOf(nodes, width), level),
+                parent(Arrays.copyOfRange(nodes, width, nodes.length), level)), level + bitPerEdge);
+    }
+
+    /**
+     * Вычисляет новое количество слотов в каждом из узлов: неполные узлы сливаются со следующими,
+     * пока узлов не больше, чем оптимальное количество + EXTRAS
+     */
+    private int[] concatPlan(List<BTreeNode<E>> all) {
+        int[] counts = new int[all.size()];
+        int total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = all.get(i).slotCount();
+            total += counts[i];
+        }
+
+        int optimal = (total + width - 1) / width;
+        int length = counts.length;
+        int i = 0;
+        while (optimal + EXTRAS < length) {
+            while (counts[i] > width - EXTRAS / 2) {
+                i++;
+            }
+
+            int remaining = counts[i];
+            do {
+                int minSize = Math.min(remaining + counts[i + 1], width);
+                counts[i] = minSize;
+                remaining = remaining + counts[i + 1] - minSize;
+                i++;
+            } while (remaining > 0);
+
+            System.arraycopy(counts, i + 1, counts, i, length - i - 1);
+            i--;
+            length--;
+        }
+        return Arrays.copyOf(counts, length);
+    }
+
+    private BTreeNode<E>[] executeConcatPlan(List<BTreeNode<E>> all, int[] plan, int level) {
+        BTreeNode<E>[] result = BTreeBranch.newChilds(plan.length);
+        int index = 0;
+        int offset = 0;
+        for (int i = 0; i < plan.length; i++) {
+            int count = plan[i];
+            BTreeNode<E> node = all.get(index);
+            if (offset == 0 && node.slotCount() == count) {
+                // Узел не меняется и переиспользуется целиком
+                result[i] = node;
+                index++;
+                continue;
+            }
+
+            Object[] slots = level == 0 ? new Object[count] : BTreeBranch.newChilds(count);
+            int filled = 0;
+            while (filled < count) {
+                Object[] sourceSlots = slotsOf(all.get(index));
+                int taken = Math.min(count - filled, sourceSlots.length - offset);
+                System.arraycopy(sourceSlots, offset, slots, filled, taken);
+                filled += taken;
+                offset += taken;
+                if (offset == sourceSlots.length) {
+                    index++;
+                    offset = 0;
+                }
+            }
+            result[i] = level == 0 ? new BTreeLeaf<>(slots) : parent(castChilds(slots), level);
+        }
+        return result;
+    }
+
+    /**
+     * Создает узел уровня level с указанными потомками и, если нужно, таблицей размеров
+     */
+    private BTreeBranch<E> parent(BTreeNode<E>[] childs, int level) {
+        int[] sizes = sizes(childs, level);
+        return new BTreeBranch<>(childs, relaxed(sizes, level) ? sizes : null);
+    }
+
+    /**
+     * Возвращает накопленные размеры потомков узла уровня level
+     */
+    private int[] sizes(BTreeNode<E>[] childs, int level) {
+        int[] sizes = new int[childs.length];
+        int sum = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sum += size(childs[i], level - bitPerEdge);
+            sizes[i] = sum;
+        }
+        return sizes;
+    }
+
+    /**
+     * Возвращает true, если узел уровня level с такими размерами нельзя индексировать битами индекса
+     */
+    private boolean relaxed(int[] sizes, int level) {
+        for (int i = 0; i < sizes.length - 1; i++) {
+            if (sizes[i] != (i + 1) << level) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает количество элементов в поддереве
+     */
+    int size(BTreeNode<E> node, int level) {
+        if (level == 0) {
+            return node.slotCount();
+        }
+
+        BTreeBranch<E> branch = (BTreeBranch<E>) node;
+        int count = branch.slotCount();
+        if (count == 0) {
+            return 0;
+        }
+        if (branch.getSizes() != null) {
+            return branch.getSizes()[count - 1];
+        }
+        return ((count - 1) << level) + size(branch.child(count - 1), level - bitPerEdge);
+    }
+
+    /**
+     * Возвращает индекс потомка, содержащего элемент с индексом index поддерева
+     */
+    private int childIndex(BTreeBranch<E> branch, int level, int index) {
+        int[] sizes = branch.getSizes();
+        if (sizes == null) {
+            return (index >> level) & mask;
+        }
+
+        int widthIndex = index >> level;
+        while (sizes[widthIndex] <= index) {
+            widthIndex++;
+        }
+        return widthIndex;
+    }
+
+    /**
+     * Возвращает количество элементов в потомках узла, предшествующих потомку widthIndex
+     */
+    private int offset(BTreeBranch<E> branch, int level, int widthIndex) {
+        if (widthIndex == 0) {
+            return 0;
+        }
+        return branch.getSizes() == null ? widthIndex << level : branch.getSizes()[widthIndex - 1];
+    }
+
+    private int cumulativeSize(BTreeBranch<E> branch, int level, int widthIndex) {
+        if (branch.getSizes() != null) {
+            return branch.getSizes()[widthIndex];
+        }
+        if (widthIndex == branch.slotCount() - 1) {
+            return size(branch, level);
+        }
+        return (widthIndex + 1) << level;
+    }
+
+    private Object[] slotsOf(BTreeNode<E> node) {
+        if (node instanceof BTreeLeaf<E> leaf) {
+            return leaf.getValues();
+        }
+        return ((BTreeBranch<E>) node).getChilds();
+    }
+
+    private BTreeNode<E> lastChild(BTreeNode<E> node) {
+        BTreeBranch<E> branch = (BTreeBranch<E>) node;
+        return branch.child(branch.slotCount() - 1);
+    }
+
+    private static <E> BTreeNode<E>[] childsOf(BTreeNode<E> child) {
+        BTreeNode<E>[] childs = BTreeBranch.newChilds(1);
+        childs[0] = child;
+        return childs;
+    }
+
+    private static <E> BTreeNode<E>[] childsOf(BTreeNode<E> left, BTreeNode<E> right) {
+        BTreeNode<E>[] childs = BTreeBranch.newChilds(2);
+        childs[0] = left;
+        childs[1] = right;
+        return childs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> BTreeNode<E>[] castChilds(Object[] childs) {
+        return (BTreeNode<E>[]) childs;
+    }
+
+    /**
+     * Возвращает лист, который можно изменять на месте: сам лист, если он создан
+     * в транзиентной сессии edit, иначе его копию
+     */
+    private BTreeLeaf<E> editable(BTreeLeaf<E> leaf, Object edit) {
+        if (edit != null && leaf.getEdit() == edit) {
+            return leaf;
+        }
+        BTreeLeaf<E> copy = leaf.copy();
+        copy.setEdit(edit);
+        return copy;
+    }
+
+    private BTreeBranch<E> editable(BTreeBranch<E> branch, Object edit) {
+        if (edit != null && branch.getEdit() == edit) {
+            return branch;
+        }
+        BTreeBranch<E> copy = branch.copy();
+        copy.setEdit(edit);
+        return copy;
+    }
+
+    /**
+     * Возвращает узел с новыми массивами потомков и размеров: сам узел, если он создан
+     * в транзиентной сессии edit, иначе новый узел
+     */
+    private BTreeBranch<E> withSlots(BTreeBranch<E> branch, BTreeNode<E>[] childs, int[] sizes, Object edit) {
+        if (edit != null && branch.getEdit() == edit) {
+            branch.setChilds(childs);
+            branch.setSizes(sizes);
+            return branch;
+        }
+        return branch(childs, sizes, edit);
+    }
+
+    BTreeLeaf<E> leaf(Object[] values, Object edit) {
+        BTreeLeaf<E> leaf = new BTreeLeaf<>(values);
+        leaf.setEdit(edit);
+        return leaf;
+    }
+
+    private BTreeBranch<E> branch(BTreeNode<E>[] childs, int[] sizes, Object edit) {
+        BTreeBranch<E> branch = new BTreeBranch<>(childs, sizes);
+        branch.setEdit(edit);
+        return branch;
+    }
+
+    private BTreeNode<E> newPath(int level, BTreeLeaf<E> leaf, Object edit) {
+        if (level == 0) {
+            return leaf;
+        }
+        return branch(childsOf(newPath(level - bitPerEdge, leaf, edit)), null, edit);
+    }
+}
@@ -0,0 +1,90 @@
+package ru.nsu.lyutaevdronov.array;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import ru.nsu.lyutaevdronov.common.Metrics;
+
+import java.util.Arrays;
+
+/**
+ * Внутренний узел B-дерева: потомки хранятся в массиве точного размера
+ */
+@Getter(AccessLevel.PACKAGE)
+@Setter(AccessLevel.PACKAGE)
+public final class BTreeBranch<E> extends BTreeNode<E> {
+    private BTreeNode<E>[] childs;
+
+    /**
+     * Накопленные размеры поддеревьев потомков. Равна null, если все потомки,
+     * кроме последнего, заполнены и потомок находится по битам индекса.
+     */
+    private int[] sizes;
+
+    BTreeBranch(BTreeNode<E>[] childs, int[] sizes) {
+        this.childs = childs;
+        this.sizes = sizes;
+        if (Metrics.ENABLED) {
+            Metrics.nodeAllocated(0);
+        }
+    }
+
+    /**
+     * Создает массив потомков указанной длины.
+     *
+     * @param length длина массива
+     * @return пустой массив потомков
+     */
+    @SuppressWarnings("unchecked")
+    static <E> BTreeNode<E>[] newChilds(int length) {
+        return (BTreeNode<E>[]) new BTreeNode<?>[length];
+    }
+
+    /**
+     * Возвращает потомка в указанной позиции.
+     *
+     * @param index индекс потомка
+     * @return потомок
+     */
+    public BTreeNode<E> child(int index) {
+        return childs[index];
+    }
+
+    @Override
+    public int slotCount() {
+        return childs.length;
+    }
+
+    @Override
+    public long shallowSize() {
+        // Заголовок объекта и ссылки edit, childs, sizes
+        long size = align(12 + 4 + 4 + 4) + arraySize(childs.length);
+        return sizes == null ? size : size + arraySize(sizes.length);
+    }
+
+    @Override
+    BTreeBranch<E> copy() {
+        return new BTreeBranch<>(childs.clone(), sizes == null ? null : sizes.clone());
+    }
+
+    /**
+     * Возвращает строковое представление содержимого узла.
+     *
+     * @return строковое представление содержимого узла
+     */
+    @Override
+    public String toString() {
+        return String.format("%09x %s %s", hashCode(), Arrays.toString(childs),
+                sizes == null ? "[sizes null]" : Arrays.toString(sizes));
+    }
+
+    @Override
+    protected String drawGraph(int level) {
+        StringBuilder result = new StringBuilder();
+        result.append(drawTab(level)).append(String.format("%09x", hashCode())).append("\n");
+        for (BTreeNode<E> child : childs) {
+            result.append(child.drawGraph(level + 1));
+        }
+        return result.toString();
+    }
+}
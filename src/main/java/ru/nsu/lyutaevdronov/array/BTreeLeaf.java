@@ -0,0 +1,66 @@
+package ru.nsu.lyutaevdronov.array;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import ru.nsu.lyutaevdronov.common.Metrics;
+
+import java.util.Arrays;
+
+/**
+ * Лист B-дерева: значения хранятся в массиве точного размера
+ */
+@Getter(AccessLevel.PACKAGE)
+@Setter(AccessLevel.PACKAGE)
+public final class BTreeLeaf<E> extends BTreeNode<E> {
+    private Object[] values;
+
+    BTreeLeaf(Object[] values) {
+        this.values = values;
+        if (Metrics.ENABLED) {
+            Metrics.nodeAllocated(values.length);
+        }
+    }
+
+    /**
+     * Возвращает значение в указанной позиции листа.
+     *
+     * @param index индекс значения в листе
+     * @return значение
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        return (E) values[index];
+    }
+
+    @Override
+    public int slotCount() {
+        return values.length;
+    }
+
+    @Override
+    public long shallowSize() {
+        // Заголовок объекта и ссылки edit, values
+        return align(12 + 4 + 4) + arraySize(values.length);
+    }
+
+    @Override
+    BTreeLeaf<E> copy() {
+        return new BTreeLeaf<>(values.clone());
+    }
+
+    /**
+     * Возвращает строковое представление содержимого узла.
+     *
+     * @return строковое представление содержимого узла
+     */
+    @Override
+    public String toString() {
+        return String.format("%09x %s", hashCode(), Arrays.toString(values));
+    }
+
+    @Override
+    protected String drawGraph(int level) {
+        return drawTab(level) + String.format("%09x", hashCode()) + " " + Arrays.toString(values) + "\n";
+    }
+}
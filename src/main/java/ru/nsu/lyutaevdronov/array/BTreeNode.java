@@ -0,0 +1,163 @@
+package ru.nsu.lyutaevdronov.array;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import ru.nsu.lyutaevdronov.common.ElementCodec;
+import ru.nsu.lyutaevdronov.common.SnapshotInput;
+import ru.nsu.lyutaevdronov.common.SnapshotOutput;
+
+import java.io.IOException;
+
+/**
+ * Узел B-дерева для персистентной коллекции
+ * <p>
+ * Потомки и значения хранятся в массивах точного размера без обертки ArrayList:
+ * листья представлены классом {@link BTreeLeaf}, внутренние узлы - классом {@link BTreeBranch}.
+ * </p>
+ * <p>
+ * Узлы разделяются между версиями, поэтому массивы узлов и их изменение доступны только
+ * дереву в этом пакете, снаружи узлы можно только читать.
+ * </p>
+ */
+@Getter(AccessLevel.PACKAGE)
+@Setter(AccessLevel.PACKAGE)
+public abstract sealed class BTreeNode<E> permits BTreeLeaf, BTreeBranch {
+    private static final byte LEAF = 0;
+    private static final byte BRANCH = 1;
+
+    /**
+     * Маркер транзиентной сессии, создавшей узел. Узлы с маркером текущей сессии
+     * принадлежат только ей и изменяются на месте, остальные копируются.
+     */
+    private Object edit;
+
+    /**
+     * Возвращает пустой внутренний узел, используемый как корень пустого дерева.
+     *
+     * @return пустой узел
+     */
+    public static <E> BTreeNode<E> emptyNode() {
+        return new BTreeBranch<>(BTreeBranch.newChilds(0), null);
+    }
+
+    /**
+     * Возвращает количество занятых слотов: потомков для внутреннего узла, значений для листа.
+     *
+     * @return количество слотов
+     */
+    public abstract int slotCount();
+
+    /**
+     * Возвращает копию узла, которую можно изменять.
+     *
+     * @return копия узла без маркера транзиентной сессии
+     */
+    abstract BTreeNode<E> copy();
+
+    /**
+     * Возвращает оценку памяти, занимаемой узлом и его массивами, без учета потомков и значений.
+     * Оценка рассчитана на 64-битную JVM со сжатыми ссылками.
+     *
+     * @return размер узла в байтах
+     */
+    public abstract long shallowSize();
+
+    /**
+     * Возвращает оценку памяти, занимаемой массивом ссылок или int указанной длины.
+     *
+     * @param length длина массива
+     * @return размер массива в байтах
+     */
+    public static long arraySize(int length) {
+        return align(16 + 4L * length);
+    }
+
+    protected static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Возвращает true, если узел не имеет потомков и не содержит значений.
+     *
+     * @return true, если узел не имеет потомков и не содержит значений
+     */
+    public boolean isEmpty() {
+        return slotCount() == 0;
+    }
+
+    protected String drawTab(int count) {
+        return "  ".repeat(Math.max(0, count));
+    }
+
+    protected abstract String drawGraph(int level);
+
+    public String drawGraph() {
+        return drawGraph(0);
+    }
+
+    /**
+     * Возвращает кодек узлов для снимка. Узел записывается вместе с ещё не записанными потомками,
+     * узлы, общие для нескольких версий, записываются один раз.
+     *
+     * @param elementCodec кодек значений листьев
+     * @return кодек узлов
+     */
+    static <E> ElementCodec<BTreeNode<E>> codec(ElementCodec<E> elementCodec) {
+        NodeCodec<E> content = new NodeCodec<>(elementCodec);
+        return ElementCodec.of(
+                (SnapshotOutput out, BTreeNode<E> node) -> out.writeShared(node, content),
+                (SnapshotInput in) -> in.readShared(content)
+        );
+    }
+
+    /**
+     * Кодек содержимого узла, потомки записываются как общие объекты
+     */
+    private record NodeCodec<E>(ElementCodec<E> elementCodec) implements ElementCodec<BTreeNode<E>> {
+        @Override
+        public void write(SnapshotOutput out, BTreeNode<E> node) throws IOException {
+            if (node instanceof BTreeLeaf<E> leaf) {
+                out.writeByte(LEAF);
+                out.writeValues(leaf.getValues(), elementCodec);
+                return;
+            }
+            BTreeBranch<E> branch = (BTreeBranch<E>) node;
+            out.writeByte(BRANCH);
+            out.writeInt(branch.slotCount());
+            for (BTreeNode<E> child : branch.getChilds()) {
+                out.writeShared(child, this);
+            }
+            int[] sizes = branch.getSizes();
+            out.writeBoolean(sizes != null);
+            if (sizes != null) {
+                for (int size : sizes) {
+                    out.writeInt(size);
+                }
+            }
+        }
+
+        @Override
+        public BTreeNode<E> read(SnapshotInput in) throws IOException {
+            byte kind = in.readByte();
+            if (kind == LEAF) {
+                return new BTreeLeaf<>(in.readValues(elementCodec));
+            }
+            if (kind != BRANCH) {
+                throw new IOException("Corrupted snapshot: unexpected node kind " + kind);
+            }
+            BTreeNode<E>[] childs = BTreeBranch.newChilds(in.readInt());
+            for (int i = 0; i < childs.length; i++) {
+                childs[i] = in.readShared(this);
+            }
+            int[] sizes = null;
+            if (in.readBoolean()) {
+                sizes = new int[childs.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = in.readInt();
+                }
+            }
+            return new BTreeBranch<>(childs, sizes);
+        }
+    }
+}
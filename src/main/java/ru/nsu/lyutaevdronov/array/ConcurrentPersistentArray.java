@@ -0,0 +1,343 @@
+package ru.nsu.lyutaevdronov.array;
+
+import ru.nsu.lyutaevdronov.common.PersistentData;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Persistent массив, который поддерживает undo redo и может использоваться несколькими потоками.
+ * <p>
+ * Состояние массива - неизменяемая запись из текущей версии и стеков undo и redo в виде
+ * неизменяемых списков. Изменение строит новую версию целиком, не трогая узлы текущей,
+ * и публикует новое состояние одним compareAndSet. Если другой поток успел опубликовать своё
+ * состояние, изменение повторяется от него: повтор стоит O(log n) на копирование пути.
+ * Чтение берет текущую версию одним volatile-чтением и не ждет писателей, итераторы обходят
+ * версию, взятую при их создании.
+ * </p>
+ * <p>
+ * Составные изменения выполняются атомарно через {@link #update(UnaryOperator)}.
+ * История хранится целиком, пока не будет очищена {@link #clearHistory()}.
+ * </p>
+ *
+ * @param <E> тип элементов
+ */
+public final class ConcurrentPersistentArray<E> implements PersistentData, Iterable<E> {
+    private final int depth;
+    private final int bitPerEdge;
+    private final ArrayTree<E> tree;
+    private final AtomicReference<State<E>> state;
+
+    public ConcurrentPersistentArray() {
+        this(6, 5);
+    }
+
+    public ConcurrentPersistentArray(int depth, int bitPerEdge) {
+        this.depth = depth;
+        this.bitPerEdge = bitPerEdge;
+        this.tree = new ArrayTree<>(bitPerEdge);
+        this.state = new AtomicReference<>(new State<>(tree.empty(), null, null));
+    }
+
+    /**
+     * Создает массив, единственная версия которого - текущая версия указанного массива.
+     * Узлы версии общие для обоих массивов.
+     *
+     * @param array исходный массив
+     */
+    public ConcurrentPersistentArray(PersistentArray<E> array) {
+        this.depth = array.depth;
+        this.bitPerEdge = array.bitPerEdge;
+        this.tree = new ArrayTree<>(bitPerEdge);
+        this.state = new AtomicReference<>(new State<>(array.getCurrentHead(), null, null));
+    }
+
+    /**
+     * Возвращает текущую версию массива.
+     *
+     * @return текущая версия
+     */
+    private HeadArray<E> getCurrentHead() {
+        return state.get().head();
+    }
+
+    /**
+     * Возвращает количество элементов в массиве.
+     *
+     * @return количество элементов в массиве
+     */
+    public int size() {
+        return getCurrentHead().getSize();
+    }
+
+    /**
+     * Возвращает true, если массив не содержит элементов.
+     *
+     * @return true, если массив не содержит элементов
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Возвращает элемент в указанной позиции в массиве.
+     *
+     * @param index индекс возвращаемого элемента
+     * @return элемент в указанной позиции в массиве
+     */
+    public E get(int index) {
+        HeadArray<E> head = getCurrentHead();
+        checkIndex(head, index);
+        return tree.get(head, index);
+    }
+
+    /**
+     * Заменяет элемент в указанной позиции этого массива указанным элементом.
+     *
+     * @param index   индекс заменяемого элемента
+     * @param element элемент, который будет сохранен в указанной позиции
+     * @return заменяемый элемент
+     */
+    public E set(int index, E element) {
+        while (true) {
+            State<E> current = state.get();
+            HeadArray<E> head = current.head();
+            checkIndex(head, index);
+            E oldElement = tree.get(head, index);
+            if (publish(current, tree.set(head, index, element))) {
+                return oldElement;
+            }
+        }
+    }
+
+    /**
+     * Добавление нового элемента в конец массива.
+     *
+     * @param element добавляемый элемент
+     * @return true если массив изменился в результате вызова
+     */
+    public boolean add(E element) {
+        while (true) {
+            State<E> current = state.get();
+            if (publish(current, tree.append(current.head(), element))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Вставляет указанный элемент в указанную позицию в этом массиве.
+     *
+     * @param index   индекс, по которому указанный элемент должен быть вставлен
+     * @param element элемент, который нужно вставить
+     */
+    public void add(int index, E element) {
+        while (true) {
+            State<E> current = state.get();
+            HeadArray<E> head = current.head();
+            checkIndex(head, index);
+            HeadArray<E> prefix = tree.append(tree.take(head, index), element);
+            if (publish(current, tree.concat(prefix, tree.drop(head, index)))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Удаляет последний элемент массива.
+     *
+     * @return последний элемент массива
+     */
+    public E pop() {
+        while (true) {
+            State<E> current = state.get();
+            HeadArray<E> head = current.head();
+            if (head.getSize() == 0) {
+                throw new NoSuchElementException("Array is empty");
+            }
+            E result = tree.get(head, head.getSize() - 1);
+            if (publish(current, tree.take(head, head.getSize() - 1))) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Удаляет элемент по указанному индексу.
+     *
+     * @param index индекс удаляемого элемента
+     * @return удаленный элемент
+     */
+    public E remove(int index) {
+        while (true) {
+            State<E> current = state.get();
+            HeadArray<E> head = current.head();
+            checkIndex(head, index);
+            E result = tree.get(head, index);
+            if (publish(current, tree.concat(tree.take(head, index), tree.drop(head, index + 1)))) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Удаляет все элементы из этого массива.
+     */
+    public void clear() {
+        while (true) {
+            State<E> current = state.get();
+            if (publish(current, tree.empty())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Атомарно применяет к текущей версии составное изменение и сохраняет результат одной версией.
+     * <p>
+     * Функция получает массив с текущей версией и возвращает массив с новой, например
+     * {@code array -> array.conj(a).conj(b)}. При конкурентном изменении функция вызывается
+     * повторно для новой текущей версии, поэтому она не должна иметь побочных эффектов.
+     * </p>
+     *
+     * @param function изменение версии
+     * @return новая текущая версия в виде массива
+     */
+    public PersistentArray<E> update(UnaryOperator<PersistentArray<E>> function) {
+        while (true) {
+            State<E> current = state.get();
+            PersistentArray<E> result = function.apply(toPersistentArray(current.head()));
+            if (result.bitPerEdge != bitPerEdge) {
+                throw new IllegalArgumentException("Array must have the same node width");
+            }
+            if (publish(current, result.getCurrentHead())) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Выполняет возврат к предыдущей версии.
+     */
+    @Override
+    public void undo() {
+        while (true) {
+            State<E> current = state.get();
+            if (current.undo() == null) {
+                return;
+            }
+            State<E> previous = new State<>(current.undo().head(), current.undo().next(),
+                    new Versions<>(current.head(), current.redo()));
+            if (state.compareAndSet(current, previous)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Отменяет возврат к предыдущей версии.
+     */
+    @Override
+    public void redo() {
+        while (true) {
+            State<E> current = state.get();
+            if (current.redo() == null) {
+                return;
+            }
+            State<E> next = new State<>(current.redo().head(), new Versions<>(current.head(), current.undo()),
+                    current.redo().next());
+            if (state.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Удаляет все версии, кроме текущей.
+     */
+    public void clearHistory() {
+        while (true) {
+            State<E> current = state.get();
+            if (state.compareAndSet(current, new State<>(current.head(), null, null))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Возвращает неизменяемое представление версии, текущей на момент вызова, за O(1).
+     *
+     * @return неизменяемое представление текущей версии
+     */
+    public PersistentArray.Snapshot<E> snapshot() {
+        return new PersistentArray.Snapshot<>(tree, depth, bitPerEdge, getCurrentHead());
+    }
+
+    /**
+     * Возвращает однопоточный персистентный массив, единственная версия которого - текущая версия
+     * этого массива. Изменения полученного массива не влияют на этот массив.
+     *
+     * @return массив с текущей версией
+     */
+    public PersistentArray<E> toPersistentArray() {
+        return toPersistentArray(getCurrentHead());
+    }
+
+    /**
+     * Возвращает итератор по версии, текущей на момент вызова.
+     *
+     * @return итератор по элементам массива
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+        HeadArray<E> head = getCurrentHead();
+        return new PersistentArraySpliterator<>(tree, head, 0, head.getSize());
+    }
+
+    /**
+     * Возвращает строковое представление текущей версии массива.
+     *
+     * @return строковое представление массива
+     */
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        spliterator().forEachRemaining(element -> joiner.add(String.valueOf(element)));
+        return joiner.toString();
+    }
+
+    /**
+     * Публикует новую версию, если состояние не изменилось с момента чтения
+     */
+    private boolean publish(State<E> current, HeadArray<E> head) {
+        return state.compareAndSet(current, new State<>(head, new Versions<>(current.head(), current.undo()), null));
+    }
+
+    private PersistentArray<E> toPersistentArray(HeadArray<E> head) {
+        return PersistentArray.withVersion(depth, bitPerEdge, head);
+    }
+
+    private void checkIndex(HeadArray<E> head, int index) {
+        if ((index < 0) || (index >= head.getSize())) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Состояние массива: текущая версия, стек предыдущих версий и стек отмененных версий
+     */
+    private record State<E>(HeadArray<E> head, Versions<E> undo, Versions<E> redo) {
+    }
+
+    /**
+     * Неизменяемый стек версий, общий для всех состояний, построенных поверх него
+     */
+    private record Versions<E>(HeadArray<E> head, Versions<E> next) {
+    }
+}
@@ -1,32 +1,86 @@
 package ru.nsu.lyutaevdronov.array;
 
-
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Setter;
-import ru.nsu.lyutaevdronov.common.BTreeNode;
+import ru.nsu.lyutaevdronov.common.ElementCodec;
+import ru.nsu.lyutaevdronov.common.SnapshotInput;
+import ru.nsu.lyutaevdronov.common.SnapshotOutput;
 
+/**
+ * Версия персистентного массива: корень дерева, хвост и размер.
+ * <p>
+ * Последние (не более width) элементы хранятся в хвосте и попадают в дерево
+ * только целым листом, поэтому добавление в конец не копирует путь в дереве.
+ * </p>
+ */
 @Getter
 public class HeadArray<E> {
     private final BTreeNode<E> root;
-    @Setter
-    private int size = 0;
+    /**
+     * Уровень корня: количество бит индекса, которые отбрасываются при выборе потомка корня.
+     * Для листа равен нулю. Высота дерева растет и уменьшается вместе с размером версии.
+     */
+    private final int shift;
+    /**
+     * Хвост массива: элементы с индексами [size - tail.length, size). Массив общий для версий,
+     * поэтому доступен только в этом пакете
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final Object[] tail;
+    private final int size;
 
-    public HeadArray() {
-        this.root = BTreeNode.emptyNode();
+    HeadArray(BTreeNode<E> root, int shift, Object[] tail, int size) {
+        this.root = root;
+        this.shift = shift;
+        this.tail = tail;
+        this.size = size;
     }
 
-    public HeadArray(HeadArray<E> other) {
-        this.root = BTreeNode.of(other.root);
-        this.size = other.size;
+    /**
+     * Возвращает индекс первого элемента, лежащего в хвосте.
+     *
+     * @return количество элементов, хранящихся в дереве
+     */
+    public int getTailOffset() {
+        return size - tail.length;
     }
 
-    public HeadArray(HeadArray<E> other, Integer sizeDelta) {
-        this.root = BTreeNode.of(other.root);
-        this.size = other.size + sizeDelta;
+    /**
+     * Возвращает кодек версий для бинарного снимка. Версия, её узлы и хвост записываются один раз,
+     * повторные вхождения записываются ссылкой.
+     *
+     * @param elementCodec кодек элементов
+     * @return кодек версий
+     */
+    public static <E> ElementCodec<HeadArray<E>> codec(ElementCodec<E> elementCodec) {
+        // Хвост может быть общим для нескольких версий, например после set в дереве
+        ElementCodec<Object[]> tailCodec = ElementCodec.of(
+                (out, tail) -> out.writeValues(tail, elementCodec),
+                in -> in.readValues(elementCodec)
+        );
+        ElementCodec<BTreeNode<E>> nodeCodec = BTreeNode.codec(elementCodec);
+        ElementCodec<HeadArray<E>> content = ElementCodec.of(
+                (out, head) -> {
+                    nodeCodec.write(out, head.root);
+                    out.writeInt(head.shift);
+                    out.writeInt(head.size);
+                    out.writeShared(head.tail, tailCodec);
+                },
+                in -> {
+                    BTreeNode<E> root = nodeCodec.read(in);
+                    int shift = in.readInt();
+                    int size = in.readInt();
+                    return new HeadArray<>(root, shift, in.readShared(tailCodec), size);
+                }
+        );
+        return ElementCodec.of(
+                (SnapshotOutput out, HeadArray<E> head) -> out.writeShared(head, content),
+                (SnapshotInput in) -> in.readShared(content)
+        );
     }
 
-    public HeadArray(HeadArray<E> other, Integer newSize, Integer maxIndex) {
-        this.root = BTreeNode.of(other.root, maxIndex);
-        this.size = newSize;
+    @SuppressWarnings("unchecked")
+    E getFromTail(int index) {
+        return (E) tail[index - getTailOffset()];
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,13 @@
+package ru.nsu.lyutaevdronov.array;
+
+/**
+ * Диапазон индексов [from, to) массива
+ *
+ * @param from начало диапазона, включительно
+ * @param to   конец диапазона, не включительно
+ */
+public record IndexRange(int from, int to) {
+    public int size() {
+        return to - from;
+    }
+}
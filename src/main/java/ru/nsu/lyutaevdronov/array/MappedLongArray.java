@@ -0,0 +1,358 @@
+package ru.nsu.lyutaevdronov.array;
+
+import ru.nsu.lyutaevdronov.common.AbstractPersistentData;
+import ru.nsu.lyutaevdronov.common.SpecialPersistentData;
+import ru.nsu.lyutaevdronov.common.VersionHistory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Persistent массив длинных целых чисел (long), узлы которого хранятся в файле, отображенном в память.
+ * <p>
+ * Предназначен для массивов, которые вместе с историей не помещаются в куче. Узлы дерева
+ * хранятся в {@link MappedNodeStore} и ссылаются на потомков смещениями в файле, в куче остаются
+ * только версии: смещение корня, хвост и размер. Изменение дописывает в файл скопированный путь,
+ * поэтому все версии продолжают читаться из файла. Место, занятое узлами удаленных версий,
+ * не освобождается.
+ * </p>
+ * <p>
+ * Основным остается {@link PersistentLongArray}, который хранит узлы в куче.
+ * Файл принадлежит массиву и перезаписывается при создании, массив нужно закрыть после использования.
+ * </p>
+ */
+public class MappedLongArray extends AbstractPersistentData implements Closeable {
+    private final MappedNodeStore store;
+    private final VersionHistory<MappedHead> history;
+    /**
+     * Смещение пустого внутреннего узла - корня массива, все элементы которого в хвосте
+     */
+    private final long emptyRoot;
+
+    /**
+     * Ссылка на родительскую структуру, если текущий массив является частью её вложенности
+     */
+    private SpecialPersistentData parent;
+
+    public MappedLongArray(Path file) throws IOException {
+        this(file, 5);
+    }
+
+    /**
+     * Создает пустой массив, узлы которого хранятся в указанном файле.
+     *
+     * @param file       файл узлов, существующий файл перезаписывается
+     * @param bitPerEdge количество бит индекса на уровень дерева
+     */
+    public MappedLongArray(Path file, int bitPerEdge) throws IOException {
+        super((int) Math.ceil(31.0 / bitPerEdge), bitPerEdge);
+        if (bitPerEdge < 1 || bitPerEdge > 10) {
+            throw new IllegalArgumentException("bitPerEdge must be in [1, 10]");
+        }
+        this.store = new MappedNodeStore(file, width);
+        this.emptyRoot = store.append(new long[width]);
+        this.history = new VersionHistory<>(new MappedHead(emptyRoot, bitPerEdge, new long[0], 0));
+    }
+
+    @Override
+    public void undo() {
+        history.undo();
+    }
+
+    @Override
+    public void redo() {
+        history.redo();
+    }
+
+    /**
+     * Возвращает количество элементов в массиве.
+     *
+     * @return количество элементов в массиве
+     */
+    @Override
+    public int size() {
+        return head().size;
+    }
+
+    /**
+     * Возвращает true, если массив не содержит элементов.
+     *
+     * @return true, если массив не содержит элементов
+     */
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Возвращает количество хранимых версий массива.
+     *
+     * @return количество версий массива
+     */
+    public int getVersionCount() {
+        return history.size();
+    }
+
+    /**
+     * Возвращает количество байт, записанных в файл узлов.
+     *
+     * @return размер файла узлов
+     */
+    public long getStoreSize() {
+        return store.size();
+    }
+
+    /**
+     * Возвращает значение в указанной позиции в массиве.
+     *
+     * @param index индекс возвращаемого значения
+     * @return значение в указанной позиции в массиве
+     */
+    public long getLong(int index) {
+        MappedHead head = head();
+        checkIndex(head, index);
+        if (index >= head.tailOffset()) {
+            return head.tail[index - head.tailOffset()];
+        }
+        return store.read(leafFor(head, index), index & mask);
+    }
+
+    /**
+     * Заменяет значение в указанной позиции этого массива указанным значением.
+     *
+     * @param index индекс заменяемого значения
+     * @param value значение, которое будет сохранено в указанной позиции
+     * @return заменяемое значение
+     */
+    public long setLong(int index, long value) {
+        long oldValue = getLong(index);
+        MappedHead head = head();
+        if (index >= head.tailOffset()) {
+            long[] tail = head.tail.clone();
+            tail[index - head.tailOffset()] = value;
+            pushHead(new MappedHead(head.root, head.shift, tail, head.size));
+        } else {
+            long root = setInPath(head.root, head.shift, index, value);
+            pushHead(new MappedHead(root, head.shift, head.tail, head.size));
+        }
+        return oldValue;
+    }
+
+    /**
+     * Добавление нового значения в конец массива.
+     * Полный хвост дописывается в файл целым листом.
+     *
+     * @param value добавляемое значение
+     * @return true если массив изменился в результате вызова
+     */
+    public boolean add(long value) {
+        MappedHead head = head();
+        if (head.tail.length < width) {
+            long[] tail = Arrays.copyOf(head.tail, head.tail.length + 1);
+            tail[head.tail.length] = value;
+            pushHead(new MappedHead(head.root, head.shift, tail, head.size + 1));
+            return true;
+        }
+
+        long leaf = store.append(head.tail);
+        long root;
+        int shift = head.shift;
+        if ((head.size >>> bitPerEdge) > (1 << head.shift)) {
+            // Корень заполнен: дерево растет на уровень
+            long[] childs = new long[width];
+            childs[0] = head.root;
+            childs[1] = newPath(head.shift, leaf);
+            root = store.append(childs);
+            shift += bitPerEdge;
+        } else {
+            root = pushLeaf(head.root, head.shift, head.size - 1, leaf);
+        }
+        pushHead(new MappedHead(root, shift, new long[]{value}, head.size + 1));
+        return true;
+    }
+
+    /**
+     * Удаляет последнее значение массива.
+     *
+     * @return последнее значение массива
+     */
+    public long popLong() {
+        MappedHead head = head();
+        if (head.size == 0) {
+            throw new NoSuchElementException("Array is empty");
+        }
+        long result = getLong(head.size - 1);
+
+        if (head.size == 1) {
+            pushHead(new MappedHead(emptyRoot, bitPerEdge, new long[0], 0));
+        } else if (head.tail.length > 1) {
+            pushHead(new MappedHead(head.root, head.shift, Arrays.copyOf(head.tail, head.tail.length - 1), head.size - 1));
+        } else {
+            // Хвост опустеет: последний лист дерева становится хвостом
+            long[] tail = store.readRecord(leafFor(head, head.size - 2));
+            long root = popLeaf(head.root, head.shift, head.size - 2);
+            int shift = head.shift;
+            if (root == MappedNodeStore.NULL) {
+                root = emptyRoot;
+            }
+            if (shift > bitPerEdge && store.read(root, 1) == MappedNodeStore.NULL) {
+                root = store.read(root, 0);
+                shift -= bitPerEdge;
+            }
+            pushHead(new MappedHead(root, shift, tail, head.size - 1));
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает массив, содержащий все значения этого персистентного массива в правильной последовательности.
+     *
+     * @return массив значений
+     */
+    public long[] toLongArray() {
+        MappedHead head = head();
+        long[] result = new long[head.size];
+        int tailOffset = head.tailOffset();
+        for (int leafStart = 0; leafStart < tailOffset; leafStart += width) {
+            long leaf = leafFor(head, leafStart);
+            for (int i = 0; i < width; i++) {
+                result[leafStart + i] = store.read(leaf, i);
+            }
+        }
+        System.arraycopy(head.tail, 0, result, tailOffset, head.tail.length);
+        return result;
+    }
+
+    /**
+     * Массив примитивов не может содержать вложенных персистентных структур.
+     */
+    @Override
+    public void addChildModification(SpecialPersistentData obj) {
+        throw new UnsupportedOperationException("Primitive array cannot contain persistent structures");
+    }
+
+    @Override
+    public void addParent(SpecialPersistentData obj) {
+        this.parent = obj;
+    }
+
+    @Override
+    public SpecialPersistentData getParent() {
+        return parent;
+    }
+
+    /**
+     * Закрывает файл узлов. После закрытия элементы дерева недоступны.
+     */
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    /**
+     * Возвращает строковое представление содержимого массива.
+     *
+     * @return строковое представление массива
+     */
+    @Override
+    public String toString() {
+        return Arrays.toString(toLongArray());
+    }
+
+    /**
+     * Возвращает смещение листа, содержащего элемент index
+     */
+    private long leafFor(MappedHead head, int index) {
+        long node = head.root;
+        for (int level = head.shift; level > 0; level -= bitPerEdge) {
+            node = store.read(node, (index >>> level) & mask);
+        }
+        return node;
+    }
+
+    private long setInPath(long node, int level, int index, long value) {
+        long[] record = store.readRecord(node);
+        if (level == 0) {
+            record[index & mask] = value;
+        } else {
+            int slot = (index >>> level) & mask;
+            record[slot] = setInPath(record[slot], level - bitPerEdge, index, value);
+        }
+        return store.append(record);
+    }
+
+    /**
+     * Дописывает путь из внутренних узлов от уровня level до листа
+     */
+    private long newPath(int level, long leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+        long[] record = new long[width];
+        record[0] = newPath(level - bitPerEdge, leaf);
+        return store.append(record);
+    }
+
+    /**
+     * Копирует путь до позиции листа с последним элементом lastIndex и вставляет в неё лист
+     */
+    private long pushLeaf(long node, int level, int lastIndex, long leaf) {
+        long[] record = store.readRecord(node);
+        int slot = (lastIndex >>> level) & mask;
+        if (level == bitPerEdge) {
+            record[slot] = leaf;
+        } else if (record[slot] != MappedNodeStore.NULL) {
+            record[slot] = pushLeaf(record[slot], level - bitPerEdge, lastIndex, leaf);
+        } else {
+            record[slot] = newPath(level - bitPerEdge, leaf);
+        }
+        return store.append(record);
+    }
+
+    /**
+     * Удаляет лист с элементом lastIndex из поддерева
+     *
+     * @return смещение измененного узла или NULL, если узел опустел
+     */
+    private long popLeaf(long node, int level, int lastIndex) {
+        int slot = (lastIndex >>> level) & mask;
+        long child = MappedNodeStore.NULL;
+        if (level > bitPerEdge) {
+            child = popLeaf(store.read(node, slot), level - bitPerEdge, lastIndex);
+        }
+        if (child == MappedNodeStore.NULL && slot == 0) {
+            return MappedNodeStore.NULL;
+        }
+        long[] record = store.readRecord(node);
+        record[slot] = child;
+        return store.append(record);
+    }
+
+    private MappedHead head() {
+        return history.current().state();
+    }
+
+    private void pushHead(MappedHead head) {
+        history.record(head);
+        if (parent != null) {
+            parent.addChildModification(this);
+        }
+    }
+
+    private void checkIndex(MappedHead head, int index) {
+        if ((index < 0) || (index >= head.size)) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Версия массива: смещение корня в файле, уровень корня, хвост и размер
+     */
+    private record MappedHead(long root, int shift, long[] tail, int size) {
+        int tailOffset() {
+            return size - tail.length;
+        }
+    }
+}
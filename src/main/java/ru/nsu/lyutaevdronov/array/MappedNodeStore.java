@@ -0,0 +1,134 @@
+package ru.nsu.lyutaevdronov.array;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Хранилище неизменяемых узлов дерева в файле, отображенном в память.
+ * <p>
+ * Узел - запись из width чисел long: значения для листа, смещения потомков для внутреннего узла.
+ * Записи только добавляются в конец файла и никогда не изменяются, поэтому новые версии
+ * дописывают скопированный путь, а старые продолжают читаться по своим смещениям.
+ * Файл отображается сегментами фиксированного размера, кратного размеру записи,
+ * поэтому запись никогда не пересекает границу сегмента.
+ * </p>
+ * <p>
+ * Первая запись файла - заголовок, поэтому смещение 0 означает отсутствие потомка.
+ * </p>
+ */
+final class MappedNodeStore implements Closeable {
+    static final long NULL = 0;
+
+    private static final long MAGIC = 0x5044534d41505031L;
+    private static final int SEGMENT_SIZE = 1 << 24;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int recordSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    /**
+     * Смещение следующей записи
+     */
+    private long end;
+    private boolean closed;
+
+    MappedNodeStore(Path path, int width) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.width = width;
+        this.recordSize = width * Long.BYTES;
+
+        long[] header = new long[width];
+        header[0] = MAGIC;
+        header[1] = width;
+        append(header);
+    }
+
+    /**
+     * Дописывает запись в конец файла.
+     *
+     * @param values width чисел записи
+     * @return смещение записи
+     */
+    long append(long[] values) {
+        long offset = end;
+        MappedByteBuffer segment = segment(offset);
+        int position = (int) (offset % SEGMENT_SIZE);
+        for (int i = 0; i < width; i++) {
+            segment.putLong(position + i * Long.BYTES, values[i]);
+        }
+        end += recordSize;
+        return offset;
+    }
+
+    /**
+     * Возвращает число в указанной позиции записи.
+     *
+     * @param offset смещение записи
+     * @param slot   позиция в записи
+     */
+    long read(long offset, int slot) {
+        return segment(offset).getLong((int) (offset % SEGMENT_SIZE) + slot * Long.BYTES);
+    }
+
+    /**
+     * Возвращает копию записи, которую можно изменить и дописать как новую запись.
+     *
+     * @param offset смещение записи
+     */
+    long[] readRecord(long offset) {
+        long[] values = new long[width];
+        MappedByteBuffer segment = segment(offset);
+        int position = (int) (offset % SEGMENT_SIZE);
+        for (int i = 0; i < width; i++) {
+            values[i] = segment.getLong(position + i * Long.BYTES);
+        }
+        return values;
+    }
+
+    /**
+     * Возвращает размер записанных данных в байтах.
+     */
+    long size() {
+        return end;
+    }
+
+    /**
+     * Обрезает файл до записанных данных и закрывает его.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        segments.clear();
+        try {
+            channel.truncate(end);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        if (closed) {
+            throw new IllegalStateException("Node store is closed");
+        }
+        int index = (int) (offset / SEGMENT_SIZE);
+        try {
+            while (segments.size() <= index) {
+                long start = (long) segments.size() * SEGMENT_SIZE;
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_SIZE));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return segments.get(index);
+    }
+}
@@ -0,0 +1,190 @@
+package ru.nsu.lyutaevdronov.array;
+
+import ru.nsu.lyutaevdronov.common.Version;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Оценка памяти, занимаемой версиями персистентных массивов.
+ * <p>
+ * Узлы и хвосты, общие для нескольких версий, учитываются один раз: обход запоминает
+ * посещенные объекты по ссылке и не спускается в уже посещенные поддеревья. Элементы массивов не учитываются.
+ * </p>
+ */
+public final class MemoryEstimate {
+    /**
+     * Размер объекта HeadArray: заголовок, ссылки root, tail и поля shift, size
+     */
+    private static final long HEAD_SIZE = 32;
+
+    private MemoryEstimate() {
+    }
+
+    /**
+     * Возвращает оценку памяти, занимаемой указанными версиями.
+     *
+     * @param heads версии массивов
+     * @return размер в байтах
+     */
+    public static long of(Collection<? extends HeadArray<?>> heads) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        long size = 0;
+        for (HeadArray<?> head : heads) {
+            if (!visited.add(head)) {
+                continue;
+            }
+            size += HEAD_SIZE;
+            if (visited.add(head.getTail())) {
+                size += BTreeNode.arraySize(head.getTail().length);
+            }
+            size += nodeSize(head.getRoot(), visited);
+        }
+        return size;
+    }
+
+    /**
+     * Анализирует совместное использование узлов версиями.
+     * <p>
+     * Версии обходятся по возрастанию номера. Каждый узел посещается один раз: размеры поддеревьев
+     * внутренних узлов запоминаются по ссылке, поэтому размер версии без учета общих узлов считается
+     * без повторного обхода общих поддеревьев, и анализ линеен по количеству различных узлов.
+     * </p>
+     *
+     * @param versions версии в порядке возрастания номера
+     * @param heads    версии массивов, из которых состоит состояние версии
+     * @param <S>      тип состояния версии
+     * @return отчет об использовании памяти
+     */
+    public static <S> Report analyze(List<Version<S>> versions,
+                                     Function<? super S, ? extends Collection<? extends HeadArray<?>>> heads) {
+        Analyzer analyzer = new Analyzer();
+        List<VersionFootprint> footprints = new ArrayList<>(versions.size());
+        for (Version<S> version : versions) {
+            footprints.add(analyzer.version(version.id(), heads.apply(version.state())));
+        }
+        return new Report(analyzer.distinctNodes, analyzer.totalNodes, analyzer.retainedBytes, analyzer.totalBytes,
+                Collections.unmodifiableList(footprints));
+    }
+
+    private static long nodeSize(BTreeNode<?> node, Set<Object> visited) {
+        if (!visited.add(node)) {
+            return 0;
+        }
+
+        long size = node.shallowSize();
+        if (node instanceof BTreeBranch<?> branch) {
+            for (BTreeNode<?> child : branch.getChilds()) {
+                size += nodeSize(child, visited);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Обход версий с общими для всех версий множествами посещенных объектов
+     */
+    private static final class Analyzer {
+        /**
+         * Количество узлов и размер поддерева для каждого посещенного внутреннего узла
+         */
+        private final Map<BTreeNode<?>, long[]> branches = new IdentityHashMap<>();
+        private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        private long distinctNodes;
+        private long totalNodes;
+        private long retainedBytes;
+        private long totalBytes;
+        /**
+         * Узлы и байты, впервые встреченные в текущей версии
+         */
+        private long addedNodes;
+        private long addedBytes;
+
+        VersionFootprint version(long id, Collection<? extends HeadArray<?>> heads) {
+            addedNodes = 0;
+            addedBytes = 0;
+            long nodes = 0;
+            long bytes = 0;
+            for (HeadArray<?> head : heads) {
+                long[] tree = subtree(head.getRoot());
+                long tailSize = BTreeNode.arraySize(head.getTail().length);
+                nodes += tree[0];
+                bytes += HEAD_SIZE + tailSize + tree[1];
+                if (visited.add(head)) {
+                    addedBytes += HEAD_SIZE;
+                }
+                if (visited.add(head.getTail())) {
+                    addedBytes += tailSize;
+                }
+            }
+            distinctNodes += addedNodes;
+            totalNodes += nodes;
+            retainedBytes += addedBytes;
+            totalBytes += bytes;
+            return new VersionFootprint(id, nodes, bytes, addedNodes, addedBytes);
+        }
+
+        /**
+         * Возвращает количество узлов и размер поддерева, впервые встреченные узлы учитываются в текущей версии
+         */
+        private long[] subtree(BTreeNode<?> node) {
+            if (node instanceof BTreeBranch<?> branch) {
+                long[] known = branches.get(branch);
+                if (known != null) {
+                    return known;
+                }
+                long shallowSize = branch.shallowSize();
+                long[] result = {1, shallowSize};
+                addedNodes++;
+                addedBytes += shallowSize;
+                for (BTreeNode<?> child : branch.getChilds()) {
+                    long[] childSize = subtree(child);
+                    result[0] += childSize[0];
+                    result[1] += childSize[1];
+                }
+                branches.put(branch, result);
+                return result;
+            }
+
+            long shallowSize = node.shallowSize();
+            if (visited.add(node)) {
+                addedNodes++;
+                addedBytes += shallowSize;
+            }
+            return new long[]{1, shallowSize};
+        }
+    }
+
+    /**
+     * Отчет об использовании памяти версиями. Байты включают узлы, хвосты и объекты версий массивов.
+     *
+     * @param distinctNodes различные узлы всех версий
+     * @param totalNodes    узлы всех версий, если бы версии не разделяли узлы
+     * @param retainedBytes память, занимаемая всеми версиями с учетом общих узлов
+     * @param totalBytes    память, которую заняли бы версии без общих узлов
+     * @param versions      размеры версий в порядке возрастания номера
+     */
+    public record Report(long distinctNodes, long totalNodes, long retainedBytes, long totalBytes,
+                         List<VersionFootprint> versions) {
+        /**
+         * Возвращает, во сколько раз разделение узлов уменьшает их количество.
+         *
+         * @return отношение количества узлов без разделения к количеству различных узлов
+         */
+        public double sharingRatio() {
+            return distinctNodes == 0 ? 1 : (double) totalNodes / distinctNodes;
+        }
+    }
+
+    /**
+     * Размер одной версии
+     *
+     * @param id         номер версии
+     * @param nodes      узлы версии
+     * @param bytes      память, занимаемая версией отдельно от остальных
+     * @param addedNodes узлы, которых нет в версиях с меньшими номерами
+     * @param addedBytes память, добавляемая версией к версиям с меньшими номерами
+     */
+    public record VersionFootprint(long id, long nodes, long bytes, long addedNodes, long addedBytes) {
+    }
+}
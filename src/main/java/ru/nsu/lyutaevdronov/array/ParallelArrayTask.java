@@ -0,0 +1,51 @@
+package ru.nsu.lyutaevdronov.array;
+
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Задача fork/join над элементами Spliterator, например диапазоном версии персистентного массива.
+ * <p>
+ * Spliterator делится (для версии массива - по границам поддеревьев), пока он больше порога.
+ * Неделимые части обрабатываются функцией leafAction, результаты соседних частей объединяются
+ * слева направо функцией combiner.
+ * </p>
+ *
+ * @param <E> тип элементов
+ * @param <R> тип результата
+ */
+@SuppressWarnings("serial")
+final class ParallelArrayTask<E, R> extends RecursiveTask<R> {
+    /**
+     * Количество элементов, которое обрабатывается одной задачей без деления
+     */
+    static final int SEQUENTIAL_THRESHOLD = 1024;
+
+    private final Spliterator<E> spliterator;
+    private final Function<Spliterator<E>, R> leafAction;
+    private final BinaryOperator<R> combiner;
+
+    ParallelArrayTask(Spliterator<E> spliterator,
+                      Function<Spliterator<E>, R> leafAction,
+                      BinaryOperator<R> combiner) {
+        this.spliterator = spliterator;
+        this.leafAction = leafAction;
+        this.combiner = combiner;
+    }
+
+    @Override
+    protected R compute() {
+        if (spliterator.estimateSize() > SEQUENTIAL_THRESHOLD) {
+            Spliterator<E> prefix = spliterator.trySplit();
+            if (prefix != null) {
+                ParallelArrayTask<E, R> left = new ParallelArrayTask<>(prefix, leafAction, combiner);
+                left.fork();
+                R right = compute();
+                return combiner.apply(left.join(), right);
+            }
+        }
+        return leafAction.apply(spliterator);
+    }
+}
@@ -3,24 +3,40 @@ package ru.nsu.lyutaevdronov.array;
 
 import org.jetbrains.annotations.NotNull;
 import ru.nsu.lyutaevdronov.common.AbstractPersistentData;
-import ru.nsu.lyutaevdronov.common.BTreeNode;
+import ru.nsu.lyutaevdronov.common.ConflictResolver;
+import ru.nsu.lyutaevdronov.common.ElementCodec;
+import ru.nsu.lyutaevdronov.common.LogOperation;
+import ru.nsu.lyutaevdronov.common.Metrics;
+import ru.nsu.lyutaevdronov.common.OperationLog;
 import ru.nsu.lyutaevdronov.common.Pair;
+import ru.nsu.lyutaevdronov.common.RetentionPolicy;
+import ru.nsu.lyutaevdronov.common.SnapshotInput;
+import ru.nsu.lyutaevdronov.common.SnapshotOutput;
 import ru.nsu.lyutaevdronov.common.SpecialPersistentData;
+import ru.nsu.lyutaevdronov.common.Version;
+import ru.nsu.lyutaevdronov.common.VersionHistory;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * Persistent массив, который поддерживает undo redo
  */
 public class PersistentArray<E> extends AbstractPersistentData implements List<E> {
     /**
-     * Стек для хранения состояний, изменения к которым могут быть отменены
+     * История версий массива
      */
-    private final Deque<HeadArray<E>> undoStack = new ArrayDeque<>();
-    /**
-     * Стек для хранения состояний, изменения к которым могут быть повторно применены
-     */
-    private final Deque<HeadArray<E>> redoStack = new ArrayDeque<>();
+    private final VersionHistory<HeadArray<E>> history;
     /**
      * Стек для хранения вложенных состояний, которые были добавлены в текущий массив. Этот
      * стек используется для реализации операции undo, чтобы можно было отменить вложенные операции
@@ -38,49 +54,119 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
      */
     private SpecialPersistentData parent;
 
+    private final ArrayTree<E> tree;
+
+    /**
+     * Журнал, в который записываются изменения массива, и кодек элементов для него
+     */
+    private OperationLog operationLog;
+    private ElementCodec<E> logCodec;
+
     public PersistentArray() {
         this(6, 5);
     }
 
+    /**
+     * Высота дерева меняется вместе с размером массива, поэтому maxSize и depth
+     * не ограничивают количество элементов и сохранены для совместимости.
+     */
     public PersistentArray(int maxSize) {
         this((int) Math.ceil(log(maxSize, (int) Math.pow(2, 5))), 5);
     }
 
     public PersistentArray(int depth, int bitPerEdge) {
         super(depth, bitPerEdge);
-        HeadArray<E> head = new HeadArray<>();
-        undoStack.push(head);
-        redoStack.clear();
+        this.tree = new ArrayTree<>(bitPerEdge);
+        this.history = new VersionHistory<>(tree.empty());
     }
 
     public PersistentArray(PersistentArray<E> other) {
         super(other.depth, other.bitPerEdge);
-        this.undoStack.addAll(other.undoStack);
-        this.redoStack.addAll(other.redoStack);
+        this.tree = other.tree;
+        this.history = new VersionHistory<>(other.history);
+    }
+
+    private PersistentArray(int depth, int bitPerEdge, VersionHistory<HeadArray<E>> history) {
+        super(depth, bitPerEdge);
+        this.tree = new ArrayTree<>(bitPerEdge);
+        this.history = history;
     }
 
     @Override
     public void undo() {
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
         if (!insertedUndoStack.isEmpty()) {
             insertedUndoStack.peek().undo();
             insertedRedoStack.push(insertedUndoStack.pop());
         } else {
-            if (!undoStack.isEmpty()) {
-                redoStack.push(undoStack.pop());
-            }
+            history.undo();
         }
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.UNDO, mark);
+        }
+        log(LogOperation.UNDO, OperationLog.Arguments.NONE);
     }
 
     @Override
     public void redo() {
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
         if (!insertedRedoStack.isEmpty()) {
             insertedRedoStack.peek().redo();
             insertedUndoStack.push(insertedRedoStack.pop());
         } else {
-            if (!redoStack.isEmpty()) {
-                undoStack.push(redoStack.pop());
-            }
+            history.redo();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.REDO, mark);
         }
+        log(LogOperation.REDO, OperationLog.Arguments.NONE);
+    }
+
+    /**
+     * Подключает журнал операций: все последующие изменения массива, undo, redo и операции
+     * с ветками записываются в него. Журнал отключается вызовом с null.
+     *
+     * @param log   журнал операций
+     * @param codec кодек элементов
+     */
+    public void attachOperationLog(OperationLog log, ElementCodec<E> codec) {
+        this.operationLog = log;
+        this.logCodec = log == null ? null : Objects.requireNonNull(codec);
+    }
+
+    /**
+     * Применяет к массиву операции из журнала, например после чтения последнего снимка.
+     * Применяемые операции не записываются в подключенный журнал. Политика хранения должна быть
+     * такой же, как при записи журнала, иначе undo может вернуться к другой версии.
+     *
+     * @param file  файл журнала
+     * @param codec кодек элементов
+     * @return количество примененных операций
+     */
+    public int replayOperationLog(Path file, ElementCodec<E> codec) throws IOException {
+        OperationLog attached = operationLog;
+        operationLog = null;
+        try {
+            return OperationLog.replay(file, new ArrayLogReplay<>(this, codec));
+        } finally {
+            operationLog = attached;
+        }
+    }
+
+    private void log(LogOperation operation, OperationLog.Arguments arguments) {
+        if (operationLog != null) {
+            operationLog.append(operation, arguments);
+        }
+    }
+
+    private OperationLog.Arguments elements(Collection<? extends E> c) {
+        ElementCodec<E> codec = logCodec;
+        return out -> {
+            out.writeInt(c.size());
+            for (E element : c) {
+                codec.write(out, element);
+            }
+        };
     }
 
     private void tryParentUndo(E value) {
@@ -122,8 +208,13 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
         return head.getSize();
     }
 
+    /**
+     * Возвращает текущую версию массива.
+     *
+     * @return текущая версия
+     */
     protected HeadArray<E> getCurrentHead() {
-        return this.undoStack.peek();
+        return history.current().state();
     }
 
     private void checkIndex(int index) {
@@ -136,10 +227,6 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
         }
     }
 
-    private boolean isFull(HeadArray<E> head) {
-        return head.getSize() >= maxSize;
-    }
-
     /**
      * Возвращает true, если массив не содержит элементов.
      *
@@ -151,12 +238,229 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
     }
 
     /**
-     * Возвращает количество версий массива.
+     * Возвращает количество хранимых версий массива.
      *
      * @return количество версий массива
      */
     public int getVersionCount() {
-        return undoStack.size() + redoStack.size();
+        return history.size();
+    }
+
+    /**
+     * Возвращает номер текущей версии. Номера возрастают с каждым изменением массива.
+     *
+     * @return номер текущей версии
+     */
+    public long getVersionId() {
+        return history.current().id();
+    }
+
+    /**
+     * Возвращает новый массив, текущая версия которого - хранимая версия с номером versionId.
+     * Версия находится в индексе истории за O(log32 n), текущая версия этого массива не меняется.
+     *
+     * @param versionId номер версии
+     * @return новый массив с одной версией, разделяющий узлы с этой версией
+     * @throws NoSuchElementException если версия не хранится
+     */
+    public PersistentArray<E> checkout(long versionId) {
+        return withVersion(depth, bitPerEdge, history.get(versionId).state());
+    }
+
+    /**
+     * Возвращает имя текущей ветки истории. Изменение после undo начинает новую ветку,
+     * отмененные версии остаются в прежней.
+     *
+     * @return имя текущей ветки
+     */
+    public String getCurrentBranch() {
+        return history.currentBranch();
+    }
+
+    /**
+     * Возвращает имена веток истории в порядке создания.
+     *
+     * @return имена веток
+     */
+    public Set<String> getBranchNames() {
+        return history.branchNames();
+    }
+
+    /**
+     * Создает ветку истории, начинающуюся с текущей версии, и делает её текущей.
+     *
+     * @param name имя ветки
+     * @throws IllegalArgumentException если ветка с таким именем уже есть
+     */
+    public void createBranch(String name) {
+        history.createBranch(name);
+        log(LogOperation.CREATE_BRANCH, out -> out.writeString(name));
+    }
+
+    /**
+     * Переключает массив на версию, на которой была оставлена ветка, за O(1).
+     *
+     * @param name имя ветки
+     * @throws NoSuchElementException если ветки нет
+     */
+    public void switchBranch(String name) {
+        history.switchBranch(name);
+        log(LogOperation.SWITCH_BRANCH, out -> out.writeString(name));
+    }
+
+    public void renameBranch(String name, String newName) {
+        history.renameBranch(name, newName);
+        log(LogOperation.RENAME_BRANCH, out -> {
+            out.writeString(name);
+            out.writeString(newName);
+        });
+    }
+
+    /**
+     * Удаляет ветку истории. Версии и узлы, которые хранила только она, становятся доступны сборщику мусора.
+     *
+     * @param name имя ветки
+     * @throws IllegalStateException если ветка текущая
+     */
+    public void deleteBranch(String name) {
+        history.deleteBranch(name);
+        log(LogOperation.DELETE_BRANCH, out -> out.writeString(name));
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return history.getRetentionPolicy();
+    }
+
+    /**
+     * Устанавливает политику хранения версий. Версии, которые она не оставляет, удаляются сразу
+     * и далее при каждом изменении массива.
+     *
+     * @param retentionPolicy политика хранения версий
+     */
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        history.setRetentionPolicy(retentionPolicy);
+    }
+
+    /**
+     * Возвращает оценку памяти, занимаемой деревьями всех хранимых версий. Узлы, общие для
+     * нескольких версий, учитываются один раз, сами элементы не учитываются.
+     *
+     * @return размер в байтах
+     */
+    public long estimateRetainedBytes() {
+        List<HeadArray<E>> heads = new ArrayList<>();
+        for (Version<HeadArray<E>> version : history.versions()) {
+            heads.add(version.state());
+        }
+        return MemoryEstimate.of(heads);
+    }
+
+    /**
+     * Возвращает диапазоны индексов, элементы в которых различаются в двух хранимых версиях.
+     * <p>
+     * Поддеревья, общие для обеих версий, пропускаются без обхода, поэтому стоимость пропорциональна
+     * количеству изменений, умноженному на высоту дерева, а не размеру массива. Элементы сравниваются
+     * через equals. Если размеры версий различаются, последний диапазон включает элементы,
+     * которые есть только в большей версии.
+     * </p>
+     *
+     * @param versionA номер первой версии
+     * @param versionB номер второй версии
+     * @return упорядоченные непересекающиеся диапазоны изменений
+     * @throws NoSuchElementException если версия не хранится
+     */
+    public Stream<IndexRange> diff(long versionA, long versionB) {
+        return diff(history.get(versionA).state(), history.get(versionB).state());
+    }
+
+    /**
+     * Возвращает диапазоны индексов, элементы в которых различаются в двух версиях массива.
+     *
+     * @param a первая версия
+     * @param b вторая версия
+     * @return упорядоченные непересекающиеся диапазоны изменений
+     * @see #diff(long, long)
+     */
+    public Stream<IndexRange> diff(HeadArray<E> a, HeadArray<E> b) {
+        return ArrayDiff.diff(tree, a, b).stream();
+    }
+
+    /**
+     * Сливает две хранимые версии, полученные из общей версии, и сохраняет результат новой текущей версией.
+     * <p>
+     * Слияние идет по позициям: позиция, измененная только в одной версии, берет её значение,
+     * измененная в обеих по-разному - значение, выбранное resolver. Элементы, добавленные в конец
+     * обеими версиями, попадают в результат друг за другом: сначала левой, затем правой. Вставка
+     * и удаление в середине сдвигают последующие позиции, поэтому конфликтуют с изменениями
+     * другой версии после них.
+     * </p>
+     * <p>
+     * Поддеревья левой версии, которые не менялись в правой, переиспользуются, поэтому стоимость
+     * пропорциональна количеству изменений, умноженному на высоту дерева, а не размеру массива.
+     * В журнал операций записываются номера версий и решения resolver в порядке вызова.
+     * </p>
+     *
+     * @param base     номер общей предыдущей версии
+     * @param left     номер левой версии
+     * @param right    номер правой версии
+     * @param resolver разрешение конфликтующих позиций
+     * @throws NoSuchElementException если версия не хранится
+     * @throws IllegalStateException  если обе версии по-разному изменили конец массива
+     */
+    public void merge(long base, long left, long right, ConflictResolver<Integer, E> resolver) {
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        // Решения записываются в журнал, чтобы повтор не зависел от resolver
+        List<E> resolved = new ArrayList<>();
+        pushHead(merge(history.get(base).state(), history.get(left).state(), history.get(right).state(),
+                (index, baseValue, leftValue, rightValue) -> {
+                    E value = resolver.resolve(index, baseValue, leftValue, rightValue);
+                    resolved.add(value);
+                    return value;
+                }));
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.MERGE, mark);
+        }
+        log(LogOperation.MERGE, out -> {
+            out.writeLong(base);
+            out.writeLong(left);
+            out.writeLong(right);
+            out.writeInt(resolved.size());
+            for (E value : resolved) {
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    logCodec.write(out, value);
+                }
+            }
+        });
+        if (parent != null) {
+            parent.addChildModification(this);
+        }
+    }
+
+    /**
+     * Возвращает результат слияния двух версий массива, полученных из общей версии, не меняя текущую версию.
+     *
+     * @param base     общая предыдущая версия
+     * @param left     левая версия
+     * @param right    правая версия
+     * @param resolver разрешение конфликтующих позиций
+     * @return результат слияния
+     * @throws IllegalStateException если обе версии по-разному изменили конец массива
+     * @see #merge(long, long, long, ConflictResolver)
+     */
+    public HeadArray<E> merge(HeadArray<E> base, HeadArray<E> left, HeadArray<E> right,
+                              ConflictResolver<Integer, E> resolver) {
+        return ArrayMerge.merge(tree, base, left, right, resolver);
+    }
+
+    /**
+     * Анализирует память, занимаемую хранимыми версиями: количество различных узлов и узлов без учета
+     * разделения, размер каждой версии отдельно и память, которую она добавляет к более старым версиям.
+     *
+     * @return отчет об использовании памяти
+     */
+    public MemoryEstimate.Report analyzeMemory() {
+        return MemoryEstimate.analyze(history.versions(), List::of);
     }
 
     /**
@@ -168,21 +472,38 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
      */
     @Override
     public E set(int index, E element) {
-        checkIndex(index);
-
-        E oldElem = get(index);
-
-        // Копируем путь + получаем лист
-        Pair<BTreeNode<E>, Integer> copedNodePath = copyLeafToChange(getCurrentHead(), index);
-        BTreeNode<E> copedNode = copedNodePath.key();
-        int leafIndex = copedNodePath.value();
-        copedNode.getValues().set(leafIndex, element);
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        E oldElem = setQuietly(index, element);
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.SET, mark);
+        }
+        log(LogOperation.SET, out -> {
+            out.writeInt(index);
+            logCodec.write(out, element);
+        });
 
         tryParentUndo(element);
 
         return oldElem;
     }
 
+    /**
+     * Заменяет элемент, не учитывая операцию в метриках, журнале и родительской структуре.
+     * Используется подклассами, которые сами учитывают операцию, частью которой является изменение,
+     * например корзинами ассоциативного массива.
+     *
+     * @param index   индекс заменяемого элемента
+     * @param element элемент, который будет сохранен в указанной позиции
+     * @return заменяемый элемент
+     */
+    protected E setQuietly(int index, E element) {
+        checkIndex(index);
+        HeadArray<E> head = getCurrentHead();
+        E oldElem = get(head, index);
+        pushHead(tree.set(head, index, element));
+        return oldElem;
+    }
+
     /**
      * Возвращает копию массива, в которой заменяет элемент в указанной позиции указанным элементом.
      *
@@ -198,22 +519,109 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
 
     /**
      * Добавление нового элемента в конец массива.
+     * <p>
+     * Элемент попадает в хвост, дерево копируется только когда заполненный хвост
+     * переносится в него целым листом, поэтому добавление стоит амортизированно O(1).
+     * </p>
      *
      * @param element добавляемый элемент
      * @return true если массив изменился в результате вызова
      */
     @Override
     public boolean add(E element) {
-        if (isFull(getCurrentHead())) {
-            throw new IllegalStateException();
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        addQuietly(element);
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.ADD, mark);
         }
-
-        HeadArray<E> newHead = new HeadArray<>(getCurrentHead());
-        undoStack.push(newHead);
-        redoStack.clear();
+        log(LogOperation.ADD, out -> logCodec.write(out, element));
         tryParentUndo(element);
 
-        return add(newHead, element);
+        return true;
+    }
+
+    /**
+     * Добавляет элемент в конец массива, не учитывая операцию, как {@link #setQuietly(int, Object)}.
+     *
+     * @param element добавляемый элемент
+     */
+    protected void addQuietly(E element) {
+        pushHead(tree.append(getCurrentHead(), element));
+    }
+
+    /**
+     * Возвращает новый массив с элементами текущей версии в диапазоне [from, to).
+     * <p>
+     * Стоит O(log n): внутренние узлы диапазона переиспользуются, копируются только пути
+     * к его границам.
+     * </p>
+     *
+     * @param from начало диапазона, включительно
+     * @param to   конец диапазона, не включительно
+     * @return новый массив с одной версией
+     */
+    public PersistentArray<E> slice(int from, int to) {
+        HeadArray<E> head = getCurrentHead();
+        if (from < 0 || to > head.getSize() || from > to) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return withVersion(depth, bitPerEdge, tree.drop(tree.take(head, to), from));
+    }
+
+    /**
+     * Добавляет указанную версию как новую текущую версию массива.
+     * Используется структурами, которые сами хранят версии массива, например ассоциативным массивом.
+     * <p>
+     * Ширина узлов версии проверяется по пути к первому листу за O(log n). В журнал операций
+     * записывается вся версия, поскольку она может не принадлежать истории этого массива.
+     * </p>
+     *
+     * @param head версия массива той же ширины узлов
+     * @throws IllegalArgumentException если ширина узлов версии отличается от ширины узлов массива
+     */
+    public void restore(HeadArray<E> head) {
+        checkNodeWidth(head);
+
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        restoreQuietly(head);
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.RESTORE, mark);
+        }
+        log(LogOperation.RESTORE, out -> HeadArray.codec(logCodec).write(out, head));
+        if (parent != null) {
+            parent.addChildModification(this);
+        }
+    }
+
+    /**
+     * Добавляет версию этого же массива как новую текущую версию без проверки ширины узлов,
+     * не учитывая операцию, как {@link #setQuietly(int, Object)}.
+     *
+     * @param head версия, ранее полученная из этого массива
+     */
+    protected void restoreQuietly(HeadArray<E> head) {
+        pushHead(head);
+    }
+
+    /**
+     * Проверяет, что версия построена с той же шириной узлов: сдвиг корня кратен bitPerEdge,
+     * узлы на пути к первому листу не шире width, и лист лежит на уровне 0
+     */
+    private void checkNodeWidth(HeadArray<E> head) {
+        BTreeNode<E> node = head.getRoot();
+        int level = head.getShift();
+        boolean valid = level % bitPerEdge == 0 && head.getTail().length <= width;
+        while (valid && level > 0 && node instanceof BTreeBranch<E> branch && branch.slotCount() > 0) {
+            valid = branch.slotCount() <= width;
+            node = branch.child(0);
+            level -= bitPerEdge;
+        }
+        valid = valid && node.slotCount() <= width
+                && (node instanceof BTreeLeaf<E> ? level == 0 : node.slotCount() == 0);
+        if (!valid) {
+            throw new IllegalArgumentException("Head must have the same node width");
+        }
     }
 
     /**
@@ -228,12 +636,39 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
         return result;
     }
 
+    /**
+     * Возвращает копию массива, в конец которой добавлены элементы текущей версии other.
+     * <p>
+     * Поддеревья обоих массивов переиспользуются, перестраивается только шов между ними,
+     * поэтому конкатенация стоит O(log n). Массивы с разной шириной узлов не могут разделять узлы,
+     * в этом случае элементы other копируются.
+     * </p>
+     *
+     * @param other присоединяемый массив
+     * @return измененная копия массива
+     */
+    @SuppressWarnings("unchecked")
+    public PersistentArray<E> concat(PersistentArray<? extends E> other) {
+        HeadArray<E> right;
+        if (other.bitPerEdge == bitPerEdge) {
+            right = (HeadArray<E>) other.getCurrentHead();
+        } else {
+            Object[] values = other.toArray();
+            right = new ArrayBuilder<>(tree).addChunk(values, 0, values.length).build();
+        }
+
+        PersistentArray<E> result = new PersistentArray<>(this);
+        result.pushHead(tree.concat(getCurrentHead(), right));
+        return result;
+    }
+
     /**
      * Добавление нового элемента по индексу.
      * <p>
      * Вставляет указанный элемент в указанную позицию в этом массиве (дополнительная операция).
      * Сдвигает элемент, находящийся в данный момент в этой позиции (если есть),
      * и любые последующие элементы вправо (добавляет единицу к их индексам).
+     * Стоит O(log n): префикс и суффикс переиспользуются, перестраивается только шов между ними.
      * </p>
      *
      * @param index   индекс, по которому указанный элемент должен быть вставлен
@@ -242,65 +677,21 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
     @Override
     public void add(int index, E element) {
         checkIndex(index);
-        if (isFull(getCurrentHead())) {
-            throw new IllegalStateException();
-        }
 
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
         HeadArray<E> oldHead = getCurrentHead();
-
-        Pair<BTreeNode<E>, Integer> copedNodeP = copyLeafToMove(oldHead, index);
-        int leafIndex = copedNodeP.value();
-        BTreeNode<E> copedNode = copedNodeP.key();
-        copedNode.getValues().set(leafIndex, element);
-
-        HeadArray<E> newHead = getCurrentHead();
-        for (int i = index; i < oldHead.getSize(); i++) {
-            add(newHead, get(oldHead, i));
+        HeadArray<E> prefix = tree.append(tree.take(oldHead, index), element);
+        pushHead(tree.concat(prefix, tree.drop(oldHead, index)));
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.INSERT, mark);
         }
+        log(LogOperation.INSERT, out -> {
+            out.writeInt(index);
+            logCodec.write(out, element);
+        });
         tryParentUndo(element);
     }
 
-    private boolean add(HeadArray<E> head, E newElement) {
-        add(head).getValues().add(newElement);
-
-        return true;
-    }
-
-    private BTreeNode<E> add(HeadArray<E> head) {
-        if (isFull(head)) {
-            throw new IllegalStateException();
-        }
-
-        head.setSize(head.getSize() + 1);
-        BTreeNode<E> currentNode = head.getRoot();
-        for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
-            int widthIndex = ((head.getSize() - 1) >> level) & mask;
-            BTreeNode<E> tmp;
-            BTreeNode<E> newNode;
-
-            if (currentNode.getChilds() == null) {
-                currentNode.setChilds(new ArrayList<>());
-                newNode = BTreeNode.emptyNode();
-                currentNode.getChilds().add(newNode);
-            } else {
-                if (widthIndex == currentNode.getChilds().size()) {
-                    newNode = BTreeNode.emptyNode();
-                    currentNode.getChilds().add(newNode);
-                } else {
-                    tmp = currentNode.getChilds().get(widthIndex);
-                    newNode = BTreeNode.of(tmp);
-                    currentNode.getChilds().set(widthIndex, newNode);
-                }
-            }
-            currentNode = newNode;
-        }
-
-        if (currentNode.getValues() == null) {
-            currentNode.setValues(new ArrayList<>());
-        }
-        return currentNode;
-    }
-
     /**
      * Удаляет последний элемент массива.
      *
@@ -311,33 +702,14 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
             throw new NoSuchElementException("Array is empty");
         }
 
-        HeadArray<E> newHead = new HeadArray<>(getCurrentHead(), -1);
-        undoStack.push(newHead);
-        redoStack.clear();
-        LinkedList<Pair<BTreeNode<E>, Integer>> path = new LinkedList<>();
-        path.add(new Pair<>(newHead.getRoot(), 0));
-        for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
-            int index = (newHead.getSize() >> level) & mask;
-            BTreeNode<E> tmp;
-            BTreeNode<E> newNode;
-            tmp = path.getLast().key().getChilds().get(index);
-            newNode = BTreeNode.of(tmp);
-            path.getLast().key().getChilds().set(index, newNode);
-            path.add(new Pair<>(newNode, index));
-        }
-
-        int index = newHead.getSize() & mask;
-        E result = path.getLast().key().getValues().remove(index);
-
-        // удаляем с конца ноды на пути к последнему элементу, если в них нет ни значений ни дочерних узлов
-        for (int i = path.size() - 1; i >= 1; i--) {
-            Pair<BTreeNode<E>, Integer> elem = path.get(i);
-            if (elem.key().isEmpty()) {
-                path.get(i - 1).key().getChilds().remove((int) elem.value());
-            } else {
-                break;
-            }
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        HeadArray<E> head = getCurrentHead();
+        E result = get(head, head.getSize() - 1);
+        pushHead(tree.take(head, head.getSize() - 1));
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.POP, mark);
         }
+        log(LogOperation.POP, OperationLog.Arguments.NONE);
 
         return result;
     }
@@ -347,7 +719,7 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
      * <p>
      * Удаляет элемент в указанной позиции в этом массиве.
      * Сдвигает любые последующие элементы влево (вычитает единицу из их индексов).
-     * Возвращает элемент, который был удален из массива.
+     * Возвращает элемент, который был удален из массива. Стоит O(log n), как и вставка по индексу.
      * </p>
      *
      * @param index индекс удаляемого элемента
@@ -355,91 +727,299 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
      */
     @Override
     public E remove(int index) {
-        checkIndex(index);
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        E result = removeQuietly(index);
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.REMOVE, mark);
+        }
+        log(LogOperation.REMOVE, out -> out.writeInt(index));
 
-        E result = get(index);
+        return result;
+    }
 
+    /**
+     * Удаляет элемент по индексу, не учитывая операцию, как {@link #setQuietly(int, Object)}.
+     *
+     * @param index индекс удаляемого элемента
+     * @return удаленный элемент
+     */
+    protected E removeQuietly(int index) {
+        checkIndex(index);
         HeadArray<E> oldHead = getCurrentHead();
-        HeadArray<E> newHead;
-
-        if (index == 0) {
-            newHead = new HeadArray<>();
-            undoStack.push(newHead);
-            redoStack.clear();
-        } else {
-            Pair<BTreeNode<E>, Integer> copedNodeP = copyLeafToMove(oldHead, index);
-            int leafIndex = copedNodeP.value();
-            BTreeNode<E> copedNode = copedNodeP.key();
-            copedNode.getValues().remove(leafIndex);
+        E result = get(oldHead, index);
+        pushHead(tree.concat(tree.take(oldHead, index), tree.drop(oldHead, index + 1)));
+        return result;
+    }
 
-            newHead = getCurrentHead();
-            newHead.setSize(newHead.getSize() - 1);
+    /**
+     * Удаляет все элементы из этого массива.
+     * Массив будет пуст после возврата этого вызова.
+     */
+    @Override
+    public void clear() {
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        clearQuietly();
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.CLEAR, mark);
         }
+        log(LogOperation.CLEAR, OperationLog.Arguments.NONE);
+    }
+
+    /**
+     * Удаляет все элементы, не учитывая операцию, как {@link #setQuietly(int, Object)}.
+     */
+    protected void clearQuietly() {
+        pushHead(tree.empty());
+    }
+
+    /**
+     * Возвращает неизменяемое представление текущей версии массива за O(1).
+     * <p>
+     * Представление не меняется при последующих изменениях, undo и redo массива и не копирует
+     * элементы, поэтому его можно передать другим потокам вместо копии из toArray().
+     * </p>
+     *
+     * @return неизменяемое представление текущей версии
+     */
+    public Snapshot<E> snapshot() {
+        return new Snapshot<>(tree, depth, bitPerEdge, getCurrentHead());
+    }
+
+    /**
+     * Возвращает транзиентную версию массива для пакетных изменений.
+     * <p>
+     * Все изменения, сделанные через неё, попадают в массив одной версией при вызове
+     * {@link Transient#persistent()}.
+     * </p>
+     *
+     * @return транзиентная версия текущего состояния массива
+     */
+    public Transient<E> asTransient() {
+        return new Transient<>(this, getCurrentHead());
+    }
+
+    /**
+     * Выполняет пакетные изменения над транзиентной версией массива и сохраняет их одной версией.
+     *
+     * @param mutations изменения, применяемые к транзиентной версии
+     * @return этот массив
+     */
+    public PersistentArray<E> withMutations(Consumer<Transient<E>> mutations) {
+        Transient<E> transientArray = asTransient();
+        mutations.accept(transientArray);
+        transientArray.persistent();
+        return this;
+    }
 
-        for (int i = index + 1; i < oldHead.getSize(); i++) {
-            add(newHead, get(oldHead, i));
+    /**
+     * Создает массив из элементов потока одной версией.
+     * Для параллельного потока поддеревья строятся параллельно, см. {@link #from(Spliterator)}.
+     *
+     * @param stream поток элементов
+     * @return новый массив с одной версией
+     */
+    public static <E> PersistentArray<E> from(Stream<? extends E> stream) {
+        if (stream.isParallel()) {
+            return from(stream.spliterator());
         }
 
+        PersistentArray<E> result = new PersistentArray<>();
+        ArrayBuilder<E> builder = new ArrayBuilder<>(result.tree);
+        stream.forEachOrdered(element -> builder.add(result.adopt(element)));
+        result.pushHead(builder.build());
         return result;
     }
 
     /**
-     * Удаляет все элементы из этого массива.
-     * Массив будет пуст после возврата этого вызова.
+     * Создает массив из элементов Spliterator одной версией.
+     * <p>
+     * Spliterator делится задачами fork/join в общем пуле, каждая задача собирает поддерево из своей части
+     * снизу вверх, поддеревья соседних частей соединяются конкатенацией.
+     * </p>
+     *
+     * @param spliterator источник элементов
+     * @return новый массив с одной версией
      */
-    @Override
-    public void clear() {
-        HeadArray<E> head = new HeadArray<>();
-        undoStack.push(head);
-        redoStack.clear();
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentArray<E> from(Spliterator<? extends E> spliterator) {
+        PersistentArray<E> result = new PersistentArray<>();
+        ArrayTree<E> resultTree = result.tree;
+        HeadArray<E> head = ForkJoinPool.commonPool().invoke(new ParallelArrayTask<E, HeadArray<E>>(
+                (Spliterator<E>) spliterator,
+                part -> {
+                    ArrayBuilder<E> builder = new ArrayBuilder<>(resultTree);
+                    part.forEachRemaining(element -> builder.add(result.adopt(element)));
+                    return builder.build();
+                },
+                resultTree::concat));
+        result.pushHead(head);
+        return result;
+    }
+
+    /**
+     * Возвращает новый массив из результатов применения mapper к элементам текущей версии.
+     * <p>
+     * Версия обходится задачами fork/join в общем пуле, разделенными по границам поддеревьев.
+     * Каждая задача отображает свои листы в куски результата, из которых дерево нового массива
+     * собирается снизу вверх. Результат записывается в новый массив одной версией.
+     * </p>
+     *
+     * @param mapper функция без побочных эффектов, может вызываться из разных потоков
+     * @return новый массив той же глубины и ширины
+     */
+    @SuppressWarnings("unchecked")
+    public <R> PersistentArray<R> parallelMap(Function<? super E, ? extends R> mapper) {
+        PersistentArray<R> result = new PersistentArray<>(depth, bitPerEdge);
+        List<Object[]> chunks = invokeParallel(spliterator -> {
+            List<Object[]> mappedChunks = new ArrayList<>();
+            spliterator.forEachChunk((values, from, to) -> {
+                Object[] mapped = new Object[to - from];
+                for (int i = from; i < to; i++) {
+                    mapped[i - from] = result.adopt(mapper.apply((E) values[i]));
+                }
+                mappedChunks.add(mapped);
+            });
+            return mappedChunks;
+        }, PersistentArray::joinChunks);
+        result.pushHead(new ArrayBuilder<>(result.tree).addChunks(chunks).build());
+        return result;
+    }
+
+    /**
+     * Возвращает новый массив из элементов текущей версии, удовлетворяющих predicate, в исходном порядке.
+     * Выполняется так же, как {@link #parallelMap(Function)}.
+     *
+     * @param predicate условие без побочных эффектов, может вызываться из разных потоков
+     * @return новый массив той же глубины и ширины
+     */
+    @SuppressWarnings("unchecked")
+    public PersistentArray<E> parallelFilter(Predicate<? super E> predicate) {
+        PersistentArray<E> result = new PersistentArray<>(depth, bitPerEdge);
+        List<Object[]> chunks = invokeParallel(spliterator -> {
+            List<Object[]> keptChunks = new ArrayList<>();
+            spliterator.forEachChunk((values, from, to) -> {
+                Object[] kept = new Object[to - from];
+                int count = 0;
+                for (int i = from; i < to; i++) {
+                    if (predicate.test((E) values[i])) {
+                        kept[count++] = result.adopt((E) values[i]);
+                    }
+                }
+                if (count > 0) {
+                    keptChunks.add(count == kept.length ? kept : Arrays.copyOf(kept, count));
+                }
+            });
+            return keptChunks;
+        }, PersistentArray::joinChunks);
+        result.pushHead(new ArrayBuilder<>(result.tree).addChunks(chunks).build());
+        return result;
     }
 
     /**
-     * Копируем все ноды на пути до нужного индекса, остальные переиспользуются
-     * Для операций, изменения элемента по индексу
+     * Сворачивает элементы текущей версии параллельно.
+     *
+     * @param identity    нейтральный элемент accumulator
+     * @param accumulator ассоциативная функция без побочных эффектов
+     * @return результат свертки
      */
-    private Pair<BTreeNode<E>, Integer> copyLeafToChange(HeadArray<E> head, int index) {
-        HeadArray<E> newHead = new HeadArray<>(head);
-        undoStack.push(newHead);
-        redoStack.clear();
+    public E parallelReduce(E identity, BinaryOperator<E> accumulator) {
+        return parallelReduce(identity, accumulator, accumulator);
+    }
 
-        BTreeNode<E> currentNode = newHead.getRoot();
-        for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
-            int widthIndex = (index >> level) & mask;
-            BTreeNode<E> tmp;
-            BTreeNode<E> newNode;
-            tmp = currentNode.getChilds().get(widthIndex);
-            newNode = BTreeNode.of(tmp);
-            currentNode.getChilds().set(widthIndex, newNode);
-            currentNode = newNode;
+    /**
+     * Сворачивает элементы текущей версии параллельно: части массива сворачиваются accumulator,
+     * результаты соседних частей объединяются combiner.
+     *
+     * @param identity    нейтральный элемент combiner
+     * @param accumulator функция без побочных эффектов, добавляющая элемент к частичному результату
+     * @param combiner    ассоциативная функция, объединяющая частичные результаты
+     * @return результат свертки
+     */
+    public <R> R parallelReduce(R identity, BiFunction<R, ? super E, R> accumulator, BinaryOperator<R> combiner) {
+        return invokeParallel(spliterator -> {
+            R partial = identity;
+            while (spliterator.hasNext()) {
+                partial = accumulator.apply(partial, spliterator.next());
+            }
+            return partial;
+        }, combiner);
+    }
+
+    /**
+     * Выполняет action для каждого элемента текущей версии параллельно, порядок вызовов не определен.
+     *
+     * @param action действие, может вызываться из разных потоков
+     */
+    public void parallelForEach(Consumer<? super E> action) {
+        invokeParallel(spliterator -> {
+            spliterator.forEachRemaining(action);
+            return null;
+        }, (left, right) -> null);
+    }
+
+    private <R> R invokeParallel(Function<PersistentArraySpliterator<E>, R> leafAction, BinaryOperator<R> combiner) {
+        // Части версии массива получаются делением PersistentArraySpliterator и имеют тот же тип
+        return ForkJoinPool.commonPool().invoke(new ParallelArrayTask<>(spliterator(getCurrentHead()),
+                spliterator -> leafAction.apply((PersistentArraySpliterator<E>) spliterator), combiner));
+    }
+
+    private static List<Object[]> joinChunks(List<Object[]> left, List<Object[]> right) {
+        left.addAll(right);
+        return left;
+    }
+
+    private <T> T adopt(T element) {
+        if (element instanceof SpecialPersistentData persistentData) {
+            persistentData.addParent(this);
         }
+        return element;
+    }
 
-        return new Pair<>(currentNode, index & mask);
+    /**
+     * Записывает массив со всеми хранимыми версиями и ветками в бинарный снимок.
+     * <p>
+     * Узлы, общие для нескольких версий, записываются один раз, поэтому размер снимка
+     * пропорционален памяти, занимаемой историей, а не сумме размеров версий.
+     * Политика хранения и вложенные структуры не записываются.
+     * </p>
+     *
+     * @param path  путь к файлу снимка, существующий файл перезаписывается
+     * @param codec кодек элементов
+     */
+    public void writeSnapshot(Path path, ElementCodec<E> codec) throws IOException {
+        try (SnapshotOutput out = new SnapshotOutput(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            out.writeInt(depth);
+            out.writeInt(bitPerEdge);
+            history.writeTo(out, HeadArray.codec(codec));
+        }
     }
 
     /**
-     * Копирует ноды следующим образом:
-     * элементы "до нужного индекса" переиспользуются,
-     * "после нужного индекса" пропускаются
-     * Для операций, требующих сдвига всех элементов (вставка/удаление в середину)
+     * Читает массив из снимка, записанного {@link #writeSnapshot}. Версии восстановленного массива
+     * разделяют узлы так же, как версии исходного.
+     *
+     * @param path  путь к файлу снимка
+     * @param codec кодек элементов
+     * @return массив с теми же версиями, ветками и текущей версией
      */
-    private Pair<BTreeNode<E>, Integer> copyLeafToMove(HeadArray<E> oldHead, int index) {
-        int level = bitPerEdge * (depth - 1);
-        HeadArray<E> newHead = new HeadArray<>(oldHead, index + 1, (index >> level) & mask);
-        undoStack.push(newHead);
-        redoStack.clear();
-        BTreeNode<E> currentNode = newHead.getRoot();
-        for (; level > 0; level -= bitPerEdge) {
-            int widthIndex = (index >> level) & mask;
-            int widthIndexNext = (index >> (level - bitPerEdge)) & mask;
-            BTreeNode<E> tmp;
-            BTreeNode<E> newNode;
-            tmp = currentNode.getChilds().get(widthIndex);
-            newNode = BTreeNode.of(tmp, widthIndexNext);
-            currentNode.getChilds().set(widthIndex, newNode);
-            currentNode = newNode;
+    public static <E> PersistentArray<E> readSnapshot(Path path, ElementCodec<E> codec) throws IOException {
+        try (SnapshotInput in = new SnapshotInput(FileChannel.open(path, StandardOpenOption.READ))) {
+            int depth = in.readInt();
+            int bitPerEdge = in.readInt();
+            return new PersistentArray<>(depth, bitPerEdge, VersionHistory.readFrom(in, HeadArray.codec(codec)));
         }
-        return new Pair<>(currentNode, index & mask);
+    }
+
+    /**
+     * Создает массив, единственная версия которого - head
+     */
+    static <E> PersistentArray<E> withVersion(int depth, int bitPerEdge, HeadArray<E> head) {
+        return new PersistentArray<>(depth, bitPerEdge, new VersionHistory<>(head));
+    }
+
+    private void pushHead(HeadArray<E> head) {
+        history.record(head);
     }
 
     /**
@@ -453,21 +1033,28 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
         return get(getCurrentHead(), index);
     }
 
-    private E get(HeadArray<E> head, int index) {
-        checkIndex(head, index);
-        return getLeaf(head, index).getValues().get(index & mask);
+    /**
+     * Возвращает элемент в указанной позиции хранимой версии, не меняя текущую версию.
+     *
+     * @param versionId номер версии
+     * @param index     индекс возвращаемого элемента
+     * @return элемент в указанной позиции версии
+     * @throws NoSuchElementException если версия не хранится
+     */
+    public E get(long versionId, int index) {
+        return get(history.get(versionId).state(), index);
     }
 
-    private BTreeNode<E> getLeaf(HeadArray<E> head, int index) {
+    /**
+     * Возвращает элемент в указанной позиции указанной версии массива.
+     *
+     * @param head  версия массива
+     * @param index индекс возвращаемого элемента
+     * @return элемент в указанной позиции версии
+     */
+    public E get(HeadArray<E> head, int index) {
         checkIndex(head, index);
-        // 0101 0111 0100 1010 1010 1001
-        BTreeNode<E> node = head.getRoot();
-        for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
-            int widthIndex = (index >> level) & mask;
-            node = node.getChilds().get(widthIndex);
-        }
-
-        return node;
+        return tree.get(head, index);
     }
 
     /**
@@ -499,9 +1086,8 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
 
     private Object[] toArray(HeadArray<E> head) {
         Object[] objects = new Object[head.getSize()];
-        for (int i = 0; i < objects.length; i++) {
-            objects[i] = this.get(head, i);
-        }
+        int[] index = {0};
+        spliterator(head).forEachRemaining(element -> objects[index[0]++] = element);
         return objects;
     }
 
@@ -520,14 +1106,70 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
         return false;
     }
 
+    /**
+     * Добавляет все элементы коллекции в конец массива одной версией.
+     * <p>
+     * Элементы раскладываются по целым листам, дерево из них собирается снизу вверх
+     * и присоединяется к текущей версии конкатенацией.
+     * </p>
+     *
+     * @param c коллекция добавляемых элементов
+     * @return true если массив изменился в результате вызова
+     */
     @Override
     public boolean addAll(Collection<? extends E> c) {
-        return false;
+        HeadArray<E> added = buildHead(c);
+        if (added.getSize() == 0) {
+            return false;
+        }
+
+        pushHead(tree.concat(getCurrentHead(), added));
+        log(LogOperation.ADD_ALL, elements(c));
+        adoptAll(c);
+        return true;
     }
 
+    /**
+     * Вставляет все элементы коллекции по индексу одной версией, сдвигая последующие элементы вправо.
+     *
+     * @param index индекс, по которому должен быть вставлен первый элемент коллекции
+     * @param c     коллекция вставляемых элементов
+     * @return true если массив изменился в результате вызова
+     */
     @Override
     public boolean addAll(int index, Collection<? extends E> c) {
-        return false;
+        checkIndex(index);
+        HeadArray<E> added = buildHead(c);
+        if (added.getSize() == 0) {
+            return false;
+        }
+
+        HeadArray<E> oldHead = getCurrentHead();
+        HeadArray<E> prefix = tree.concat(tree.take(oldHead, index), added);
+        pushHead(tree.concat(prefix, tree.drop(oldHead, index)));
+        if (operationLog != null) {
+            OperationLog.Arguments arguments = elements(c);
+            log(LogOperation.INSERT_ALL, out -> {
+                out.writeInt(index);
+                arguments.write(out);
+            });
+        }
+        adoptAll(c);
+        return true;
+    }
+
+    private HeadArray<E> buildHead(Collection<? extends E> c) {
+        Object[] values = c.toArray();
+        return new ArrayBuilder<>(tree).addChunk(values, 0, values.length).build();
+    }
+
+    private void adoptAll(Collection<? extends E> c) {
+        for (E element : c) {
+            adopt(element);
+        }
+        if (parent != null) {
+            parent.addChildModification(this);
+        }
     }
 
     @Override
@@ -565,9 +1207,17 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
         return null;
     }
 
+    /**
+     * Возвращает массив с элементами текущей версии в диапазоне [fromIndex, toIndex), см. {@link #slice(int, int)}.
+     * Изменения возвращенного массива не отражаются в этом массиве и наоборот.
+     *
+     * @param fromIndex начало диапазона, включительно
+     * @param toIndex   конец диапазона, не включительно
+     * @return массив, разделяющий узлы с этим массивом
+     */
     @Override
     public List<E> subList(int fromIndex, int toIndex) {
-        return null;
+        return slice(fromIndex, toIndex);
     }
 
     @Override
@@ -575,11 +1225,313 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
         return new PersistentArrayIterator<>();
     }
 
+    /**
+     * Возвращает Spliterator над текущей версией массива.
+     * <p>
+     * Последующие изменения массива не влияют на обход. Spliterator делится по границам поддеревьев,
+     * поэтому подходит для параллельных потоков.
+     * </p>
+     *
+     * @return Spliterator над текущей версией массива
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        return spliterator(getCurrentHead());
+    }
+
+    private PersistentArraySpliterator<E> spliterator(HeadArray<E> head) {
+        return new PersistentArraySpliterator<>(tree, head, 0, head.getSize());
+    }
+
+    /**
+     * Неизменяемое представление одной версии персистентного массива.
+     * <p>
+     * Хранит только версию, узлы которой больше не изменяются, поэтому чтение не требует
+     * блокировок, а все поля неизменяемы и представление можно безопасно передавать между потоками.
+     * Изменяющие методы списка выбрасывают UnsupportedOperationException.
+     * </p>
+     *
+     * @param <E> тип элементов
+     */
+    public static final class Snapshot<E> extends AbstractList<E> implements RandomAccess {
+        private final ArrayTree<E> tree;
+        private final int depth;
+        private final int bitPerEdge;
+        private final HeadArray<E> head;
+
+        Snapshot(ArrayTree<E> tree, int depth, int bitPerEdge, HeadArray<E> head) {
+            this.tree = tree;
+            this.depth = depth;
+            this.bitPerEdge = bitPerEdge;
+            this.head = head;
+        }
+
+        @Override
+        public E get(int index) {
+            if ((index < 0) || (index >= head.getSize())) {
+                throw new IndexOutOfBoundsException();
+            }
+            return tree.get(head, index);
+        }
+
+        @Override
+        public int size() {
+            return head.getSize();
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return Spliterators.iterator(spliterator());
+        }
+
+        @Override
+        public Spliterator<E> spliterator() {
+            return new PersistentArraySpliterator<>(tree, head, 0, head.getSize());
+        }
+
+        /**
+         * Возвращает новый персистентный массив, единственная версия которого - версия представления.
+         *
+         * @return новый массив, разделяющий узлы с представлением
+         */
+        public PersistentArray<E> toPersistentArray() {
+            return withVersion(depth, bitPerEdge, head);
+        }
+    }
+
+    /**
+     * Транзиентная (изменяемая) версия персистентного массива для пакетных изменений.
+     * <p>
+     * Узлы, созданные внутри сессии, помечаются её маркером и дальше изменяются на месте,
+     * узлы предыдущих версий копируются один раз при первом изменении. Не потокобезопасна.
+     * Если текущая версия массива сменилась после вызова asTransient(), persistent() выбрасывает
+     * ConcurrentModificationException: иначе изменения массива, сделанные в это время, были бы потеряны,
+     * а журнал операций при повторе применил бы изменения транзиента поверх них.
+     * </p>
+     *
+     * @param <E> тип элементов
+     */
+    public static final class Transient<E> {
+        private final PersistentArray<E> owner;
+        /**
+         * Версия владельца, от которой начата транзиентная версия
+         */
+        private final HeadArray<E> base;
+        private final ArrayTree<E> tree;
+        private Object edit = new Object();
+        private BTreeNode<E> root;
+        private int shift;
+        /**
+         * Хвост вместимостью width, заполнены первые tailLength элементов
+         */
+        private Object[] tail;
+        private int tailLength;
+        private int size;
+        private boolean modified = false;
+        /**
+         * Изменения для журнала операций владельца, записываются одной записью при сохранении версии.
+         * Равен null, если журнал не подключен.
+         */
+        private final List<OperationLog.Arguments> logged;
+        private final ElementCodec<E> logCodec;
+
+        private Transient(PersistentArray<E> owner, HeadArray<E> head) {
+            this.owner = owner;
+            this.base = head;
+            this.logged = owner.operationLog == null ? null : new ArrayList<>();
+            this.logCodec = owner.logCodec;
+            this.tree = owner.tree;
+            this.root = head.getRoot();
+            this.shift = head.getShift();
+            this.tail = Arrays.copyOf(head.getTail(), owner.width);
+            this.tailLength = head.getTail().length;
+            this.size = head.getSize();
+        }
+
+        /**
+         * Возвращает количество элементов в транзиентной версии.
+         *
+         * @return количество элементов
+         */
+        public int size() {
+            ensureEditable();
+            return size;
+        }
+
+        /**
+         * Возвращает элемент в указанной позиции.
+         *
+         * @param index индекс возвращаемого элемента
+         * @return элемент в указанной позиции
+         */
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            ensureEditable();
+            checkIndex(index);
+            if (index >= tailOffset()) {
+                return (E) tail[index - tailOffset()];
+            }
+            Pair<BTreeLeaf<E>, Integer> leaf = tree.findLeaf(root, shift, index);
+            return leaf.key().get(leaf.value());
+        }
+
+        /**
+         * Добавляет элемент в конец транзиентной версии.
+         *
+         * @param element добавляемый элемент
+         * @return эта транзиентная версия
+         */
+        public Transient<E> add(E element) {
+            ensureEditable();
+            if (tailLength == owner.width) {
+                // Хвост заполнен: переносим его в дерево целым листом
+                Pair<BTreeNode<E>, Integer> newTree = tree.pushLeaf(root, shift, tailOffset(),
+                        tree.leaf(tail, edit), edit);
+                root = newTree.key();
+                shift = newTree.value();
+                tail = new Object[owner.width];
+                tailLength = 0;
+            }
+            tail[tailLength++] = element;
+            size++;
+            adopt(element);
+            logged(out -> {
+                out.writeByte(LogOperation.ADD.ordinal());
+                logCodec.write(out, element);
+            });
+            return this;
+        }
+
+        /**
+         * Заменяет элемент в указанной позиции.
+         *
+         * @param index   индекс заменяемого элемента
+         * @param element элемент, который будет сохранен в указанной позиции
+         * @return заменяемый элемент
+         */
+        public E set(int index, E element) {
+            E oldElem = get(index);
+
+            if (index >= tailOffset()) {
+                tail[index - tailOffset()] = element;
+            } else {
+                root = tree.copyLeafToChange(root, shift, index, element, edit);
+            }
+            adopt(element);
+            logged(out -> {
+                out.writeByte(LogOperation.SET.ordinal());
+                out.writeInt(index);
+                logCodec.write(out, element);
+            });
+            return oldElem;
+        }
+
+        /**
+         * Удаляет последний элемент.
+         *
+         * @return удаленный элемент
+         */
+        @SuppressWarnings("unchecked")
+        public E pop() {
+            ensureEditable();
+            if (size == 0) {
+                throw new NoSuchElementException("Array is empty");
+            }
+
+            E result = (E) tail[--tailLength];
+            tail[tailLength] = null;
+            size--;
+            modified = true;
+            logged(out -> out.writeByte(LogOperation.POP.ordinal()));
+
+            if (tailLength == 0 && size > 0) {
+                // Хвост опустел: последний лист дерева становится хвостом
+                Object[] values = tree.lastLeaf(root, shift).getValues();
+                System.arraycopy(values, 0, tail, 0, values.length);
+                tailLength = values.length;
+
+                root = tree.removeLastLeaf(root, shift, edit);
+                if (root == null) {
+                    root = BTreeNode.emptyNode();
+                    shift = 0;
+                } else {
+                    Pair<BTreeNode<E>, Integer> newTree = tree.shrink(root, shift);
+                    root = newTree.key();
+                    shift = newTree.value();
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Сохраняет все изменения в массиве одной версией. После вызова транзиентная версия
+         * больше не может использоваться.
+         *
+         * @return исходный персистентный массив
+         * @throws ConcurrentModificationException если текущая версия массива сменилась после вызова asTransient()
+         */
+        public PersistentArray<E> persistent() {
+            ensureEditable();
+            edit = null;
+            if (owner.getCurrentHead() != base) {
+                throw new ConcurrentModificationException("Array was modified after asTransient() call");
+            }
+
+            if (modified) {
+                owner.pushHead(new HeadArray<>(root, shift, Arrays.copyOf(tail, tailLength), size));
+                if (logged != null) {
+                    owner.log(LogOperation.BATCH, out -> {
+                        out.writeInt(logged.size());
+                        for (OperationLog.Arguments operation : logged) {
+                            operation.write(out);
+                        }
+                    });
+                }
+                if (owner.parent != null) {
+                    owner.parent.addChildModification(owner);
+                }
+            }
+            return owner;
+        }
+
+        private int tailOffset() {
+            return size - tailLength;
+        }
+
+        private void checkIndex(int index) {
+            if ((index < 0) || (index >= size)) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
+        private void ensureEditable() {
+            if (edit == null) {
+                throw new IllegalStateException("Transient used after persistent() call");
+            }
+        }
+
+        private void logged(OperationLog.Arguments operation) {
+            if (logged != null) {
+                logged.add(operation);
+            }
+        }
+
+        private void adopt(E element) {
+            modified = true;
+            if (element instanceof SpecialPersistentData persistentData) {
+                persistentData.addParent(owner);
+            }
+        }
+    }
+
     /**
      * Итератор над персистентным массивом.
+     * <p>
+     * Обходит версию массива, текущую на момент создания итератора, лист за листом.
+     * </p>
      */
     public class PersistentArrayIterator<T> implements Iterator<T> {
-        int index = 0;
+        private final PersistentArraySpliterator<E> leaves = spliterator(getCurrentHead());
 
         /**
          * Возвращает true, если итерация содержит больше элементов.
@@ -588,7 +1540,7 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
          */
         @Override
         public boolean hasNext() {
-            return index < size();
+            return leaves.hasNext();
         }
 
         /**
@@ -597,8 +1549,9 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
          * @return следующий элемент в итерации
          */
         @Override
+        @SuppressWarnings("unchecked")
         public T next() {
-            return (T) get(index++);
+            return (T) leaves.next();
         }
 
         @Override
@@ -606,4 +1559,4 @@ public class PersistentArray<E> extends AbstractPersistentData implements List<E
             throw new UnsupportedOperationException();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,126 @@
+package ru.nsu.lyutaevdronov.array;
+
+import ru.nsu.lyutaevdronov.common.Pair;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator над одной версией персистентного массива.
+ * <p>
+ * Элементы читаются из массива значений текущего листа, спуск от корня выполняется
+ * один раз на лист. Версия неизменяема, поэтому обход не зависит от последующих изменений массива.
+ * Деление происходит по границам поддеревьев, ближайшим к середине оставшегося диапазона.
+ * </p>
+ *
+ * @param <E> тип элементов
+ */
+final class PersistentArraySpliterator<E> implements Spliterator<E> {
+    private static final int CHARACTERISTICS = SIZED | SUBSIZED | IMMUTABLE | ORDERED;
+
+    private final ArrayTree<E> tree;
+    private final HeadArray<E> head;
+    private int index;
+    private final int end;
+    /**
+     * Значения листа, содержащего элемент index, и индекс первого элемента этого листа
+     */
+    private Object[] leaf;
+    private int leafStart;
+
+    PersistentArraySpliterator(ArrayTree<E> tree, HeadArray<E> head, int from, int to) {
+        this.tree = tree;
+        this.head = head;
+        this.index = from;
+        this.end = to;
+    }
+
+    boolean hasNext() {
+        return index < end;
+    }
+
+    @SuppressWarnings("unchecked")
+    E next() {
+        if (index >= end) {
+            throw new NoSuchElementException();
+        }
+        if (leaf == null || index - leafStart >= leaf.length) {
+            nextLeaf();
+        }
+        return (E) leaf[index++ - leafStart];
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super E> action) {
+        Objects.requireNonNull(action);
+        if (index >= end) {
+            return false;
+        }
+        action.accept(next());
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachRemaining(Consumer<? super E> action) {
+        Objects.requireNonNull(action);
+        forEachChunk((values, from, to) -> {
+            for (int i = from; i < to; i++) {
+                action.accept((E) values[i]);
+            }
+        });
+    }
+
+    /**
+     * Передает оставшиеся элементы кусками: каждый кусок - диапазон массива значений одного листа.
+     * Массивы значений принадлежат дереву и не должны изменяться.
+     */
+    void forEachChunk(ChunkConsumer action) {
+        while (index < end) {
+            if (leaf == null || index - leafStart >= leaf.length) {
+                nextLeaf();
+            }
+            int to = Math.min(end - leafStart, leaf.length);
+            action.accept(leaf, index - leafStart, to);
+            index = leafStart + to;
+        }
+    }
+
+    @Override
+    public PersistentArraySpliterator<E> trySplit() {
+        int split = tree.splitIndex(head, index, end);
+        if (split <= index || split >= end) {
+            return null;
+        }
+        PersistentArraySpliterator<E> prefix = new PersistentArraySpliterator<>(tree, head, index, split);
+        prefix.leaf = leaf;
+        prefix.leafStart = leafStart;
+        index = split;
+        leaf = null;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return CHARACTERISTICS;
+    }
+
+    private void nextLeaf() {
+        Pair<Object[], Integer> found = tree.leafAt(head, index);
+        leaf = found.key();
+        leafStart = found.value();
+    }
+
+    /**
+     * Получатель куска значений листа values[from, to)
+     */
+    @FunctionalInterface
+    interface ChunkConsumer {
+        void accept(Object[] values, int from, int to);
+    }
+}
@@ -0,0 +1,97 @@
+package ru.nsu.lyutaevdronov.array;
+
+import java.util.Arrays;
+
+/**
+ * Persistent массив чисел с плавающей точкой (double), который поддерживает undo redo.
+ * Значения хранятся в листьях double[] без упаковки в Double.
+ */
+public class PersistentDoubleArray extends PrimitivePersistentArray<double[]> {
+    public PersistentDoubleArray() {
+        this(6, 5);
+    }
+
+    public PersistentDoubleArray(int maxSize) {
+        this((int) Math.ceil(log(maxSize, (int) Math.pow(2, 5))), 5);
+    }
+
+    public PersistentDoubleArray(int depth, int bitPerEdge) {
+        super(depth, bitPerEdge, new double[0]);
+    }
+
+    /**
+     * Возвращает значение в указанной позиции в массиве.
+     *
+     * @param index индекс возвращаемого значения
+     * @return значение в указанной позиции в массиве
+     */
+    public double getDouble(int index) {
+        return leafFor(index)[index & mask];
+    }
+
+    /**
+     * Заменяет значение в указанной позиции этого массива указанным значением.
+     *
+     * @param index индекс заменяемого значения
+     * @param value значение, которое будет сохранено в указанной позиции
+     * @return заменяемое значение
+     */
+    public double setDouble(int index, double value) {
+        double oldValue = getDouble(index);
+        copyLeafToChange(index)[index & mask] = value;
+        return oldValue;
+    }
+
+    /**
+     * Добавление нового значения в конец массива.
+     *
+     * @param value добавляемое значение
+     * @return true если массив изменился в результате вызова
+     */
+    public boolean add(double value) {
+        double[] tail = appendSlot();
+        tail[tail.length - 1] = value;
+        return true;
+    }
+
+    /**
+     * Удаляет последнее значение массива.
+     *
+     * @return последнее значение массива
+     */
+    public double popDouble() {
+        checkNotEmpty();
+        double result = getDouble(size() - 1);
+        removeLast();
+        return result;
+    }
+
+    /**
+     * Возвращает массив, содержащий все значения этого персистентного массива в правильной последовательности.
+     *
+     * @return массив значений
+     */
+    public double[] toDoubleArray() {
+        return copyTo(new double[size()]);
+    }
+
+    /**
+     * Возвращает строковое представление содержимого массива.
+     *
+     * @return строковое представление массива
+     */
+    @Override
+    public String toString() {
+        return Arrays.toString(toDoubleArray());
+    }
+
+    @Override
+    protected double[] copyOf(double[] array, int length) {
+        return Arrays.copyOf(array, length);
+    }
+
+    @Override
+    protected int length(double[] array) {
+        return array.length;
+    }
+}
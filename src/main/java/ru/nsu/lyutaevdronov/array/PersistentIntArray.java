@@ -0,0 +1,97 @@
+package ru.nsu.lyutaevdronov.array;
+
+import java.util.Arrays;
+
+/**
+ * Persistent массив целых чисел (int), который поддерживает undo redo.
+ * Значения хранятся в листьях int[] без упаковки в Integer.
+ */
+public class PersistentIntArray extends PrimitivePersistentArray<int[]> {
+    public PersistentIntArray() {
+        this(6, 5);
+    }
+
+    public PersistentIntArray(int maxSize) {
+        this((int) Math.ceil(log(maxSize, (int) Math.pow(2, 5))), 5);
+    }
+
+    public PersistentIntArray(int depth, int bitPerEdge) {
+        super(depth, bitPerEdge, new int[0]);
+    }
+
+    /**
+     * Возвращает значение в указанной позиции в массиве.
+     *
+     * @param index индекс возвращаемого значения
+     * @return значение в указанной позиции в массиве
+     */
+    public int getInt(int index) {
+        return leafFor(index)[index & mask];
+    }
+
+    /**
+     * Заменяет значение в указанной позиции этого массива указанным значением.
+     *
+     * @param index индекс заменяемого значения
+     * @param value значение, которое будет сохранено в указанной позиции
+     * @return заменяемое значение
+     */
+    public int setInt(int index, int value) {
+        int oldValue = getInt(index);
+        copyLeafToChange(index)[index & mask] = value;
+        return oldValue;
+    }
+
+    /**
+     * Добавление нового значения в конец массива.
+     *
+     * @param value добавляемое значение
+     * @return true если массив изменился в результате вызова
+     */
+    public boolean add(int value) {
+        int[] tail = appendSlot();
+        tail[tail.length - 1] = value;
+        return true;
+    }
+
+    /**
+     * Удаляет последнее значение массива.
+     *
+     * @return последнее значение массива
+     */
+    public int popInt() {
+        checkNotEmpty();
+        int result = getInt(size() - 1);
+        removeLast();
+        return result;
+    }
+
+    /**
+     * Возвращает массив, содержащий все значения этого персистентного массива в правильной последовательности.
+     *
+     * @return массив значений
+     */
+    public int[] toIntArray() {
+        return copyTo(new int[size()]);
+    }
+
+    /**
+     * Возвращает строковое представление содержимого массива.
+     *
+     * @return строковое представление массива
+     */
+    @Override
+    public String toString() {
+        return Arrays.toString(toIntArray());
+    }
+
+    @Override
+    protected int[] copyOf(int[] array, int length) {
+        return Arrays.copyOf(array, length);
+    }
+
+    @Override
+    protected int length(int[] array) {
+        return array.length;
+    }
+}
@@ -0,0 +1,97 @@
+package ru.nsu.lyutaevdronov.array;
+
+import java.util.Arrays;
+
+/**
+ * Persistent массив длинных целых чисел (long), который поддерживает undo redo.
+ * Значения хранятся в листьях long[] без упаковки в Long.
+ */
+public class PersistentLongArray extends PrimitivePersistentArray<long[]> {
+    public PersistentLongArray() {
+        this(6, 5);
+    }
+
+    public PersistentLongArray(int maxSize) {
+        this((int) Math.ceil(log(maxSize, (int) Math.pow(2, 5))), 5);
+    }
+
+    public PersistentLongArray(int depth, int bitPerEdge) {
+        super(depth, bitPerEdge, new long[0]);
+    }
+
+    /**
+     * Возвращает значение в указанной позиции в массиве.
+     *
+     * @param index индекс возвращаемого значения
+     * @return значение в указанной позиции в массиве
+     */
+    public long getLong(int index) {
+        return leafFor(index)[index & mask];
+    }
+
+    /**
+     * Заменяет значение в указанной позиции этого массива указанным значением.
+     *
+     * @param index индекс заменяемого значения
+     * @param value значение, которое будет сохранено в указанной позиции
+     * @return заменяемое значение
+     */
+    public long setLong(int index, long value) {
+        long oldValue = getLong(index);
+        copyLeafToChange(index)[index & mask] = value;
+        return oldValue;
+    }
+
+    /**
+     * Добавление нового значения в конец массива.
+     *
+     * @param value добавляемое значение
+     * @return true если массив изменился в результате вызова
+     */
+    public boolean add(long value) {
+        long[] tail = appendSlot();
+        tail[tail.length - 1] = value;
+        return true;
+    }
+
+    /**
+     * Удаляет последнее значение массива.
+     *
+     * @return последнее значение массива
+     */
+    public long popLong() {
+        checkNotEmpty();
+        long result = getLong(size() - 1);
+        removeLast();
+        return result;
+    }
+
+    /**
+     * Возвращает массив, содержащий все значения этого персистентного массива в правильной последовательности.
+     *
+     * @return массив значений
+     */
+    public long[] toLongArray() {
+        return copyTo(new long[size()]);
+    }
+
+    /**
+     * Возвращает строковое представление содержимого массива.
+     *
+     * @return строковое представление массива
+     */
+    @Override
+    public String toString() {
+        return Arrays.toString(toLongArray());
+    }
+
+    @Override
+    protected long[] copyOf(long[] array, int length) {
+        return Arrays.copyOf(array, length);
+    }
+
+    @Override
+    protected int length(long[] array) {
+        return array.length;
+    }
+}
@@ -0,0 +1,322 @@
+package ru.nsu.lyutaevdronov.array;
+
+import ru.nsu.lyutaevdronov.common.AbstractPersistentData;
+import ru.nsu.lyutaevdronov.common.SpecialPersistentData;
+
+import java.util.*;
+
+/**
+ * Persistent массив примитивных значений, который поддерживает undo redo
+ * <p>
+ * Адресация такая же, как у {@link PersistentArray}: depth уровней по bitPerEdge бит индекса и хвост
+ * из последних (не более width) значений. Внутренние узлы хранятся массивами Object[], а листья и хвост
+ * массивами примитивов, поэтому значения не упаковываются.
+ * </p>
+ *
+ * @param <A> тип массива примитивов в листьях (int[], long[], double[])
+ */
+public abstract class PrimitivePersistentArray<A> extends AbstractPersistentData {
+    /**
+     * Стек для хранения состояний, изменения к которым могут быть отменены
+     */
+    private final Deque<PrimitiveHead<A>> undoStack = new ArrayDeque<>();
+    /**
+     * Стек для хранения состояний, изменения к которым могут быть повторно применены
+     */
+    private final Deque<PrimitiveHead<A>> redoStack = new ArrayDeque<>();
+
+    /**
+     * Ссылка на родительскую структуру, если текущий массив является частью её вложенности
+     */
+    private SpecialPersistentData parent;
+
+    protected PrimitivePersistentArray(int depth, int bitPerEdge, A emptyArray) {
+        super(depth, bitPerEdge);
+        undoStack.push(new PrimitiveHead<>(null, emptyArray, 0));
+    }
+
+    @Override
+    public void undo() {
+        // Начальная пустая версия не отменяется
+        if (undoStack.size() > 1) {
+            redoStack.push(undoStack.pop());
+        }
+    }
+
+    @Override
+    public void redo() {
+        if (!redoStack.isEmpty()) {
+            undoStack.push(redoStack.pop());
+        }
+    }
+
+    /**
+     * Возвращает количество элементов в массиве.
+     *
+     * @return количество элементов в массиве
+     */
+    @Override
+    public int size() {
+        return getCurrentHead().size;
+    }
+
+    /**
+     * Возвращает true, если массив не содержит элементов.
+     *
+     * @return true, если массив не содержит элементов
+     */
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Возвращает количество версий массива.
+     *
+     * @return количество версий массива
+     */
+    public int getVersionCount() {
+        return undoStack.size() + redoStack.size();
+    }
+
+    /**
+     * Массив примитивов не может содержать вложенных персистентных структур.
+     */
+    @Override
+    public void addChildModification(SpecialPersistentData obj) {
+        throw new UnsupportedOperationException("Primitive array cannot contain persistent structures");
+    }
+
+    @Override
+    public void addParent(SpecialPersistentData obj) {
+        this.parent = obj;
+    }
+
+    @Override
+    public SpecialPersistentData getParent() {
+        return parent;
+    }
+
+    /**
+     * Возвращает копию массива примитивов указанной длины.
+     */
+    protected abstract A copyOf(A array, int length);
+
+    /**
+     * Возвращает длину массива примитивов.
+     */
+    protected abstract int length(A array);
+
+    /**
+     * Возвращает лист (или хвост), содержащий элемент с индексом index.
+     * Элемент лежит в нем по индексу index &amp; mask.
+     */
+    @SuppressWarnings("unchecked")
+    protected final A leafFor(int index) {
+        PrimitiveHead<A> head = getCurrentHead();
+        checkIndex(head, index);
+        if (index >= tailOffset(head)) {
+            return head.tail;
+        }
+
+        Object node = head.root;
+        for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
+            node = ((Object[]) node)[(index >> level) & mask];
+        }
+        return (A) node;
+    }
+
+    /**
+     * Создает новую версию, скопировав путь до листа с элементом index.
+     *
+     * @return скопированный лист, в который нужно записать новое значение по индексу index &amp; mask
+     */
+    protected final A copyLeafToChange(int index) {
+        PrimitiveHead<A> head = getCurrentHead();
+        checkIndex(head, index);
+
+        if (index >= tailOffset(head)) {
+            A newTail = copyOf(head.tail, length(head.tail));
+            pushHead(new PrimitiveHead<>(head.root, newTail, head.size));
+            return newTail;
+        }
+
+        List<A> leaf = new ArrayList<>(1);
+        Object newRoot = copyPath(head.root, bitPerEdge * (depth - 1), index, leaf);
+        pushHead(new PrimitiveHead<>(newRoot, head.tail, head.size));
+        return leaf.get(0);
+    }
+
+    /**
+     * Создает новую версию с еще одним элементом в конце.
+     *
+     * @return новый хвост, в последнюю ячейку которого нужно записать добавляемое значение
+     */
+    protected final A appendSlot() {
+        PrimitiveHead<A> head = getCurrentHead();
+        if (head.size >= maxSize) {
+            throw new IllegalStateException();
+        }
+
+        int tailLength = length(head.tail);
+        A newTail;
+        Object newRoot = head.root;
+        if (tailLength < width) {
+            newTail = copyOf(head.tail, tailLength + 1);
+        } else {
+            // Хвост заполнен: переносим его в дерево целым листом
+            newRoot = pushLeaf(head.root, bitPerEdge * (depth - 1), tailOffset(head), head.tail);
+            newTail = copyOf(head.tail, 1);
+        }
+        pushHead(new PrimitiveHead<>(newRoot, newTail, head.size + 1));
+        return newTail;
+    }
+
+    /**
+     * Создает новую версию без последнего элемента.
+     */
+    @SuppressWarnings("unchecked")
+    protected final void removeLast() {
+        PrimitiveHead<A> head = getCurrentHead();
+        if (head.size == 0) {
+            throw new NoSuchElementException("Array is empty");
+        }
+
+        int tailLength = length(head.tail);
+        if (tailLength > 1 || head.size == 1) {
+            pushHead(new PrimitiveHead<>(head.root, copyOf(head.tail, tailLength - 1), head.size - 1));
+            return;
+        }
+
+        // Хвост опустеет: последний лист дерева становится хвостом
+        int leafStart = tailOffset(head) - width;
+        Object node = head.root;
+        for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
+            node = ((Object[]) node)[(leafStart >> level) & mask];
+        }
+        Object newRoot = popLeaf(head.root, bitPerEdge * (depth - 1), leafStart);
+        pushHead(new PrimitiveHead<>(newRoot, (A) node, head.size - 1));
+    }
+
+    /**
+     * Проверяет, что массив не пуст.
+     */
+    protected final void checkNotEmpty() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("Array is empty");
+        }
+    }
+
+    /**
+     * Копирует значения текущей версии в массив примитивов.
+     *
+     * @param result массив длины не меньше size()
+     * @return result
+     */
+    protected final A copyTo(A result) {
+        PrimitiveHead<A> head = getCurrentHead();
+        int offset = copyLeaves(head.root, bitPerEdge * (depth - 1), result, 0);
+        System.arraycopy(head.tail, 0, result, offset, length(head.tail));
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int copyLeaves(Object node, int level, A result, int offset) {
+        if (node == null) {
+            return offset;
+        }
+        if (level == 0) {
+            int length = length((A) node);
+            System.arraycopy(node, 0, result, offset, length);
+            return offset + length;
+        }
+        for (Object child : (Object[]) node) {
+            offset = copyLeaves(child, level - bitPerEdge, result, offset);
+        }
+        return offset;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object copyPath(Object node, int level, int index, List<A> leaf) {
+        if (level == 0) {
+            A copy = copyOf((A) node, length((A) node));
+            leaf.add(copy);
+            return copy;
+        }
+
+        Object[] result = ((Object[]) node).clone();
+        int widthIndex = (index >> level) & mask;
+        result[widthIndex] = copyPath(result[widthIndex], level - bitPerEdge, index, leaf);
+        return result;
+    }
+
+    private Object pushLeaf(Object node, int level, int index, A leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+
+        int widthIndex = (index >> level) & mask;
+        Object[] childs = (Object[]) node;
+        Object[] result;
+        Object child = null;
+        if (childs == null) {
+            result = new Object[1];
+        } else if (widthIndex == childs.length) {
+            result = Arrays.copyOf(childs, widthIndex + 1);
+        } else {
+            result = childs.clone();
+            child = childs[widthIndex];
+        }
+        result[widthIndex] = pushLeaf(child, level - bitPerEdge, index, leaf);
+        return result;
+    }
+
+    /**
+     * Удаляет последний лист из поддерева
+     *
+     * @return измененный узел или null, если узел опустел
+     */
+    private Object popLeaf(Object node, int level, int index) {
+        if (level == 0) {
+            return null;
+        }
+
+        Object[] childs = (Object[]) node;
+        int widthIndex = (index >> level) & mask;
+        Object child = popLeaf(childs[widthIndex], level - bitPerEdge, index);
+        if (child == null) {
+            return widthIndex == 0 ? null : Arrays.copyOf(childs, widthIndex);
+        }
+        Object[] result = childs.clone();
+        result[widthIndex] = child;
+        return result;
+    }
+
+    private PrimitiveHead<A> getCurrentHead() {
+        return undoStack.peek();
+    }
+
+    private void pushHead(PrimitiveHead<A> head) {
+        undoStack.push(head);
+        redoStack.clear();
+        if (parent != null) {
+            parent.addChildModification(this);
+        }
+    }
+
+    private int tailOffset(PrimitiveHead<A> head) {
+        return head.size - length(head.tail);
+    }
+
+    private void checkIndex(PrimitiveHead<A> head, int index) {
+        if ((index < 0) || (index >= head.size)) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Версия массива примитивов: корень дерева (null для пустого дерева), хвост и размер
+     */
+    private record PrimitiveHead<A>(Object root, A tail, int size) {
+    }
+}
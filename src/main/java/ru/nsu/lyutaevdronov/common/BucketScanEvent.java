@@ -0,0 +1,19 @@
+package ru.nsu.lyutaevdronov.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Событие JFR о просмотре корзины ассоциативного массива
+ */
+@Name("ru.nsu.lyutaevdronov.BucketScan")
+@Label("Bucket Scan")
+@Category("Persistent Data")
+@Description("Entries scanned in one bucket of an associative array")
+final class BucketScanEvent extends Event {
+    @Label("Length")
+    int length;
+}
@@ -0,0 +1,45 @@
+package ru.nsu.lyutaevdronov.common;
+
+/**
+ * Разрешение конфликта трехстороннего слияния версий: значение по одному ключу или индексу
+ * изменено в обеих сливаемых версиях по-разному.
+ * <p>
+ * Удаленное значение передается как null. Если значение удалено в одной версии и изменено в другой,
+ * возврат null выбирает удаление, поэтому {@link #preferLeft()} и {@link #preferRight()} сохраняют
+ * удаление своей стороны. Сохранить в таком конфликте значение null нельзя.
+ * </p>
+ *
+ * @param <K> тип ключей или индексов
+ * @param <V> тип значений
+ */
+@FunctionalInterface
+public interface ConflictResolver<K, V> {
+    /**
+     * Возвращает значение, которое попадет в результат слияния.
+     *
+     * @param key   ключ или индекс конфликта
+     * @param base  значение в общей предыдущей версии, null если его не было
+     * @param left  значение в левой версии, null если оно удалено
+     * @param right значение в правой версии, null если оно удалено
+     * @return значение результата, null в конфликте удаления и изменения удаляет значение
+     */
+    V resolve(K key, V base, V left, V right);
+
+    /**
+     * Возвращает разрешение, которое оставляет значение левой версии.
+     *
+     * @return разрешение в пользу левой версии
+     */
+    static <K, V> ConflictResolver<K, V> preferLeft() {
+        return (key, base, left, right) -> left;
+    }
+
+    /**
+     * Возвращает разрешение, которое оставляет значение правой версии.
+     *
+     * @return разрешение в пользу правой версии
+     */
+    static <K, V> ConflictResolver<K, V> preferRight() {
+        return (key, base, left, right) -> right;
+    }
+}
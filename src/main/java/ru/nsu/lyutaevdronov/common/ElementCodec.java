@@ -0,0 +1,73 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.io.IOException;
+
+/**
+ * Кодек элементов персистентной структуры для бинарного снимка.
+ * <p>
+ * Кодек записывает значение в {@link SnapshotOutput} и читает его из {@link SnapshotInput}
+ * в том же порядке. Встроенные кодеки не принимают null, для элементов, которые могут быть null,
+ * используется {@link #nullable(ElementCodec)}.
+ * </p>
+ *
+ * @param <E> тип элементов
+ */
+public interface ElementCodec<E> {
+    ElementCodec<Integer> INTEGER = of(SnapshotOutput::writeInt, SnapshotInput::readInt);
+    ElementCodec<Long> LONG = of(SnapshotOutput::writeLong, SnapshotInput::readLong);
+    ElementCodec<Double> DOUBLE = of(SnapshotOutput::writeDouble, SnapshotInput::readDouble);
+    ElementCodec<String> STRING = of(SnapshotOutput::writeString, SnapshotInput::readString);
+
+    void write(SnapshotOutput out, E value) throws IOException;
+
+    E read(SnapshotInput in) throws IOException;
+
+    /**
+     * Возвращает кодек, который записывает признак null перед значением.
+     *
+     * @param codec кодек значений, отличных от null
+     * @return кодек, допускающий null
+     */
+    static <E> ElementCodec<E> nullable(ElementCodec<E> codec) {
+        return of(
+                (out, value) -> {
+                    out.writeBoolean(value != null);
+                    if (value != null) {
+                        codec.write(out, value);
+                    }
+                },
+                in -> in.readBoolean() ? codec.read(in) : null
+        );
+    }
+
+    /**
+     * Собирает кодек из функций записи и чтения.
+     *
+     * @param writer функция записи
+     * @param reader функция чтения
+     * @return кодек
+     */
+    static <E> ElementCodec<E> of(Writer<E> writer, Reader<E> reader) {
+        return new ElementCodec<>() {
+            @Override
+            public void write(SnapshotOutput out, E value) throws IOException {
+                writer.write(out, value);
+            }
+
+            @Override
+            public E read(SnapshotInput in) throws IOException {
+                return reader.read(in);
+            }
+        };
+    }
+
+    @FunctionalInterface
+    interface Writer<E> {
+        void write(SnapshotOutput out, E value) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface Reader<E> {
+        E read(SnapshotInput in) throws IOException;
+    }
+}
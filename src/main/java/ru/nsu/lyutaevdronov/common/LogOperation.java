@@ -0,0 +1,45 @@
+package ru.nsu.lyutaevdronov.common;
+
+/**
+ * Операция, записываемая в журнал операций {@link OperationLog}.
+ * Номер операции в журнале - её порядковый номер, поэтому новые операции добавляются только в конец.
+ */
+public enum LogOperation {
+    ADD,
+    INSERT,
+    SET,
+    POP,
+    REMOVE,
+    CLEAR,
+    ADD_ALL,
+    INSERT_ALL,
+    PUT,
+    REMOVE_KEY,
+    UNDO,
+    REDO,
+    CREATE_BRANCH,
+    SWITCH_BRANCH,
+    RENAME_BRANCH,
+    DELETE_BRANCH,
+    /**
+     * Изменения транзиентной версии, сохраненные одной версией
+     */
+    BATCH,
+    /**
+     * Трехстороннее слияние версий: номера общей, левой и правой версий и решения конфликтов в порядке вызова
+     */
+    MERGE,
+    /**
+     * Восстановление версии массива, записывается вся версия
+     */
+    RESTORE;
+
+    private static final LogOperation[] VALUES = values();
+
+    public static LogOperation of(int code) {
+        if (code < 0 || code >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown operation " + code);
+        }
+        return VALUES[code];
+    }
+}
@@ -0,0 +1,161 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики работы персистентных структур: созданные узлы, значения, скопированные в новые листы,
+ * узлы и значения на каждую операцию, длины просмотра корзин ассоциативного массива, вызовы undo и redo.
+ * <p>
+ * Включаются системным свойством {@value #PROPERTY}=true при запуске JVM. Флаг {@link #ENABLED}
+ * статический и неизменяемый, поэтому при выключенных счетчиках JIT убирает проверку вместе
+ * с вызовом, и стоимость инструментирования - одна константная ветка.
+ * </p>
+ * <p>
+ * Включенные счетчики доступны через {@link #counters()}, слушателей {@link MetricsListener},
+ * которые регистрируются через {@link ServiceLoader} или {@link #addListener(MetricsListener)},
+ * и события JFR {@code ru.nsu.lyutaevdronov.Operation} и {@code ru.nsu.lyutaevdronov.BucketScan}.
+ * </p>
+ */
+public final class Metrics {
+    public static final String PROPERTY = "ru.nsu.lyutaevdronov.metrics";
+    public static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+    private static final LongAdder NODES = new LongAdder();
+    private static final LongAdder ELEMENTS = new LongAdder();
+    private static final LongAdder BUCKET_SCANS = new LongAdder();
+    private static final LongAdder BUCKET_SCAN_LENGTH = new LongAdder();
+    private static final Map<LogOperation, LongAdder> OPERATIONS = new EnumMap<>(LogOperation.class);
+    /**
+     * Узлы и значения, созданные текущим потоком, для подсчета стоимости отдельной операции
+     */
+    private static final ThreadLocal<long[]> THREAD_COUNTERS = ThreadLocal.withInitial(() -> new long[2]);
+    private static final List<MetricsListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    static {
+        for (LogOperation operation : LogOperation.values()) {
+            OPERATIONS.put(operation, new LongAdder());
+        }
+        if (ENABLED) {
+            ServiceLoader.load(MetricsListener.class).forEach(LISTENERS::add);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Регистрирует слушателя. Слушатели вызываются в потоке, выполняющем операцию.
+     *
+     * @param listener слушатель
+     */
+    public static void addListener(MetricsListener listener) {
+        LISTENERS.add(Objects.requireNonNull(listener));
+    }
+
+    public static void removeListener(MetricsListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Учитывает созданный узел.
+     *
+     * @param values количество значений в новом листе, 0 для внутреннего узла
+     */
+    public static void nodeAllocated(int values) {
+        NODES.increment();
+        ELEMENTS.add(values);
+        long[] counters = THREAD_COUNTERS.get();
+        counters[0]++;
+        counters[1] += values;
+    }
+
+    /**
+     * Возвращает отметку начала операции для {@link #operation(LogOperation, long[])}.
+     *
+     * @return количество узлов и значений, созданных текущим потоком
+     */
+    public static long[] mark() {
+        return THREAD_COUNTERS.get().clone();
+    }
+
+    /**
+     * Учитывает завершенную операцию и узлы, созданные ей с момента отметки.
+     *
+     * @param operation операция
+     * @param mark      отметка начала операции
+     */
+    public static void operation(LogOperation operation, long[] mark) {
+        long[] counters = THREAD_COUNTERS.get();
+        long nodes = counters[0] - mark[0];
+        long elements = counters[1] - mark[1];
+        OPERATIONS.get(operation).increment();
+
+        OperationEvent event = new OperationEvent();
+        if (event.shouldCommit()) {
+            event.operation = operation.name();
+            event.nodes = nodes;
+            event.elements = elements;
+            event.commit();
+        }
+        for (MetricsListener listener : LISTENERS) {
+            listener.onOperation(operation, nodes, elements);
+        }
+    }
+
+    /**
+     * Учитывает просмотр корзины ассоциативного массива.
+     *
+     * @param length количество просмотренных записей
+     */
+    public static void bucketScanned(int length) {
+        BUCKET_SCANS.increment();
+        BUCKET_SCAN_LENGTH.add(length);
+
+        BucketScanEvent event = new BucketScanEvent();
+        if (event.shouldCommit()) {
+            event.length = length;
+            event.commit();
+        }
+        for (MetricsListener listener : LISTENERS) {
+            listener.onBucketScan(length);
+        }
+    }
+
+    /**
+     * Возвращает текущие значения счетчиков.
+     *
+     * @return значения счетчиков
+     */
+    public static Counters counters() {
+        Map<LogOperation, Long> operations = new EnumMap<>(LogOperation.class);
+        OPERATIONS.forEach((operation, count) -> operations.put(operation, count.sum()));
+        return new Counters(NODES.sum(), ELEMENTS.sum(), BUCKET_SCANS.sum(), BUCKET_SCAN_LENGTH.sum(),
+                Collections.unmodifiableMap(operations));
+    }
+
+    /**
+     * Обнуляет счетчики.
+     */
+    public static void reset() {
+        NODES.reset();
+        ELEMENTS.reset();
+        BUCKET_SCANS.reset();
+        BUCKET_SCAN_LENGTH.reset();
+        OPERATIONS.values().forEach(LongAdder::reset);
+    }
+
+    /**
+     * Значения счетчиков
+     *
+     * @param nodes            количество созданных узлов
+     * @param elements         количество значений, записанных в новые листы
+     * @param bucketScans      количество просмотров корзин
+     * @param bucketScanLength суммарное количество просмотренных записей корзин
+     * @param operations       количество выполненных операций каждого вида
+     */
+    public record Counters(long nodes, long elements, long bucketScans, long bucketScanLength,
+                           Map<LogOperation, Long> operations) {
+    }
+}
@@ -0,0 +1,29 @@
+package ru.nsu.lyutaevdronov.common;
+
+/**
+ * Слушатель счетчиков {@link Metrics}.
+ * <p>
+ * Реализации регистрируются через {@link Metrics#addListener(MetricsListener)} или как сервис
+ * в META-INF/services/ru.nsu.lyutaevdronov.common.MetricsListener. Вызывается в потоке операции,
+ * только если счетчики включены, поэтому должен работать быстро.
+ * </p>
+ */
+public interface MetricsListener {
+    /**
+     * Вызывается после операции персистентной структуры.
+     *
+     * @param operation операция
+     * @param nodes     количество узлов, созданных операцией
+     * @param elements  количество значений, записанных операцией в новые листы
+     */
+    default void onOperation(LogOperation operation, long nodes, long elements) {
+    }
+
+    /**
+     * Вызывается после просмотра корзины ассоциативного массива.
+     *
+     * @param length количество просмотренных записей
+     */
+    default void onBucketScan(int length) {
+    }
+}
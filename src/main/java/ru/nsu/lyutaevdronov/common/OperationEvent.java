@@ -0,0 +1,25 @@
+package ru.nsu.lyutaevdronov.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Событие JFR об операции персистентной структуры
+ */
+@Name("ru.nsu.lyutaevdronov.Operation")
+@Label("Persistent Operation")
+@Category("Persistent Data")
+@Description("Nodes and leaf values allocated by one operation")
+final class OperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Nodes")
+    long nodes;
+
+    @Label("Elements")
+    long elements;
+}
@@ -0,0 +1,242 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал операций персистентной структуры для восстановления после сбоя.
+ * <p>
+ * Каждая операция - запись из длины, контрольной суммы CRC32 и данных: номера операции и аргументов.
+ * Записи копятся в памяти и записываются в файл группой из commitEvery записей одним вызовом write,
+ * после каждых syncEvery групп файл сбрасывается на диск. Записи, не попавшие в файл, теряются при сбое,
+ * поэтому commitEvery и syncEvery задают компромисс между пропускной способностью и долговечностью.
+ * </p>
+ * <p>
+ * Восстановление: структура читается из последнего снимка, затем к ней применяются записи журнала,
+ * сделанные после снимка. Оборванная при сбое последняя запись распознается по длине или контрольной
+ * сумме и отбрасывается. После записи снимка журнал очищается {@link #truncate()}.
+ * </p>
+ * Методы записи потокобезопасны.
+ */
+public final class OperationLog implements Closeable {
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int RECORD_BUFFER_SIZE = 256;
+
+    private final FileChannel channel;
+    private final int commitEvery;
+    private final int syncEvery;
+    /**
+     * Записи, ещё не записанные в файл
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords;
+    private int commitsSinceSync;
+
+    private OperationLog(FileChannel channel, int commitEvery, int syncEvery) {
+        this.channel = channel;
+        this.commitEvery = commitEvery;
+        this.syncEvery = syncEvery;
+    }
+
+    /**
+     * Открывает журнал для дописывания. Оборванная запись в конце файла отбрасывается.
+     *
+     * @param file        файл журнала
+     * @param commitEvery количество записей, записываемых в файл одной группой
+     * @param syncEvery   количество групп между сбросами файла на диск, 0 - только при {@link #sync()} и закрытии
+     * @return журнал
+     */
+    public static OperationLog open(Path file, int commitEvery, int syncEvery) throws IOException {
+        if (commitEvery < 1) {
+            throw new IllegalArgumentException("commitEvery must be positive");
+        }
+        if (syncEvery < 0) {
+            throw new IllegalArgumentException("syncEvery must not be negative");
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = scan(channel, null);
+        if (end < channel.size()) {
+            channel.truncate(end);
+        }
+        channel.position(end);
+        return new OperationLog(channel, commitEvery, syncEvery);
+    }
+
+    /**
+     * Применяет к структуре все целые записи журнала по порядку.
+     *
+     * @param file    файл журнала
+     * @param handler обработчик записей
+     * @return количество примененных записей
+     */
+    public static int replay(Path file, RecordHandler handler) throws IOException {
+        int[] records = new int[1];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            scan(channel, (operation, in) -> {
+                handler.apply(operation, in);
+                records[0]++;
+            });
+        }
+        return records[0];
+    }
+
+    /**
+     * Добавляет запись об операции. Запись попадает в файл вместе с группой.
+     *
+     * @param operation операция
+     * @param arguments запись аргументов операции
+     * @throws UncheckedIOException если группу не удалось записать
+     */
+    public void append(LogOperation operation, Arguments arguments) {
+        byte[] data = encode(operation, arguments);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        synchronized (this) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(data.length)
+                    .putInt((int) crc.getValue());
+            pending.writeBytes(header.array());
+            pending.writeBytes(data);
+            if (++pendingRecords >= commitEvery) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Записывает накопленные записи в файл одним вызовом.
+     *
+     * @throws UncheckedIOException если записи не удалось записать
+     */
+    public synchronized void commit() {
+        if (pendingRecords == 0) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            pending.reset();
+            pendingRecords = 0;
+            if (syncEvery > 0 && ++commitsSinceSync >= syncEvery) {
+                channel.force(false);
+                commitsSinceSync = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Записывает накопленные записи и сбрасывает файл на диск.
+     */
+    public synchronized void sync() throws IOException {
+        commit();
+        channel.force(false);
+        commitsSinceSync = 0;
+    }
+
+    /**
+     * Удаляет все записи журнала, например после записи снимка структуры.
+     */
+    public synchronized void truncate() throws IOException {
+        pending.reset();
+        pendingRecords = 0;
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static byte[] encode(LogOperation operation, Arguments arguments) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotOutput out = new SnapshotOutput(Channels.newChannel(bytes), RECORD_BUFFER_SIZE)) {
+            out.writeByte(operation.ordinal());
+            arguments.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Читает целые записи с начала файла и передает их обработчику
+     *
+     * @return смещение конца последней целой записи
+     */
+    private static long scan(FileChannel channel, RecordHandler handler) throws IOException {
+        channel.position(0);
+        long size = channel.size();
+        long end = 0;
+        SnapshotInput in = new SnapshotInput(channel, 1 << 16);
+        while (size - end >= HEADER_SIZE) {
+            byte[] data;
+            int checksum;
+            try {
+                int length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > size - end - HEADER_SIZE) {
+                    break;
+                }
+                data = new byte[length];
+                in.readBytes(data);
+            } catch (EOFException e) {
+                break;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            if (handler != null) {
+                SnapshotInput record = new SnapshotInput(Channels.newChannel(new ByteArrayInputStream(data)),
+                        RECORD_BUFFER_SIZE);
+                handler.apply(LogOperation.of(record.readByte()), record);
+            }
+            end += HEADER_SIZE + data.length;
+        }
+        return end;
+    }
+
+    /**
+     * Запись аргументов операции
+     */
+    @FunctionalInterface
+    public interface Arguments {
+        Arguments NONE = out -> {
+        };
+
+        void write(SnapshotOutput out) throws IOException;
+    }
+
+    /**
+     * Обработчик записей журнала при восстановлении
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+        void apply(LogOperation operation, SnapshotInput in) throws IOException;
+    }
+}
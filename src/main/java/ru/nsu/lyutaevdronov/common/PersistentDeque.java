@@ -0,0 +1,202 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.util.*;
+
+/**
+ * Неизменяемая двусторонняя очередь для хранения версий в истории.
+ * <p>
+ * Очередь состоит из двух неизменяемых односвязных списков: front хранит элементы от вершины
+ * к середине, rear - от дна к середине. Изменение возвращает новую очередь, которая разделяет
+ * звенья списков с исходной, поэтому копирование очереди стоит O(1). Если одна из сторон
+ * опустела, а в другой больше одного элемента, половина другой стороны переносится в неё,
+ * поэтому операции с обоих концов стоят амортизированно O(1).
+ * </p>
+ * <p>
+ * Звенья списков доступны {@link VersionHistory}, которая считает ссылки на них, чтобы знать,
+ * какие версии еще хранятся в стеках веток.
+ * </p>
+ *
+ * @param <T> тип элементов
+ */
+final class PersistentDeque<T> implements Iterable<T> {
+    private static final PersistentDeque<?> EMPTY = new PersistentDeque<>(null, null);
+
+    /**
+     * Элементы от вершины к середине
+     */
+    private final Cons<T> front;
+    /**
+     * Элементы от дна к середине
+     */
+    private final Cons<T> rear;
+
+    private PersistentDeque(Cons<T> front, Cons<T> rear) {
+        this.front = front;
+        this.rear = rear;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> PersistentDeque<T> empty() {
+        return (PersistentDeque<T>) EMPTY;
+    }
+
+    int size() {
+        return Cons.size(front) + Cons.size(rear);
+    }
+
+    boolean isEmpty() {
+        return front == null && rear == null;
+    }
+
+    /**
+     * Возвращает первое звено списка от вершины к середине или null.
+     */
+    Cons<T> front() {
+        return front;
+    }
+
+    /**
+     * Возвращает первое звено списка от дна к середине или null.
+     */
+    Cons<T> rear() {
+        return rear;
+    }
+
+    /**
+     * Возвращает элемент на вершине или null, если очередь пуста.
+     */
+    T peek() {
+        if (front != null) {
+            return front.value;
+        }
+        return rear == null ? null : rear.value;
+    }
+
+    /**
+     * Возвращает элемент на дне или null, если очередь пуста.
+     */
+    T peekLast() {
+        if (rear != null) {
+            return rear.value;
+        }
+        return front == null ? null : front.value;
+    }
+
+    PersistentDeque<T> push(T value) {
+        return balanced(new Cons<>(value, front), rear);
+    }
+
+    PersistentDeque<T> pop() {
+        if (front != null) {
+            return balanced(front.next, rear);
+        }
+        if (rear != null) {
+            return balanced(null, rear.next);
+        }
+        throw new NoSuchElementException();
+    }
+
+    PersistentDeque<T> popLast() {
+        if (rear != null) {
+            return balanced(front, rear.next);
+        }
+        if (front != null) {
+            return balanced(front.next, null);
+        }
+        throw new NoSuchElementException();
+    }
+
+    /**
+     * Обходит элементы от вершины ко дну.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        List<T> elements = new ArrayList<>(size());
+        for (Cons<T> node = front; node != null; node = node.next) {
+            elements.add(node.value);
+        }
+        List<T> bottom = new ArrayList<>(Cons.size(rear));
+        for (Cons<T> node = rear; node != null; node = node.next) {
+            bottom.add(node.value);
+        }
+        Collections.reverse(bottom);
+        elements.addAll(bottom);
+        return Collections.unmodifiableList(elements).iterator();
+    }
+
+    private static <T> PersistentDeque<T> balanced(Cons<T> front, Cons<T> rear) {
+        if (front == null && rear == null) {
+            return empty();
+        }
+        if (front == null && rear.size > 1) {
+            Halves<T> halves = Cons.split(rear);
+            return new PersistentDeque<>(halves.moved(), halves.kept());
+        }
+        if (rear == null && front.size > 1) {
+            Halves<T> halves = Cons.split(front);
+            return new PersistentDeque<>(halves.kept(), halves.moved());
+        }
+        return new PersistentDeque<>(front, rear);
+    }
+
+    /**
+     * Звено неизменяемого односвязного списка. Звенья сравниваются по ссылке
+     */
+    static final class Cons<T> {
+        private final T value;
+        private final Cons<T> next;
+        private final int size;
+
+        private Cons(T value, Cons<T> next) {
+            this.value = value;
+            this.next = next;
+            this.size = size(next) + 1;
+        }
+
+        T value() {
+            return value;
+        }
+
+        Cons<T> next() {
+            return next;
+        }
+
+        private static int size(Cons<?> list) {
+            return list == null ? 0 : list.size;
+        }
+
+        /**
+         * Делит список на первую половину (копия звеньев) и перевернутую вторую половину,
+         * которая становится началом противоположной стороны очереди.
+         */
+        @SuppressWarnings("unchecked")
+        private static <T> Halves<T> split(Cons<T> list) {
+            int keep = (list.size + 1) / 2;
+            Object[] kept = new Object[keep];
+            Cons<T> node = list;
+            for (int i = 0; i < keep; i++) {
+                kept[i] = node.value;
+                node = node.next;
+            }
+
+            Cons<T> moved = null;
+            for (; node != null; node = node.next) {
+                moved = new Cons<>(node.value, moved);
+            }
+            Cons<T> first = null;
+            for (int i = keep - 1; i >= 0; i--) {
+                first = new Cons<>((T) kept[i], first);
+            }
+            return new Halves<>(first, moved);
+        }
+    }
+
+    /**
+     * Половины списка, разделенного {@link Cons#split(Cons)}
+     *
+     * @param kept  первая половина в исходном порядке
+     * @param moved перевернутая вторая половина
+     */
+    private record Halves<T>(Cons<T> kept, Cons<T> moved) {
+    }
+}
@@ -0,0 +1,298 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Неизменяемое отображение на основе префиксного дерева хешей (HAMT).
+ * <p>
+ * Каждый уровень дерева разбирает 5 бит хеша ключа, узел хранит битовую маску занятых позиций
+ * и плотный массив записей и дочерних узлов. Изменение копирует только путь от корня до записи,
+ * остальные узлы разделяются с исходным отображением, поэтому копирование отображения стоит O(1),
+ * а чтение и изменение - O(log32 n). Ключи с одинаковым хешем хранятся в общем списке коллизий.
+ * </p>
+ *
+ * @param <K> тип ключей
+ * @param <V> тип значений
+ */
+final class PersistentHashMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+    /**
+     * Корень дерева: узел, запись, список коллизий или null для пустого отображения
+     */
+    private final Object root;
+    private final int size;
+
+    private PersistentHashMap(Object root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    /**
+     * Возвращает значение по ключу или null, если ключа нет.
+     */
+    V get(Object key) {
+        Entry<K, V> entry = find(key);
+        return entry == null ? null : entry.value;
+    }
+
+    PersistentHashMap<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Object updated = put(root, 0, new Entry<>(hash(key), key, value), added);
+        return new PersistentHashMap<>(updated, added[0] ? size + 1 : size);
+    }
+
+    PersistentHashMap<K, V> remove(Object key) {
+        boolean[] removed = new boolean[1];
+        Object updated = remove(root, 0, hash(key), key, removed);
+        if (!removed[0]) {
+            return this;
+        }
+        return size == 1 ? empty() : new PersistentHashMap<>(updated, size - 1);
+    }
+
+    /**
+     * Обходит записи в порядке хешей ключей.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        Deque<Object> slots = new ArrayDeque<>();
+        if (root != null) {
+            slots.push(root);
+        }
+        while (!slots.isEmpty()) {
+            Object slot = slots.pop();
+            if (slot instanceof Node node) {
+                for (int i = node.slots.length - 1; i >= 0; i--) {
+                    slots.push(node.slots[i]);
+                }
+            } else if (slot instanceof Collision collision) {
+                for (Entry<?, ?> entry : collision.entries) {
+                    action.accept((K) entry.key, (V) entry.value);
+                }
+            } else {
+                Entry<K, V> entry = (Entry<K, V>) slot;
+                action.accept(entry.key, entry.value);
+            }
+        }
+    }
+
+    List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEach((key, value) -> values.add(value));
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<K, V> find(Object key) {
+        int hash = hash(key);
+        Object slot = root;
+        for (int shift = 0; slot instanceof Node node; shift += BITS) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            slot = node.slots[node.index(bit)];
+        }
+        if (slot instanceof Collision collision) {
+            int index = collision.hash == hash ? collision.indexOf(key) : -1;
+            return index < 0 ? null : (Entry<K, V>) collision.entries[index];
+        }
+        Entry<K, V> entry = (Entry<K, V>) slot;
+        return entry != null && entry.hash == hash && Objects.equals(entry.key, key) ? entry : null;
+    }
+
+    private static Object put(Object slot, int shift, Entry<?, ?> entry, boolean[] added) {
+        if (slot == null) {
+            added[0] = true;
+            return entry;
+        }
+        if (slot instanceof Node node) {
+            int bit = bit(entry.hash, shift);
+            int index = node.index(bit);
+            if ((node.bitmap & bit) == 0) {
+                added[0] = true;
+                return node.inserted(bit, index, entry);
+            }
+            Object child = node.slots[index];
+            return node.replaced(index, put(child, shift + BITS, entry, added));
+        }
+        if (slot instanceof Collision collision) {
+            if (collision.hash != entry.hash) {
+                added[0] = true;
+                return split(collision, collision.hash, entry, shift);
+            }
+            int index = collision.indexOf(entry.key);
+            Entry<?, ?>[] entries;
+            if (index < 0) {
+                added[0] = true;
+                entries = Arrays.copyOf(collision.entries, collision.entries.length + 1);
+                entries[collision.entries.length] = entry;
+            } else {
+                entries = collision.entries.clone();
+                entries[index] = entry;
+            }
+            return new Collision(collision.hash, entries);
+        }
+
+        Entry<?, ?> existing = (Entry<?, ?>) slot;
+        if (existing.hash != entry.hash) {
+            added[0] = true;
+            return split(existing, existing.hash, entry, shift);
+        }
+        if (Objects.equals(existing.key, entry.key)) {
+            return entry;
+        }
+        added[0] = true;
+        return new Collision(entry.hash, new Entry<?, ?>[]{existing, entry});
+    }
+
+    /**
+     * Создает узел, который разводит по разным позициям запись или список коллизий и новую запись с другим хешем
+     */
+    private static Node split(Object existing, int existingHash, Entry<?, ?> entry, int shift) {
+        int existingBit = bit(existingHash, shift);
+        int bit = bit(entry.hash, shift);
+        if (existingBit == bit) {
+            return new Node(bit, new Object[]{split(existing, existingHash, entry, shift + BITS)});
+        }
+        Object[] slots = Integer.compareUnsigned(existingBit, bit) < 0
+                ? new Object[]{existing, entry}
+                : new Object[]{entry, existing};
+        return new Node(existingBit | bit, slots);
+    }
+
+    private static Object remove(Object slot, int shift, int hash, Object key, boolean[] removed) {
+        if (slot instanceof Node node) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return node;
+            }
+            int index = node.index(bit);
+            Object child = node.slots[index];
+            Object updated = remove(child, shift + BITS, hash, key, removed);
+            if (updated == child) {
+                return node;
+            }
+            Node result = updated == null ? node.removed(bit, index) : node.replaced(index, updated);
+            // Единственную запись поднимаем на уровень выше, чтобы дерево не вырождалось в цепочку узлов
+            if (result.slots.length == 1 && !(result.slots[0] instanceof Node)) {
+                return result.slots[0];
+            }
+            return result.slots.length == 0 ? null : result;
+        }
+        if (slot instanceof Collision collision) {
+            int index = collision.hash == hash ? collision.indexOf(key) : -1;
+            if (index < 0) {
+                return collision;
+            }
+            removed[0] = true;
+            if (collision.entries.length == 2) {
+                return collision.entries[1 - index];
+            }
+            Entry<?, ?>[] entries = new Entry<?, ?>[collision.entries.length - 1];
+            System.arraycopy(collision.entries, 0, entries, 0, index);
+            System.arraycopy(collision.entries, index + 1, entries, index, entries.length - index);
+            return new Collision(hash, entries);
+        }
+
+        Entry<?, ?> entry = (Entry<?, ?>) slot;
+        if (entry != null && entry.hash == hash && Objects.equals(entry.key, key)) {
+            removed[0] = true;
+            return null;
+        }
+        return slot;
+    }
+
+    private static int hash(Object key) {
+        int hash = Objects.hashCode(key);
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    /**
+     * Узел дерева: маска занятых позиций и записи или дочерние узлы в порядке позиций
+     */
+    private static final class Node {
+        private final int bitmap;
+        private final Object[] slots;
+
+        private Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private Node inserted(int bit, int index, Object slot) {
+            Object[] updated = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, updated, 0, index);
+            updated[index] = slot;
+            System.arraycopy(slots, index, updated, index + 1, slots.length - index);
+            return new Node(bitmap | bit, updated);
+        }
+
+        private Node replaced(int index, Object slot) {
+            Object[] updated = slots.clone();
+            updated[index] = slot;
+            return new Node(bitmap, updated);
+        }
+
+        private Node removed(int bit, int index) {
+            Object[] updated = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, updated, 0, index);
+            System.arraycopy(slots, index + 1, updated, index, updated.length - index);
+            return new Node(bitmap & ~bit, updated);
+        }
+    }
+
+    /**
+     * Записи, ключи которых имеют одинаковый хеш
+     */
+    private static final class Collision {
+        private final int hash;
+        private final Entry<?, ?>[] entries;
+
+        private Collision(int hash, Entry<?, ?>[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < entries.length; i++) {
+                if (Objects.equals(entries[i].key, key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private record Entry<K, V>(int hash, K key, V value) {
+    }
+}
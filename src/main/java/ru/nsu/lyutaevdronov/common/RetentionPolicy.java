@@ -0,0 +1,130 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.time.Duration;
+
+/**
+ * Политика хранения версий персистентной структуры.
+ * <p>
+ * Версия сохраняется, если её оставляет хотя бы одно из заданных правил: она входит в последние
+ * lastVersions версий, она моложе maxAge или её номер кратен checkpointEvery. Текущая версия
+ * сохраняется всегда. Если ни одно правило не задано, хранятся все версии.
+ * </p>
+ * Политика неизменяема, методы with* возвращают новую политику.
+ */
+public final class RetentionPolicy {
+    private static final RetentionPolicy UNBOUNDED = new RetentionPolicy(0, null, 0);
+
+    /**
+     * Количество последних хранимых версий, 0 - правило не задано
+     */
+    private final int lastVersions;
+    /**
+     * Максимальный возраст хранимых версий, null - правило не задано
+     */
+    private final Duration maxAge;
+    /**
+     * Шаг контрольных точек: версии с номером, кратным шагу, хранятся всегда. 0 - правило не задано
+     */
+    private final int checkpointEvery;
+
+    private RetentionPolicy(int lastVersions, Duration maxAge, int checkpointEvery) {
+        this.lastVersions = lastVersions;
+        this.maxAge = maxAge;
+        this.checkpointEvery = checkpointEvery;
+    }
+
+    /**
+     * Возвращает политику, которая хранит все версии.
+     *
+     * @return политика без ограничений
+     */
+    public static RetentionPolicy unbounded() {
+        return UNBOUNDED;
+    }
+
+    /**
+     * Возвращает политику, которая хранит последние count версий.
+     *
+     * @param count количество хранимых версий, включая текущую
+     * @return политика хранения
+     */
+    public static RetentionPolicy keepLast(int count) {
+        return UNBOUNDED.withLastVersions(count);
+    }
+
+    /**
+     * Возвращает политику, которая хранит версии моложе maxAge.
+     *
+     * @param maxAge максимальный возраст версии
+     * @return политика хранения
+     */
+    public static RetentionPolicy keepYoungerThan(Duration maxAge) {
+        return UNBOUNDED.withMaxAge(maxAge);
+    }
+
+    /**
+     * Возвращает политику, которая хранит каждую step-ю версию как контрольную точку.
+     *
+     * @param step шаг контрольных точек
+     * @return политика хранения
+     */
+    public static RetentionPolicy checkpointEvery(int step) {
+        return UNBOUNDED.withCheckpointEvery(step);
+    }
+
+    public RetentionPolicy withLastVersions(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Count must be positive");
+        }
+        return new RetentionPolicy(count, maxAge, checkpointEvery);
+    }
+
+    public RetentionPolicy withMaxAge(Duration age) {
+        if (age.isNegative()) {
+            throw new IllegalArgumentException("Age must not be negative");
+        }
+        return new RetentionPolicy(lastVersions, age, checkpointEvery);
+    }
+
+    public RetentionPolicy withCheckpointEvery(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("Step must be positive");
+        }
+        return new RetentionPolicy(lastVersions, maxAge, step);
+    }
+
+    /**
+     * Возвращает true, если политика хранит все версии.
+     *
+     * @return true, если ни одно правило не задано
+     */
+    public boolean isUnbounded() {
+        return lastVersions == 0 && maxAge == null && checkpointEvery == 0;
+    }
+
+    /**
+     * Возвращает true, если версия попадает в окно последних версий или в окно возраста.
+     * Со временем версия может только выйти из окон, но не вернуться в них.
+     *
+     * @param position  позиция версии среди хранимых, 0 - самая новая
+     * @param createdAt время создания версии в миллисекундах
+     * @param now       текущее время в миллисекундах
+     */
+    boolean inWindow(int position, long createdAt, long now) {
+        return (lastVersions > 0 && position < lastVersions)
+                || (maxAge != null && now - createdAt < maxAge.toMillis());
+    }
+
+    /**
+     * Возвращает true, если версия с номером id является контрольной точкой.
+     */
+    boolean isCheckpoint(long id) {
+        return checkpointEvery > 0 && id % checkpointEvery == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy{lastVersions=" + lastVersions + ", maxAge=" + maxAge
+                + ", checkpointEvery=" + checkpointEvery + "}";
+    }
+}
@@ -0,0 +1,160 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Потоковое чтение бинарного снимка, записанного {@link SnapshotOutput}.
+ * <p>
+ * Общие объекты восстанавливаются в порядке записи и получают те же номера, поэтому ссылки
+ * на уже прочитанные объекты указывают на один и тот же экземпляр, и восстановленные версии
+ * разделяют узлы так же, как исходные.
+ * </p>
+ */
+public final class SnapshotInput implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    /**
+     * Прочитанные общие объекты по номерам
+     */
+    private final List<Object> shared = new ArrayList<>();
+
+    public SnapshotInput(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+        if (readInt() != SnapshotOutput.MAGIC) {
+            throw new IOException("Not a persistent data snapshot");
+        }
+        int version = readInt();
+        if (version != SnapshotOutput.FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format version " + version);
+        }
+    }
+
+    /**
+     * Создает чтение без заголовка снимка, например для чтения журнала операций.
+     *
+     * @param channel        канал
+     * @param bufferCapacity размер буфера
+     */
+    SnapshotInput(ReadableByteChannel channel, int bufferCapacity) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferCapacity).flip();
+    }
+
+    public byte readByte() throws IOException {
+        ensure(Byte.BYTES);
+        return buffer.get();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException {
+        ensure(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        ensure(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    public double readDouble() throws IOException {
+        ensure(Double.BYTES);
+        return buffer.getDouble();
+    }
+
+    public String readString() throws IOException {
+        byte[] bytes = new byte[readInt()];
+        readBytes(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Заполняет массив байтами снимка.
+     *
+     * @param bytes массив для прочитанных байт
+     */
+    public void readBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                ensure(1);
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Читает объект, записанный {@link SnapshotOutput#writeShared}.
+     *
+     * @param codec кодек содержимого объекта
+     * @return новый объект или уже прочитанный экземпляр
+     */
+    public <T> T readShared(ElementCodec<T> codec) throws IOException {
+        return readShared(codec::read);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T readShared(ElementCodec.Reader<T> reader) throws IOException {
+        byte tag = readByte();
+        if (tag == SnapshotOutput.SHARED_REFERENCE) {
+            int id = readInt();
+            if (id < 0 || id >= shared.size()) {
+                throw new IOException("Reference to unknown object " + id);
+            }
+            return (T) shared.get(id);
+        }
+        if (tag != SnapshotOutput.SHARED_VALUE) {
+            throw new IOException("Corrupted snapshot: unexpected tag " + tag);
+        }
+        T value = reader.read(this);
+        shared.add(value);
+        return value;
+    }
+
+    /**
+     * Читает массив значений, записанный {@link SnapshotOutput#writeValues}.
+     *
+     * @param codec кодек значений
+     * @return значения
+     */
+    public Object[] readValues(ElementCodec<?> codec) throws IOException {
+        Object[] values = new Object[readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = codec.read(this);
+        }
+        return values;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                throw new EOFException("Unexpected end of snapshot");
+            }
+        }
+        buffer.flip();
+    }
+}
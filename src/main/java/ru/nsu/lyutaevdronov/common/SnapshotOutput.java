@@ -0,0 +1,167 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Буферизованная запись бинарного снимка персистентной структуры в FileChannel.
+ * <p>
+ * Общие объекты (узлы, версии массивов, записи) записываются через {@link #writeShared}: при первой
+ * встрече объект записывается целиком и получает номер, при следующих - записывается только номер.
+ * Номер выдается после записи содержимого, поэтому потомки всегда записаны раньше родителя,
+ * и снимок читается за один проход. Узлы, общие для нескольких версий, попадают в файл один раз.
+ * </p>
+ */
+public final class SnapshotOutput implements Closeable {
+    static final int MAGIC = 0x50445331;
+    static final int FORMAT_VERSION = 1;
+
+    static final byte SHARED_REFERENCE = 0;
+    static final byte SHARED_VALUE = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    /**
+     * Номера уже записанных общих объектов, объекты сравниваются по ссылке
+     */
+    private final Map<Object, Integer> sharedIds = new IdentityHashMap<>();
+
+    public SnapshotOutput(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        writeInt(MAGIC);
+        writeInt(FORMAT_VERSION);
+    }
+
+    /**
+     * Создает запись без заголовка снимка, например для записи журнала операций.
+     *
+     * @param channel        канал
+     * @param bufferCapacity размер буфера
+     */
+    SnapshotOutput(WritableByteChannel channel, int bufferCapacity) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferCapacity);
+    }
+
+    public void writeByte(int value) throws IOException {
+        ensure(Byte.BYTES);
+        buffer.put((byte) value);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensure(Long.BYTES);
+        buffer.putLong(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        ensure(Double.BYTES);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Записывает строку в UTF-8 с длиной в байтах перед ней.
+     *
+     * @param value строка
+     */
+    public void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        writeBytes(bytes);
+    }
+
+    /**
+     * Записывает байты без длины.
+     *
+     * @param bytes байты
+     */
+    public void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Записывает объект, общий для нескольких частей снимка: целиком при первой встрече, далее - номером.
+     *
+     * @param value объект
+     * @param codec кодек содержимого объекта
+     */
+    public <T> void writeShared(T value, ElementCodec<? super T> codec) throws IOException {
+        writeShared(value, codec::write);
+    }
+
+    private <T> void writeShared(T value, ElementCodec.Writer<? super T> writer) throws IOException {
+        Integer id = sharedIds.get(value);
+        if (id != null) {
+            writeByte(SHARED_REFERENCE);
+            writeInt(id);
+            return;
+        }
+        writeByte(SHARED_VALUE);
+        writer.write(this, value);
+        sharedIds.put(value, sharedIds.size());
+    }
+
+    /**
+     * Записывает массив значений с длиной перед ним.
+     *
+     * @param values значения
+     * @param codec  кодек значений
+     */
+    @SuppressWarnings("unchecked")
+    public <E> void writeValues(Object[] values, ElementCodec<? super E> codec) throws IOException {
+        writeInt(values.length);
+        for (Object value : values) {
+            codec.write(this, (E) value);
+        }
+    }
+
+    /**
+     * Записывает содержимое буфера в канал.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
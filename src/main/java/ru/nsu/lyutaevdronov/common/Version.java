@@ -0,0 +1,12 @@
+package ru.nsu.lyutaevdronov.common;
+
+/**
+ * Версия персистентной структуры
+ *
+ * @param id        номер версии, возрастает с каждым изменением
+ * @param createdAt время создания версии в миллисекундах
+ * @param state     неизменяемое состояние структуры в этой версии
+ * @param <S>       тип состояния
+ */
+public record Version<S>(long id, long createdAt, S state) {
+}
@@ -0,0 +1,562 @@
+package ru.nsu.lyutaevdronov.common;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * История версий персистентной структуры, которая поддерживает undo redo
+ * <p>
+ * Каждая версия хранит неизменяемое состояние структуры, поэтому любую версию можно удалить
+ * из истории, не затрагивая остальные. Версии, которые не оставляет {@link RetentionPolicy},
+ * удаляются при добавлении новой версии, и узлы, на которые ссылались только они,
+ * становятся доступны сборщику мусора.
+ * </p>
+ * <p>
+ * История ветвится: изменение после undo не удаляет отмененные версии, а начинает новую ветку,
+ * старая ветка остается со своими версиями. Ветки разделяют общие версии и узлы, переключение
+ * между ними стоит O(1). Версия удаляется, когда её не хранит ни одна ветка.
+ * </p>
+ * <p>
+ * Стеки версий - неизменяемые очереди, звенья которых разделяются между ветками и копиями истории.
+ * История считает ссылки на звенья из веток и из других звеньев: звено, на которое не осталось
+ * ссылок, освобождает следующее звено и свою версию. Для каждой версии индекс по номеру хранит
+ * количество живых звеньев с ней, и версия удаляется из индекса, когда это количество становится
+ * нулевым. Изменение стека создает и освобождает O(1) звеньев.
+ * </p>
+ * <p>
+ * Ветки, индекс версий и счетчики ссылок хранятся в неизменяемых отображениях
+ * {@link PersistentHashMap}, поэтому копирование истории стоит O(1), создание ветки - O(log n),
+ * а копии изменяются независимо, разделяя общие узлы отображений.
+ * </p>
+ *
+ * @param <S> тип состояния
+ */
+public final class VersionHistory<S> {
+    /**
+     * Имя начальной ветки
+     */
+    public static final String MAIN_BRANCH = "main";
+
+    private PersistentHashMap<String, Branch<S>> branches = PersistentHashMap.empty();
+    /**
+     * Индекс хранимых версий по номеру со счетчиками звеньев стеков, которые их содержат
+     */
+    private PersistentHashMap<Long, Held<S>> versionsById = PersistentHashMap.empty();
+    /**
+     * Количество ссылок на живые звенья стеков из веток и других звеньев
+     */
+    private PersistentHashMap<PersistentDeque.Cons<Version<S>>, Integer> references = PersistentHashMap.empty();
+
+    private String currentBranchName = MAIN_BRANCH;
+    private Branch<S> branch;
+    private RetentionPolicy retentionPolicy = RetentionPolicy.unbounded();
+    private long nextId;
+    private int nextBranchOrder;
+
+    public VersionHistory(S initial) {
+        Branch<S> main = newBranch(PersistentDeque.empty(), PersistentDeque.empty());
+        addBranch(MAIN_BRANCH, main.withUndoStack(main.undoStack.push(newVersion(initial))));
+    }
+
+    private VersionHistory() {
+    }
+
+    public VersionHistory(VersionHistory<S> other) {
+        this.branches = other.branches;
+        this.versionsById = other.versionsById;
+        this.references = other.references;
+        this.currentBranchName = other.currentBranchName;
+        this.branch = other.branch;
+        this.retentionPolicy = other.retentionPolicy;
+        this.nextId = other.nextId;
+        this.nextBranchOrder = other.nextBranchOrder;
+    }
+
+    /**
+     * Возвращает текущую версию.
+     *
+     * @return текущая версия
+     */
+    public Version<S> current() {
+        return branch.undoStack.peek();
+    }
+
+    /**
+     * Добавляет новую текущую версию. Если в текущей ветке есть отмененные версии, они остаются
+     * в ней, а новая версия начинает новую ветку с именем "branch-" + номер версии, которая становится текущей.
+     *
+     * @param state состояние новой версии
+     * @return добавленная версия
+     */
+    public Version<S> record(S state) {
+        Version<S> version = newVersion(state);
+        if (!branch.redoStack.isEmpty()) {
+            fork("branch-" + version.id());
+        }
+        updateBranch(currentBranchName, compact(branch.withUndoStack(branch.undoStack.push(version))));
+        return version;
+    }
+
+    /**
+     * Делает текущей предыдущую хранимую версию текущей ветки.
+     *
+     * @return true, если текущая версия изменилась
+     */
+    public boolean undo() {
+        if (branch.undoStack.size() > 1) {
+            updateBranch(currentBranchName, new Branch<>(branch.order, branch.checkpoints,
+                    branch.undoStack.pop(), branch.redoStack.push(branch.undoStack.peek())));
+            return true;
+        }
+        if (!branch.checkpoints.isEmpty()) {
+            updateBranch(currentBranchName, new Branch<>(branch.order, branch.checkpoints.pop(),
+                    branch.undoStack.pop().push(branch.checkpoints.peek()), branch.redoStack.push(branch.undoStack.peek())));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Делает текущей последнюю отмененную версию текущей ветки.
+     *
+     * @return true, если текущая версия изменилась
+     */
+    public boolean redo() {
+        if (branch.redoStack.isEmpty()) {
+            return false;
+        }
+        updateBranch(currentBranchName, new Branch<>(branch.order, branch.checkpoints,
+                branch.undoStack.push(branch.redoStack.peek()), branch.redoStack.pop()));
+        return true;
+    }
+
+    /**
+     * Удаляет отмененные версии текущей ветки.
+     */
+    public void clearRedo() {
+        updateBranch(currentBranchName, new Branch<>(branch.order, branch.checkpoints, branch.undoStack,
+                PersistentDeque.empty()));
+    }
+
+    /**
+     * Возвращает хранимую версию с указанным номером за O(log32 n).
+     *
+     * @param id номер версии
+     * @return версия
+     * @throws NoSuchElementException если версии с таким номером нет или она удалена политикой хранения
+     */
+    public Version<S> get(long id) {
+        Held<S> held = versionsById.get(id);
+        if (held == null) {
+            throw new NoSuchElementException("Version " + id + " is not retained");
+        }
+        return held.version;
+    }
+
+    /**
+     * Возвращает имя текущей ветки.
+     *
+     * @return имя текущей ветки
+     */
+    public String currentBranch() {
+        return currentBranchName;
+    }
+
+    /**
+     * Возвращает имена веток в порядке создания.
+     *
+     * @return имена веток
+     */
+    public Set<String> branchNames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (Map.Entry<String, Branch<S>> entry : orderedBranches()) {
+            names.add(entry.getKey());
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Создает ветку, которая начинается с текущей версии, и делает её текущей.
+     * Отмененные версии остаются в предыдущей ветке.
+     *
+     * @param name имя новой ветки
+     * @throws IllegalArgumentException если ветка с таким именем уже есть
+     */
+    public void createBranch(String name) {
+        if (branches.containsKey(name)) {
+            throw new IllegalArgumentException("Branch " + name + " already exists");
+        }
+        fork(name);
+    }
+
+    /**
+     * Делает текущей указанную ветку за O(1). Текущей версией становится версия, на которой
+     * ветка была оставлена.
+     *
+     * @param name имя ветки
+     * @throws NoSuchElementException если ветки нет
+     */
+    public void switchBranch(String name) {
+        Branch<S> target = branches.get(name);
+        if (target == null) {
+            throw new NoSuchElementException("Branch " + name + " does not exist");
+        }
+        branch = target;
+        currentBranchName = name;
+    }
+
+    /**
+     * Переименовывает ветку.
+     *
+     * @param name    имя ветки
+     * @param newName новое имя ветки
+     */
+    public void renameBranch(String name, String newName) {
+        if (!branches.containsKey(name)) {
+            throw new NoSuchElementException("Branch " + name + " does not exist");
+        }
+        if (branches.containsKey(newName)) {
+            throw new IllegalArgumentException("Branch " + newName + " already exists");
+        }
+
+        // Ветка сохраняет порядковый номер, поэтому остается на своем месте среди веток
+        branches = branches.remove(name).put(newName, branches.get(name));
+        if (currentBranchName.equals(name)) {
+            currentBranchName = newName;
+        }
+    }
+
+    /**
+     * Удаляет ветку. Версии, которые хранила только она, удаляются из истории.
+     *
+     * @param name имя ветки
+     * @throws IllegalStateException если ветка текущая
+     */
+    public void deleteBranch(String name) {
+        if (currentBranchName.equals(name)) {
+            throw new IllegalStateException("Cannot delete current branch");
+        }
+        Branch<S> removed = branches.get(name);
+        if (removed == null) {
+            throw new NoSuchElementException("Branch " + name + " does not exist");
+        }
+        branches = branches.remove(name);
+        release(removed);
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    /**
+     * Устанавливает политику хранения и сразу удаляет версии, которые она не оставляет, во всех ветках.
+     *
+     * @param retentionPolicy политика хранения
+     */
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = Objects.requireNonNull(retentionPolicy);
+        for (Map.Entry<String, Branch<S>> entry : orderedBranches()) {
+            updateBranch(entry.getKey(), compact(entry.getValue()));
+        }
+    }
+
+    /**
+     * Возвращает количество хранимых версий во всех ветках, включая отмененные.
+     *
+     * @return количество хранимых версий
+     */
+    public int size() {
+        return versionsById.size();
+    }
+
+    /**
+     * Возвращает все хранимые версии всех веток в порядке номеров.
+     *
+     * @return список хранимых версий
+     */
+    public List<Version<S>> versions() {
+        List<Version<S>> versions = new ArrayList<>(versionsById.size());
+        for (Held<S> held : versionsById.values()) {
+            versions.add(held.version);
+        }
+        versions.sort(Comparator.comparingLong(Version::id));
+        return versions;
+    }
+
+    /**
+     * Записывает в снимок все хранимые версии и ветки. Каждое состояние записывается один раз,
+     * ветки ссылаются на версии по номерам. Политика хранения не записывается.
+     *
+     * @param out        снимок
+     * @param stateCodec кодек состояний
+     */
+    public void writeTo(SnapshotOutput out, ElementCodec<? super S> stateCodec) throws IOException {
+        out.writeLong(nextId);
+        List<Version<S>> versions = versions();
+        out.writeInt(versions.size());
+        for (Version<S> version : versions) {
+            out.writeLong(version.id());
+            out.writeLong(version.createdAt());
+            stateCodec.write(out, version.state());
+        }
+
+        out.writeInt(branches.size());
+        for (Map.Entry<String, Branch<S>> entry : orderedBranches()) {
+            Branch<S> each = entry.getValue();
+            out.writeString(entry.getKey());
+            // Стеки записываются от дна к вершине, redo - от вершины ко дну, то есть по возрастанию номеров
+            writeIds(out, reversed(each.checkpoints));
+            writeIds(out, reversed(each.undoStack));
+            writeIds(out, each.redoStack);
+        }
+        out.writeString(currentBranchName);
+    }
+
+    /**
+     * Читает историю, записанную {@link #writeTo}. Восстановленная история хранит все версии.
+     *
+     * @param in         снимок
+     * @param stateCodec кодек состояний
+     * @return история
+     */
+    public static <S> VersionHistory<S> readFrom(SnapshotInput in, ElementCodec<S> stateCodec) throws IOException {
+        VersionHistory<S> history = new VersionHistory<>();
+        history.nextId = in.readLong();
+        int versionCount = in.readInt();
+        Map<Long, Version<S>> versions = new HashMap<>();
+        for (int i = 0; i < versionCount; i++) {
+            long id = in.readLong();
+            long createdAt = in.readLong();
+            versions.put(id, new Version<>(id, createdAt, stateCodec.read(in)));
+        }
+
+        int branchCount = in.readInt();
+        for (int i = 0; i < branchCount; i++) {
+            String name = in.readString();
+            PersistentDeque<Version<S>> checkpoints = PersistentDeque.empty();
+            for (Version<S> version : readVersions(in, versions)) {
+                checkpoints = checkpoints.push(version);
+            }
+            PersistentDeque<Version<S>> undoStack = PersistentDeque.empty();
+            for (Version<S> version : readVersions(in, versions)) {
+                undoStack = undoStack.push(version);
+            }
+            PersistentDeque<Version<S>> redoStack = PersistentDeque.empty();
+            for (Version<S> version : readVersions(in, versions).reversed()) {
+                redoStack = redoStack.push(version);
+            }
+            if (undoStack.isEmpty()) {
+                throw new IOException("Corrupted snapshot: branch " + name + " has no current version");
+            }
+            Branch<S> each = history.newBranch(checkpoints, undoStack);
+            history.addBranch(name, each.withRedoStack(redoStack));
+        }
+
+        history.currentBranchName = in.readString();
+        history.branch = history.branches.get(history.currentBranchName);
+        if (history.branch == null) {
+            throw new IOException("Corrupted snapshot: unknown current branch " + history.currentBranchName);
+        }
+        return history;
+    }
+
+    private static <S> void writeIds(SnapshotOutput out, Iterable<Version<S>> versions) throws IOException {
+        List<Version<S>> list = new ArrayList<>();
+        versions.forEach(list::add);
+        out.writeInt(list.size());
+        for (Version<S> version : list) {
+            out.writeLong(version.id());
+        }
+    }
+
+    private static <S> List<Version<S>> reversed(Iterable<Version<S>> versions) {
+        List<Version<S>> list = new ArrayList<>();
+        versions.forEach(list::add);
+        return list.reversed();
+    }
+
+    private static <S> List<Version<S>> readVersions(SnapshotInput in, Map<Long, Version<S>> stored)
+            throws IOException {
+        int count = in.readInt();
+        List<Version<S>> versions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            Version<S> version = stored.get(id);
+            if (version == null) {
+                throw new IOException("Corrupted snapshot: unknown version " + id);
+            }
+            versions.add(version);
+        }
+        return versions;
+    }
+
+    /**
+     * Создает ветку с версиями текущей ветки до текущей версии включительно и делает её текущей.
+     * Стеки разделяются с текущей веткой, поэтому добавляются только ссылки на вершины её стеков.
+     */
+    private void fork(String name) {
+        addBranch(name, newBranch(branch.checkpoints, branch.undoStack));
+    }
+
+    private Branch<S> newBranch(PersistentDeque<Version<S>> checkpoints, PersistentDeque<Version<S>> undoStack) {
+        return new Branch<>(nextBranchOrder++, checkpoints, undoStack, PersistentDeque.empty());
+    }
+
+    /**
+     * Добавляет ветку и делает её текущей
+     */
+    private void addBranch(String name, Branch<S> added) {
+        retain(added);
+        branches = branches.put(name, added);
+        branch = added;
+        currentBranchName = name;
+    }
+
+    /**
+     * Заменяет ветку её новым состоянием. Сначала учитываются ссылки новых стеков, затем освобождаются
+     * ссылки старых, поэтому общие звенья не освобождаются.
+     */
+    private void updateBranch(String name, Branch<S> updated) {
+        Branch<S> old = branches.get(name);
+        retain(updated);
+        release(old);
+        branches = branches.put(name, updated);
+        if (name.equals(currentBranchName)) {
+            branch = updated;
+        }
+    }
+
+    private List<Map.Entry<String, Branch<S>>> orderedBranches() {
+        List<Map.Entry<String, Branch<S>>> entries = new ArrayList<>(branches.size());
+        branches.forEach((name, each) -> entries.add(Map.entry(name, each)));
+        entries.sort(Comparator.comparingInt(entry -> entry.getValue().order));
+        return entries;
+    }
+
+    /**
+     * Удаляет самые старые версии ветки, вышедшие из окон политики, оставляя контрольные точки.
+     * Версии выходят из окон в порядке создания, поэтому просмотр останавливается на первой версии в окне.
+     *
+     * @return ветка без удаленных версий
+     */
+    private Branch<S> compact(Branch<S> target) {
+        if (retentionPolicy.isUnbounded()) {
+            return target;
+        }
+
+        long now = System.currentTimeMillis();
+        PersistentDeque<Version<S>> checkpoints = target.checkpoints;
+        PersistentDeque<Version<S>> undoStack = target.undoStack;
+        while (undoStack.size() > 1) {
+            Version<S> oldest = undoStack.peekLast();
+            if (retentionPolicy.inWindow(undoStack.size() - 1, oldest.createdAt(), now)) {
+                break;
+            }
+            undoStack = undoStack.popLast();
+            if (retentionPolicy.isCheckpoint(oldest.id())) {
+                checkpoints = checkpoints.push(oldest);
+            }
+        }
+        return new Branch<>(target.order, checkpoints, undoStack, target.redoStack);
+    }
+
+    private void retain(Branch<S> target) {
+        retain(target.checkpoints);
+        retain(target.undoStack);
+        retain(target.redoStack);
+    }
+
+    private void release(Branch<S> target) {
+        release(target.checkpoints);
+        release(target.undoStack);
+        release(target.redoStack);
+    }
+
+    private void retain(PersistentDeque<Version<S>> deque) {
+        retain(deque.front());
+        retain(deque.rear());
+    }
+
+    private void release(PersistentDeque<Version<S>> deque) {
+        release(deque.front());
+        release(deque.rear());
+    }
+
+    /**
+     * Добавляет ссылку на звено. Новое звено в свою очередь ссылается на следующее и хранит свою версию
+     */
+    private void retain(PersistentDeque.Cons<Version<S>> cell) {
+        for (PersistentDeque.Cons<Version<S>> node = cell; node != null; node = node.next()) {
+            Integer count = references.get(node);
+            references = references.put(node, count == null ? 1 : count + 1);
+            if (count != null) {
+                return;
+            }
+            hold(node.value());
+        }
+    }
+
+    /**
+     * Удаляет ссылку на звено. Звено без ссылок освобождает следующее звено и свою версию
+     */
+    private void release(PersistentDeque.Cons<Version<S>> cell) {
+        for (PersistentDeque.Cons<Version<S>> node = cell; node != null; node = node.next()) {
+            int count = references.get(node);
+            if (count > 1) {
+                references = references.put(node, count - 1);
+                return;
+            }
+            references = references.remove(node);
+            drop(node.value());
+        }
+    }
+
+    /**
+     * Учитывает, что версию содержит еще одно звено
+     */
+    private void hold(Version<S> version) {
+        Held<S> held = versionsById.get(version.id());
+        versionsById = versionsById.put(version.id(), new Held<>(version, held == null ? 1 : held.cells + 1));
+    }
+
+    /**
+     * Учитывает, что звено с версией освобождено. Версия удаляется из индекса, когда её не содержит ни одно звено.
+     */
+    private void drop(Version<S> version) {
+        Held<S> held = versionsById.get(version.id());
+        versionsById = held.cells == 1
+                ? versionsById.remove(version.id())
+                : versionsById.put(version.id(), new Held<>(version, held.cells - 1));
+    }
+
+    private Version<S> newVersion(S state) {
+        return new Version<>(nextId++, System.currentTimeMillis(), state);
+    }
+
+    /**
+     * Версия в индексе и количество живых звеньев стеков, которые её содержат
+     */
+    private record Held<S>(Version<S> version, int cells) {
+    }
+
+    /**
+     * Ветка истории: стеки undo/redo и контрольные точки. Ветка неизменяема, изменение создает новую ветку
+     * с новыми стеками
+     *
+     * @param order       порядковый номер ветки по времени создания
+     * @param checkpoints старые версии, которые вышли из окон политики и сохранены как контрольные точки.
+     *                    Их статус больше не меняется, поэтому при сжатии истории они не просматриваются
+     * @param undoStack   стек для хранения состояний, изменения к которым могут быть отменены. На вершине - текущая версия
+     * @param redoStack   стек для хранения состояний, изменения к которым могут быть повторно применены
+     */
+    private record Branch<S>(int order, PersistentDeque<Version<S>> checkpoints,
+                             PersistentDeque<Version<S>> undoStack, PersistentDeque<Version<S>> redoStack) {
+        private Branch<S> withUndoStack(PersistentDeque<Version<S>> undoStack) {
+            return new Branch<>(order, checkpoints, undoStack, redoStack);
+        }
+
+        private Branch<S> withRedoStack(PersistentDeque<Version<S>> redoStack) {
+            return new Branch<>(order, checkpoints, undoStack, redoStack);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ru.nsu.lyutaevdronov.map;
+
+import ru.nsu.lyutaevdronov.common.ElementCodec;
+import ru.nsu.lyutaevdronov.common.LogOperation;
+import ru.nsu.lyutaevdronov.common.OperationLog;
+import ru.nsu.lyutaevdronov.common.SnapshotInput;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Применяет записи журнала операций к персистентному ассоциативному массиву теми же публичными методами,
+ * которыми они были сделаны, поэтому ассоциативный массив получает те же версии.
+ *
+ * @param <K> тип ключей
+ * @param <V> тип значений
+ */
+final class MapLogReplay<K, V> implements OperationLog.RecordHandler {
+    private final PersistentAssociativeArray<K, V> map;
+    private final ElementCodec<K> keyCodec;
+    private final ElementCodec<V> valueCodec;
+
+    MapLogReplay(PersistentAssociativeArray<K, V> map, ElementCodec<K> keyCodec, ElementCodec<V> valueCodec) {
+        this.map = map;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    @Override
+    public void apply(LogOperation operation, SnapshotInput in) throws IOException {
+        switch (operation) {
+            case PUT -> {
+                K key = keyCodec.read(in);
+                map.put(key, valueCodec.read(in));
+            }
+            case REMOVE_KEY -> map.remove(keyCodec.read(in));
+            case CLEAR -> map.clear();
+            case UNDO -> map.undo();
+            case REDO -> map.redo();
+            case CREATE_BRANCH -> map.createBranch(in.readString());
+            case SWITCH_BRANCH -> map.switchBranch(in.readString());
+            case RENAME_BRANCH -> {
+                String name = in.readString();
+                map.renameBranch(name, in.readString());
+            }
+            case DELETE_BRANCH -> map.deleteBranch(in.readString());
+            case MERGE -> applyMerge(in);
+            default -> throw new IOException("Operation " + operation + " is not supported by PersistentAssociativeArray");
+        }
+    }
+
+    /**
+     * Повторяет слияние, возвращая записанные решения конфликтов в том же порядке
+     */
+    private void applyMerge(SnapshotInput in) throws IOException {
+        long base = in.readLong();
+        long left = in.readLong();
+        long right = in.readLong();
+        int count = in.readInt();
+        List<V> resolved = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            resolved.add(in.readBoolean() ? valueCodec.read(in) : null);
+        }
+        Iterator<V> answers = resolved.iterator();
+        map.merge(base, left, right, (key, baseValue, leftValue, rightValue) -> answers.next());
+    }
+}
@@ -1,10 +1,28 @@
 package ru.nsu.lyutaevdronov.map;
 
 import org.jetbrains.annotations.NotNull;
+import ru.nsu.lyutaevdronov.array.HeadArray;
+import ru.nsu.lyutaevdronov.array.MemoryEstimate;
 import ru.nsu.lyutaevdronov.array.PersistentArray;
+import ru.nsu.lyutaevdronov.common.ConflictResolver;
+import ru.nsu.lyutaevdronov.common.ElementCodec;
+import ru.nsu.lyutaevdronov.common.LogOperation;
+import ru.nsu.lyutaevdronov.common.Metrics;
+import ru.nsu.lyutaevdronov.common.OperationLog;
+import ru.nsu.lyutaevdronov.common.RetentionPolicy;
+import ru.nsu.lyutaevdronov.common.SnapshotInput;
+import ru.nsu.lyutaevdronov.common.SnapshotOutput;
 import ru.nsu.lyutaevdronov.common.SpecialPersistentData;
+import ru.nsu.lyutaevdronov.common.Version;
+import ru.nsu.lyutaevdronov.common.VersionHistory;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Persistent ассоциативный массив, который поддерживает undo redo
@@ -14,15 +32,12 @@ import java.util.*;
  */
 public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implements SpecialPersistentData {
     private static final int TABLE_MAX_SIZE = 16;
-    private final List<PersistentArray<Pair<K, V>>> table;
+    private final List<Bucket<K, V>> table;
     /**
-     * Стек для хранения индексов Entry, изменения к которым могут быть отменены
+     * История версий: каждая версия хранит версии всех корзин таблицы. Сами корзины хранят
+     * только текущую версию, undo/redo восстанавливает корзины из истории.
      */
-    private final Deque<Integer> undo = new ArrayDeque<>();
-    /**
-     * Стек для хранения индексов Entry, изменения к которым могут быть повторно применены
-     */
-    private final Deque<Integer> redo = new ArrayDeque<>();
+    private final VersionHistory<List<HeadArray<Pair<K, V>>>> history;
     /**
      * Стек для хранения вложенных персистентных структур, изменения к которым могут быть отменены
      */
@@ -38,24 +53,87 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
     private SpecialPersistentData parent;
     private int countInsertedMaps = 0;
 
+    /**
+     * Журнал, в который записываются изменения ассоциативного массива, и кодеки для него
+     */
+    private OperationLog operationLog;
+    private ElementCodec<K> logKeyCodec;
+    private ElementCodec<V> logValueCodec;
+    /**
+     * Выполняется ли сейчас undo или redo: вложенные вызовы самого ассоциативного массива не учитываются в метриках
+     */
+    private boolean undoing;
+
     public PersistentAssociativeArray() {
-        this.table = new ArrayList<>(30);
+        this.table = newTable();
+        this.history = new VersionHistory<>(currentBuckets());
+    }
+
+    private PersistentAssociativeArray(VersionHistory<List<HeadArray<Pair<K, V>>>> history) {
+        this.table = newTable();
+        this.history = history;
+        restoreBuckets();
+    }
+
+    private static <K, V> List<Bucket<K, V>> newTable() {
+        List<Bucket<K, V>> table = new ArrayList<>(30);
         for (int i = 0; i < TABLE_MAX_SIZE; i++) {
-            table.add(new PersistentArray<>());
+            table.add(new Bucket<>());
         }
+        return table;
     }
 
     public PersistentAssociativeArray(PersistentAssociativeArray<K, V> other) {
         this.table = new ArrayList<>(30);
         for (int i = 0; i < TABLE_MAX_SIZE; i++) {
-            table.add(new PersistentArray<>(other.table.get(i)));
+            table.add(new Bucket<>(other.table.get(i)));
         }
-        this.undo.addAll(other.undo);
-        this.redo.addAll(other.redo);
+        this.history = new VersionHistory<>(other.history);
     }
 
     @Override
     public void undo() {
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        OperationLog log = operationLog;
+        boolean nested = undoing;
+        operationLog = null;
+        undoing = true;
+        try {
+            undoVersion();
+        } finally {
+            operationLog = log;
+            undoing = nested;
+        }
+        if (Metrics.ENABLED && !nested) {
+            Metrics.operation(LogOperation.UNDO, mark);
+        }
+        log(LogOperation.UNDO, OperationLog.Arguments.NONE);
+    }
+
+    @Override
+    public void redo() {
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        OperationLog log = operationLog;
+        boolean nested = undoing;
+        operationLog = null;
+        undoing = true;
+        try {
+            redoVersion();
+        } finally {
+            operationLog = log;
+            undoing = nested;
+        }
+        if (Metrics.ENABLED && !nested) {
+            Metrics.operation(LogOperation.REDO, mark);
+        }
+        log(LogOperation.REDO, OperationLog.Arguments.NONE);
+    }
+
+    /**
+     * Отмена может рекурсивно вызвать undo вложенных структур и самого ассоциативного массива,
+     * поэтому в журнал и метрики записывается только внешний вызов
+     */
+    private void undoVersion() {
         if (!insertedUndoStack.isEmpty()) {
             if (insertedUndoStack.peek().isEmpty()) {
                 insertedRedoStack.push(insertedUndoStack.pop());
@@ -70,8 +148,7 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
         }
     }
 
-    @Override
-    public void redo() {
+    private void redoVersion() {
         if (!insertedRedoStack.isEmpty()) {
             if (insertedRedoStack.peek().isEmpty()) {
                 if (insertedRedoStack.peek().getParent().size() == countInsertedMaps) {
@@ -88,20 +165,81 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
         }
     }
 
+    /**
+     * Подключает журнал операций: все последующие put, remove, clear, undo, redo и операции
+     * с ветками записываются в него. Журнал отключается вызовом с null.
+     *
+     * @param log        журнал операций
+     * @param keyCodec   кодек ключей
+     * @param valueCodec кодек значений
+     */
+    public void attachOperationLog(OperationLog log, ElementCodec<K> keyCodec, ElementCodec<V> valueCodec) {
+        this.operationLog = log;
+        this.logKeyCodec = log == null ? null : Objects.requireNonNull(keyCodec);
+        this.logValueCodec = log == null ? null : Objects.requireNonNull(valueCodec);
+    }
+
+    /**
+     * Применяет к ассоциативному массиву операции из журнала, например после чтения последнего снимка.
+     * Применяемые операции не записываются в подключенный журнал.
+     *
+     * @param file       файл журнала
+     * @param keyCodec   кодек ключей
+     * @param valueCodec кодек значений
+     * @return количество примененных операций
+     */
+    public int replayOperationLog(Path file, ElementCodec<K> keyCodec, ElementCodec<V> valueCodec) throws IOException {
+        OperationLog attached = operationLog;
+        operationLog = null;
+        try {
+            return OperationLog.replay(file, new MapLogReplay<>(this, keyCodec, valueCodec));
+        } finally {
+            operationLog = attached;
+        }
+    }
+
+    private void log(LogOperation operation, OperationLog.Arguments arguments) {
+        if (operationLog != null) {
+            operationLog.append(operation, arguments);
+        }
+    }
+
     private void standardUndo() {
-        if (!undo.isEmpty()) {
-            table.get(undo.peek()).undo();
-            redo.push(undo.pop());
+        if (history.undo()) {
+            restoreBuckets();
         }
     }
 
     private void standardRedo() {
-        if (!redo.isEmpty()) {
-            table.get(redo.peek()).redo();
-            undo.push(redo.pop());
+        if (history.redo()) {
+            restoreBuckets();
+        }
+    }
+
+    private List<HeadArray<Pair<K, V>>> currentBuckets() {
+        List<HeadArray<Pair<K, V>>> buckets = new ArrayList<>(TABLE_MAX_SIZE);
+        for (Bucket<K, V> bucket : table) {
+            buckets.add(bucket.head());
+        }
+        return Collections.unmodifiableList(buckets);
+    }
+
+    /**
+     * Восстанавливает корзины текущей версии истории, не изменившиеся корзины не трогаются
+     */
+    private void restoreBuckets() {
+        List<HeadArray<Pair<K, V>>> buckets = history.current().state();
+        for (int i = 0; i < TABLE_MAX_SIZE; i++) {
+            if (table.get(i).head() != buckets.get(i)) {
+                table.get(i).restoreHead(buckets.get(i));
+            }
         }
     }
 
+    private void recordVersion() {
+        history.record(currentBuckets());
+    }
+
     private void standardInsertedRedo() {
         SpecialPersistentData persistentData = insertedRedoStack.pop();
         persistentData.redo();
@@ -113,7 +251,7 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
             countInsertedMaps++;
             persistentData.addParent(this);
             insertedUndoStack.push(persistentData);
-            redo.clear();
+            history.clearRedo();
             insertedRedoStack.clear();
         }
 
@@ -133,27 +271,42 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
      */
     @Override
     public V put(K key, V value) {
-        V result = get(key);
-
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
         int index = calculateIndex(key.hashCode());
         for (int i = 0; i < table.get(index).size(); i++) {
             Pair<K, V> pair = table.get(index).get(i);
             if (pair.getKey().equals(key)) {
-                table.get(index).set(i, new Pair<>(key, value));
-                undo.push(index);
-                redo.clear();
+                V result = pair.getValue();
+                table.get(index).setPair(i, new Pair<>(key, value));
+                recordVersion();
+                if (Metrics.ENABLED) {
+                    Metrics.bucketScanned(i + 1);
+                    Metrics.operation(LogOperation.PUT, mark);
+                }
+                logPut(key, value);
                 tryParentUndo(value);
 
                 return result;
             }
         }
 
-        table.get(index).add(new Pair<>(key, value));
-        undo.push(index);
-        redo.clear();
+        table.get(index).addPair(new Pair<>(key, value));
+        recordVersion();
+        if (Metrics.ENABLED) {
+            Metrics.bucketScanned(table.get(index).size() - 1);
+            Metrics.operation(LogOperation.PUT, mark);
+        }
+        logPut(key, value);
         tryParentUndo(value);
 
-        return result;
+        return null;
+    }
+
+    private void logPut(K key, V value) {
+        log(LogOperation.PUT, out -> {
+            logKeyCodec.write(out, key);
+            logValueCodec.write(out, value);
+        });
     }
 
     /**
@@ -197,18 +350,26 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
      */
     @Override
     public V remove(Object key) {
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
         int index = calculateIndex(key.hashCode());
         for (int i = 0; i < table.get(index).size(); i++) {
             Pair<K, V> pair = table.get(index).get(i);
             if (pair.getKey().equals(key)) {
                 V value = pair.getValue();
-                table.get(index).remove(i);
-                undo.push(index);
-                redo.clear();
+                table.get(index).removePair(i);
+                recordVersion();
+                if (Metrics.ENABLED) {
+                    Metrics.bucketScanned(i + 1);
+                    Metrics.operation(LogOperation.REMOVE_KEY, mark);
+                }
+                log(LogOperation.REMOVE_KEY, out -> logKeyCodec.write(out, pair.getKey()));
                 tryParentUndo((V) this);
                 return value;
             }
         }
+        if (Metrics.ENABLED) {
+            Metrics.bucketScanned(table.get(index).size());
+        }
         return null;
     }
 
@@ -218,11 +379,434 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
      */
     @Override
     public void clear() {
-        for (PersistentArray<Pair<K, V>> pairs : table) {
-            pairs.clear();
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        for (Bucket<K, V> bucket : table) {
+            bucket.clearPairs();
+        }
+        recordVersion();
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.CLEAR, mark);
+        }
+        log(LogOperation.CLEAR, OperationLog.Arguments.NONE);
+    }
+
+    /**
+     * Возвращает количество хранимых версий ассоциативного массива.
+     *
+     * @return количество версий
+     */
+    public int getVersionCount() {
+        return history.size();
+    }
+
+    /**
+     * Возвращает номер текущей версии. Номера возрастают с каждым изменением ассоциативного массива.
+     *
+     * @return номер текущей версии
+     */
+    public long getVersionId() {
+        return history.current().id();
+    }
+
+    /**
+     * Возвращает новый ассоциативный массив, текущая версия которого - хранимая версия с номером versionId.
+     * Версия находится в индексе истории за O(log32 n), текущая версия этого ассоциативного массива не меняется.
+     *
+     * @param versionId номер версии
+     * @return новый ассоциативный массив с одной версией, разделяющий корзины с этой версией
+     * @throws NoSuchElementException если версия не хранится
+     */
+    public PersistentAssociativeArray<K, V> checkout(long versionId) {
+        return new PersistentAssociativeArray<>(new VersionHistory<>(history.get(versionId).state()));
+    }
+
+    /**
+     * Возвращает значение, которому сопоставлен ключ в хранимой версии, не меняя текущую версию.
+     *
+     * @param versionId номер версии
+     * @param key       ключ
+     * @return значение или null, если версия не содержит сопоставления для ключа
+     * @throws NoSuchElementException если версия не хранится
+     */
+    public V get(long versionId, Object key) {
+        int index = calculateIndex(key.hashCode());
+        HeadArray<Pair<K, V>> bucket = history.get(versionId).state().get(index);
+        for (int i = 0; i < bucket.getSize(); i++) {
+            Pair<K, V> pair = table.get(index).get(bucket, i);
+            if (pair.getKey().equals(key)) {
+                return pair.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Возвращает изменения сопоставлений между двумя хранимыми версиями.
+     * <p>
+     * Корзины, общие для обеих версий, пропускаются целиком, в остальных сравниваются только
+     * диапазоны записей, найденные структурным сравнением версий корзин
+     * ({@link PersistentArray#diff(HeadArray, HeadArray)}). Записи из этих диапазонов сопоставляются
+     * по ключу: ключ только во второй версии - добавлен, только в первой - удален, в обеих
+     * с различными значениями - изменен.
+     * </p>
+     *
+     * @param versionA номер исходной версии
+     * @param versionB номер новой версии
+     * @return изменения, сгруппированные по корзинам
+     * @throws NoSuchElementException если версия не хранится
+     */
+    public Stream<Change<K, V>> diff(long versionA, long versionB) {
+        List<HeadArray<Pair<K, V>>> first = history.get(versionA).state();
+        List<HeadArray<Pair<K, V>>> second = history.get(versionB).state();
+        return IntStream.range(0, TABLE_MAX_SIZE)
+                .filter(index -> first.get(index) != second.get(index))
+                .mapToObj(index -> diffBucket(table.get(index), first.get(index), second.get(index)))
+                .flatMap(List::stream);
+    }
+
+    private static <K, V> List<Change<K, V>> diffBucket(PersistentArray<Pair<K, V>> bucket,
+                                                        HeadArray<Pair<K, V>> first,
+                                                        HeadArray<Pair<K, V>> second) {
+        Map<K, V> removed = new LinkedHashMap<>();
+        Map<K, V> added = new LinkedHashMap<>();
+        bucket.diff(first, second).forEach(range -> {
+            for (int i = range.from(); i < Math.min(range.to(), first.getSize()); i++) {
+                Pair<K, V> pair = bucket.get(first, i);
+                removed.put(pair.getKey(), pair.getValue());
+            }
+            for (int i = range.from(); i < Math.min(range.to(), second.getSize()); i++) {
+                Pair<K, V> pair = bucket.get(second, i);
+                added.put(pair.getKey(), pair.getValue());
+            }
+        });
+
+        List<Change<K, V>> changes = new ArrayList<>();
+        removed.forEach((key, oldValue) -> {
+            if (!added.containsKey(key)) {
+                changes.add(new Change<>(ChangeType.REMOVED, key, oldValue, null));
+            } else if (!Objects.equals(oldValue, added.get(key))) {
+                changes.add(new Change<>(ChangeType.CHANGED, key, oldValue, added.get(key)));
+            }
+        });
+        added.forEach((key, newValue) -> {
+            if (!removed.containsKey(key)) {
+                changes.add(new Change<>(ChangeType.ADDED, key, null, newValue));
+            }
+        });
+        return changes;
+    }
+
+    /**
+     * Сливает две хранимые версии, полученные из общей версии, и сохраняет результат новой текущей версией.
+     * <p>
+     * Корзины, не измененные одной из версий, берутся из другой целиком. В остальных
+     * изменения находятся структурным сравнением с общей версией, как в {@link #diff(long, long)}:
+     * ключ, измененный только в одной версии, берет её значение или удаляется, измененный в обеих
+     * одинаково - это значение, иначе в результат записывается значение, выбранное resolver.
+     * Если ключ удален в одной версии и изменен в другой, null от resolver удаляет ключ.
+     * Стоимость пропорциональна количеству изменений, а не размеру ассоциативного массива.
+     * В журнал операций записываются номера версий и решения resolver в порядке вызова.
+     * </p>
+     *
+     * @param base     номер общей предыдущей версии
+     * @param left     номер левой версии
+     * @param right    номер правой версии
+     * @param resolver разрешение конфликтующих ключей
+     * @throws NoSuchElementException если версия не хранится
+     */
+    public void merge(long base, long left, long right, ConflictResolver<K, V> resolver) {
+        long[] mark = Metrics.ENABLED ? Metrics.mark() : null;
+        // Решения записываются в журнал, чтобы повтор не зависел от resolver
+        List<V> resolved = new ArrayList<>();
+        ConflictResolver<K, V> recording = (key, baseValue, leftValue, rightValue) -> {
+            V value = resolver.resolve(key, baseValue, leftValue, rightValue);
+            resolved.add(value);
+            return value;
+        };
+        List<HeadArray<Pair<K, V>>> baseBuckets = history.get(base).state();
+        List<HeadArray<Pair<K, V>>> leftBuckets = history.get(left).state();
+        List<HeadArray<Pair<K, V>>> rightBuckets = history.get(right).state();
+
+        Bucket<K, V> scratch = new Bucket<>();
+        List<HeadArray<Pair<K, V>>> merged = new ArrayList<>(TABLE_MAX_SIZE);
+        for (int i = 0; i < TABLE_MAX_SIZE; i++) {
+            merged.add(mergeBucket(scratch, baseBuckets.get(i), leftBuckets.get(i), rightBuckets.get(i), recording));
+        }
+
+        for (int i = 0; i < TABLE_MAX_SIZE; i++) {
+            if (table.get(i).head() != merged.get(i)) {
+                table.get(i).restoreHead(merged.get(i));
+            }
+        }
+        recordVersion();
+        if (Metrics.ENABLED) {
+            Metrics.operation(LogOperation.MERGE, mark);
+        }
+        log(LogOperation.MERGE, out -> {
+            out.writeLong(base);
+            out.writeLong(left);
+            out.writeLong(right);
+            out.writeInt(resolved.size());
+            for (V value : resolved) {
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    logValueCodec.write(out, value);
+                }
+            }
+        });
+        if (parent != null) {
+            parent.addChildModification(this);
+        }
+    }
+
+    /**
+     * Переносит в левую версию корзины изменения правой, используя scratch для построения новой версии корзины
+     */
+    private static <K, V> HeadArray<Pair<K, V>> mergeBucket(Bucket<K, V> scratch,
+                                                            HeadArray<Pair<K, V>> base,
+                                                            HeadArray<Pair<K, V>> left,
+                                                            HeadArray<Pair<K, V>> right,
+                                                            ConflictResolver<K, V> resolver) {
+        if (left == base || left == right) {
+            return right;
+        }
+        if (right == base) {
+            return left;
+        }
+
+        Map<K, Change<K, V>> leftChanges = new HashMap<>();
+        for (Change<K, V> change : diffBucket(scratch, base, left)) {
+            leftChanges.put(change.key(), change);
+        }
+        List<Change<K, V>> rightChanges = diffBucket(scratch, base, right);
+        scratch.restoreHead(left);
+        for (Change<K, V> change : rightChanges) {
+            Change<K, V> leftChange = leftChanges.get(change.key());
+            if (leftChange == null) {
+                if (change.type() == ChangeType.REMOVED) {
+                    scratch.removePair(indexOf(scratch, change.key()));
+                } else {
+                    putInBucket(scratch, change.key(), change.newValue());
+                }
+            } else if (!sameResult(leftChange, change)) {
+                V value = resolver.resolve(change.key(), change.oldValue(), leftChange.newValue(), change.newValue());
+                if (value == null && (leftChange.type() == ChangeType.REMOVED || change.type() == ChangeType.REMOVED)) {
+                    int index = indexOf(scratch, change.key());
+                    if (index >= 0) {
+                        scratch.removePair(index);
+                    }
+                } else {
+                    putInBucket(scratch, change.key(), value);
+                }
+            }
+        }
+        return scratch.head();
+    }
+
+    private static <K, V> boolean sameResult(Change<K, V> first, Change<K, V> second) {
+        if (first.type() == ChangeType.REMOVED || second.type() == ChangeType.REMOVED) {
+            return first.type() == second.type();
+        }
+        return Objects.equals(first.newValue(), second.newValue());
+    }
+
+    private static <K, V> void putInBucket(Bucket<K, V> bucket, K key, V value) {
+        int index = indexOf(bucket, key);
+        if (index < 0) {
+            bucket.addPair(new Pair<>(key, value));
+        } else {
+            bucket.setPair(index, new Pair<>(key, value));
+        }
+    }
+
+    private static <K, V> int indexOf(PersistentArray<Pair<K, V>> bucket, K key) {
+        for (int i = 0; i < bucket.size(); i++) {
+            if (bucket.get(i).getKey().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Возвращает неизменяемое представление текущей версии ассоциативного массива за O(1).
+     * <p>
+     * Представление привязано к версиям корзин и не меняется при последующих изменениях,
+     * undo и redo, поэтому его можно передать другим потокам без блокировок и копирования.
+     * </p>
+     *
+     * @return неизменяемое представление текущей версии
+     */
+    public Snapshot<K, V> snapshot() {
+        List<PersistentArray.Snapshot<Pair<K, V>>> buckets = new ArrayList<>(TABLE_MAX_SIZE);
+        for (PersistentArray<Pair<K, V>> bucket : table) {
+            buckets.add(bucket.snapshot());
+        }
+        return new Snapshot<>(Collections.unmodifiableList(buckets));
+    }
+
+    /**
+     * Возвращает имя текущей ветки истории. Изменение после undo начинает новую ветку,
+     * отмененные версии остаются в прежней.
+     *
+     * @return имя текущей ветки
+     */
+    public String getCurrentBranch() {
+        return history.currentBranch();
+    }
+
+    /**
+     * Возвращает имена веток истории в порядке создания.
+     *
+     * @return имена веток
+     */
+    public Set<String> getBranchNames() {
+        return history.branchNames();
+    }
+
+    /**
+     * Создает ветку истории, начинающуюся с текущей версии, и делает её текущей.
+     *
+     * @param name имя ветки
+     * @throws IllegalArgumentException если ветка с таким именем уже есть
+     */
+    public void createBranch(String name) {
+        history.createBranch(name);
+        log(LogOperation.CREATE_BRANCH, out -> out.writeString(name));
+    }
+
+    /**
+     * Переключает ассоциативный массив на версию, на которой была оставлена ветка, за O(1).
+     *
+     * @param name имя ветки
+     * @throws NoSuchElementException если ветки нет
+     */
+    public void switchBranch(String name) {
+        history.switchBranch(name);
+        restoreBuckets();
+        log(LogOperation.SWITCH_BRANCH, out -> out.writeString(name));
+    }
+
+    public void renameBranch(String name, String newName) {
+        history.renameBranch(name, newName);
+        log(LogOperation.RENAME_BRANCH, out -> {
+            out.writeString(name);
+            out.writeString(newName);
+        });
+    }
+
+    /**
+     * Удаляет ветку истории. Версии и корзины, которые хранила только она, становятся доступны сборщику мусора.
+     *
+     * @param name имя ветки
+     * @throws IllegalStateException если ветка текущая
+     */
+    public void deleteBranch(String name) {
+        history.deleteBranch(name);
+        log(LogOperation.DELETE_BRANCH, out -> out.writeString(name));
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return history.getRetentionPolicy();
+    }
+
+    /**
+     * Устанавливает политику хранения версий. Версии, которые она не оставляет, удаляются сразу
+     * и далее при каждом изменении ассоциативного массива.
+     *
+     * @param retentionPolicy политика хранения версий
+     */
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        history.setRetentionPolicy(retentionPolicy);
+    }
+
+    /**
+     * Возвращает оценку памяти, занимаемой корзинами всех хранимых версий. Узлы, общие для
+     * нескольких версий, учитываются один раз, сами записи не учитываются.
+     *
+     * @return размер в байтах
+     */
+    public long estimateRetainedBytes() {
+        List<HeadArray<Pair<K, V>>> heads = new ArrayList<>();
+        for (Version<List<HeadArray<Pair<K, V>>>> version : history.versions()) {
+            heads.addAll(version.state());
+        }
+        return MemoryEstimate.of(heads);
+    }
+
+    /**
+     * Анализирует память, занимаемую корзинами хранимых версий: количество различных узлов и узлов
+     * без учета разделения, размер каждой версии отдельно и память, которую она добавляет к более старым версиям.
+     *
+     * @return отчет об использовании памяти
+     */
+    public MemoryEstimate.Report analyzeMemory() {
+        return MemoryEstimate.analyze(history.versions(), buckets -> buckets);
+    }
+
+    /**
+     * Записывает ассоциативный массив со всеми хранимыми версиями и ветками в бинарный снимок.
+     * Корзины, узлы и записи, общие для нескольких версий, записываются один раз.
+     * Политика хранения и вложенные структуры не записываются.
+     *
+     * @param path       путь к файлу снимка, существующий файл перезаписывается
+     * @param keyCodec   кодек ключей
+     * @param valueCodec кодек значений
+     */
+    public void writeSnapshot(Path path, ElementCodec<K> keyCodec, ElementCodec<V> valueCodec) throws IOException {
+        try (SnapshotOutput out = new SnapshotOutput(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            history.writeTo(out, bucketsCodec(keyCodec, valueCodec));
+        }
+    }
+
+    /**
+     * Читает ассоциативный массив из снимка, записанного {@link #writeSnapshot}.
+     *
+     * @param path       путь к файлу снимка
+     * @param keyCodec   кодек ключей
+     * @param valueCodec кодек значений
+     * @return ассоциативный массив с теми же версиями, ветками и текущей версией
+     */
+    public static <K, V> PersistentAssociativeArray<K, V> readSnapshot(Path path, ElementCodec<K> keyCodec,
+                                                                      ElementCodec<V> valueCodec) throws IOException {
+        try (SnapshotInput in = new SnapshotInput(FileChannel.open(path, StandardOpenOption.READ))) {
+            return new PersistentAssociativeArray<>(VersionHistory.readFrom(in, bucketsCodec(keyCodec, valueCodec)));
         }
     }
 
+    /**
+     * Кодек состояния версии: корзины таблицы. Записи общие для нескольких листьев, поэтому тоже записываются один раз
+     */
+    private static <K, V> ElementCodec<List<HeadArray<Pair<K, V>>>> bucketsCodec(ElementCodec<K> keyCodec,
+                                                                               ElementCodec<V> valueCodec) {
+        ElementCodec<Pair<K, V>> pairContent = ElementCodec.of(
+                (out, pair) -> {
+                    keyCodec.write(out, pair.getKey());
+                    valueCodec.write(out, pair.getValue());
+                },
+                in -> new Pair<>(keyCodec.read(in), valueCodec.read(in))
+        );
+        ElementCodec<HeadArray<Pair<K, V>>> headCodec = HeadArray.codec(ElementCodec.of(
+                (SnapshotOutput out, Pair<K, V> pair) -> out.writeShared(pair, pairContent),
+                (SnapshotInput in) -> in.readShared(pairContent)
+        ));
+        return ElementCodec.of(
+                (out, buckets) -> {
+                    for (HeadArray<Pair<K, V>> bucket : buckets) {
+                        headCodec.write(out, bucket);
+                    }
+                },
+                in -> {
+                    List<HeadArray<Pair<K, V>>> buckets = new ArrayList<>(TABLE_MAX_SIZE);
+                    for (int i = 0; i < TABLE_MAX_SIZE; i++) {
+                        buckets.add(headCodec.read(in));
+                    }
+                    return Collections.unmodifiableList(buckets);
+                }
+        );
+    }
+
     /**
      * Возвращает значение, которому сопоставлен указанный ключ, или null, если этот ассоциативный массив не содержит сопоставления для ключа.
      *
@@ -233,11 +817,19 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
     public V get(Object key) {
         int index = calculateIndex(key.hashCode());
         PersistentArray<Pair<K, V>> get = table.get(index);
+        int scanned = 0;
         for (Pair<K, V> pair : get) {
+            scanned++;
             if (pair.getKey().equals(key)) {
+                if (Metrics.ENABLED) {
+                    Metrics.bucketScanned(scanned);
+                }
                 return pair.getValue();
             }
         }
+        if (Metrics.ENABLED) {
+            Metrics.bucketScanned(scanned);
+        }
         return null;
     }
 
@@ -307,7 +899,7 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
         return stringBuilder.toString();
     }
 
-    private int calculateIndex(int hashcode) {
+    private static int calculateIndex(int hashcode) {
         return hashcode & (TABLE_MAX_SIZE - 1);
     }
 
@@ -326,6 +918,138 @@ public class PersistentAssociativeArray<K, V> extends AbstractMap<K, V> implemen
         return parent;
     }
 
+    /**
+     * Неизменяемое представление одной версии персистентного ассоциативного массива.
+     * <p>
+     * Хранит неизменяемые представления корзин, все поля неизменяемы, поэтому представление
+     * можно безопасно передавать между потоками. Записи возвращаются неизменяемыми,
+     * изменяющие методы выбрасывают UnsupportedOperationException.
+     * </p>
+     *
+     * @param <K> тип ключей
+     * @param <V> тип значений
+     */
+    public static final class Snapshot<K, V> extends AbstractMap<K, V> {
+        private final List<PersistentArray.Snapshot<Pair<K, V>>> buckets;
+        private final int size;
+        private final Set<Entry<K, V>> entrySet = new EntrySet();
+
+        private Snapshot(List<PersistentArray.Snapshot<Pair<K, V>>> buckets) {
+            this.buckets = buckets;
+            int count = 0;
+            for (PersistentArray.Snapshot<Pair<K, V>> bucket : buckets) {
+                count += bucket.size();
+            }
+            this.size = count;
+        }
+
+        @Override
+        public V get(Object key) {
+            Pair<K, V> pair = find(key);
+            return pair == null ? null : pair.getValue();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return entrySet;
+        }
+
+        private Pair<K, V> find(Object key) {
+            for (Pair<K, V> pair : buckets.get(calculateIndex(key.hashCode()))) {
+                if (pair.getKey().equals(key)) {
+                    return pair;
+                }
+            }
+            return null;
+        }
+
+        private final class EntrySet extends AbstractSet<Entry<K, V>> {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return buckets.stream()
+                        .flatMap(Collection::stream)
+                        .<Entry<K, V>>map(AbstractMap.SimpleImmutableEntry::new)
+                        .iterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Вид изменения сопоставления между двумя версиями
+     */
+    public enum ChangeType {
+        ADDED,
+        REMOVED,
+        CHANGED
+    }
+
+    /**
+     * Изменение сопоставления между двумя версиями
+     *
+     * @param type     вид изменения
+     * @param key      ключ
+     * @param oldValue значение в исходной версии, null для добавленного ключа
+     * @param newValue значение в новой версии, null для удаленного ключа
+     * @param <K>      тип ключей
+     * @param <V>      тип значений
+     */
+    public record Change<K, V>(ChangeType type, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Корзина таблицы: массив записей, который хранит только текущую версию. История версий
+     * корзин хранится в истории ассоциативного массива. Изменения корзины не учитываются в метриках
+     * и журнале: каждая операция ассоциативного массива учитывается один раз как PUT, REMOVE_KEY и т.д.
+     */
+    private static final class Bucket<K, V> extends PersistentArray<Pair<K, V>> {
+        private Bucket() {
+            setRetentionPolicy(RetentionPolicy.keepLast(1));
+        }
+
+        private Bucket(Bucket<K, V> other) {
+            super(other);
+        }
+
+        private HeadArray<Pair<K, V>> head() {
+            return getCurrentHead();
+        }
+
+        private void setPair(int index, Pair<K, V> pair) {
+            setQuietly(index, pair);
+        }
+
+        private void addPair(Pair<K, V> pair) {
+            addQuietly(pair);
+        }
+
+        private void removePair(int index) {
+            removeQuietly(index);
+        }
+
+        private void restoreHead(HeadArray<Pair<K, V>> head) {
+            restoreQuietly(head);
+        }
+
+        private void clearPairs() {
+            clearQuietly();
+        }
+    }
+
     /**
      * Запись ассоциативного массива (пара ключ-значение).
      */
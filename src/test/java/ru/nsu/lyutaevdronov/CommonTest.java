@@ -1,12 +1,22 @@
 package ru.nsu.lyutaevdronov;
 
 import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import ru.nsu.lyutaevdronov.array.PersistentArray;
+import ru.nsu.lyutaevdronov.common.LogOperation;
+import ru.nsu.lyutaevdronov.common.Metrics;
+import ru.nsu.lyutaevdronov.common.MetricsListener;
 import ru.nsu.lyutaevdronov.common.PersistentData;
 import ru.nsu.lyutaevdronov.map.PersistentAssociativeArray;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 final class CommonTest {
     @Test
@@ -53,4 +63,96 @@ final class CommonTest {
                 .containsEntry("B", 2)
                 .containsEntry("C", 3);
     }
+
+    @Test
+    @Tag("metrics")
+    @DisplayName("Тест на счетчики узлов, операций и просмотров корзин")
+    void testMetrics() {
+        assumeTrue(Metrics.ENABLED, "Счетчики включаются свойством " + Metrics.PROPERTY);
+        PersistentArray<Integer> array = PersistentArray.from(IntStream.range(0, 10_000).boxed());
+        PersistentAssociativeArray<Integer, Integer> map = new PersistentAssociativeArray<>();
+        for (int i = 0; i < 160; i++) {
+            map.put(i, i);
+        }
+
+        List<String> operations = new ArrayList<>();
+        List<Integer> scans = new ArrayList<>();
+        MetricsListener listener = new MetricsListener() {
+            @Override
+            public void onOperation(LogOperation operation, long nodes, long elements) {
+                operations.add(operation + " " + nodes + " " + elements);
+            }
+
+            @Override
+            public void onBucketScan(int length) {
+                scans.add(length);
+            }
+        };
+        Metrics.addListener(listener);
+        try {
+            Metrics.reset();
+            // Путь к первому листу дерева из 312 листов: корень, внутренний узел и лист из 32 элементов
+            array.set(0, -1);
+            array.undo();
+            // Корзина с ключом 16 содержит 10 записей, ключ 16 - вторая из них
+            assertThat(map.get(16)).isEqualTo(16);
+            assertThat(map.get(1_000)).isNull();
+            // Операции ассоциативного массива учитываются один раз, без операций его корзин
+            map.put(16, -16);
+            map.put(1_000, 1_000);
+            map.remove(1_000);
+            map.undo();
+            map.clear();
+            array.clear();
+        } finally {
+            Metrics.removeListener(listener);
+        }
+
+        assertThat(operations).hasSize(8).startsWith("SET 3 32", "UNDO 0 0");
+        assertThat(operations.subList(2, 8)).extracting(operation -> operation.split(" ")[0])
+                .containsExactly("PUT", "PUT", "REMOVE_KEY", "UNDO", "CLEAR", "CLEAR");
+        assertThat(scans).containsExactly(2, 10, 2, 10, 11);
+        Metrics.Counters counters = Metrics.counters();
+        assertThat(counters.bucketScanLength()).isEqualTo(35);
+        assertThat(counters.operations())
+                .containsEntry(LogOperation.SET, 1L)
+                .containsEntry(LogOperation.UNDO, 2L)
+                .containsEntry(LogOperation.PUT, 2L)
+                .containsEntry(LogOperation.REMOVE_KEY, 1L)
+                .containsEntry(LogOperation.CLEAR, 2L)
+                .containsEntry(LogOperation.ADD, 0L)
+                .containsEntry(LogOperation.REMOVE, 0L)
+                .containsEntry(LogOperation.RESTORE, 0L);
+    }
+
+    @Test
+    @DisplayName("Тест на отсутствие учета при выключенных счетчиках")
+    void testMetricsDisabled() {
+        assumeFalse(Metrics.ENABLED);
+        List<String> operations = new ArrayList<>();
+        MetricsListener listener = new MetricsListener() {
+            @Override
+            public void onOperation(LogOperation operation, long nodes, long elements) {
+                operations.add(operation.name());
+            }
+        };
+        Metrics.addListener(listener);
+        try {
+            PersistentArray<Integer> array = PersistentArray.from(IntStream.range(0, 1_000).boxed());
+            array.set(0, -1);
+            array.undo();
+            PersistentAssociativeArray<Integer, Integer> map = new PersistentAssociativeArray<>();
+            map.put(1, 1);
+            assertThat(map.get(1)).isEqualTo(1);
+        } finally {
+            Metrics.removeListener(listener);
+        }
+
+        assertThat(operations).isEmpty();
+        Metrics.Counters counters = Metrics.counters();
+        assertThat(counters.nodes()).isZero();
+        assertThat(counters.elements()).isZero();
+        assertThat(counters.bucketScans()).isZero();
+        assertThat(counters.operations().values()).containsOnly(0L);
+    }
 }
@@ -1,11 +1,40 @@
 package ru.nsu.lyutaevdronov;
 
+import com.sun.management.ThreadMXBean;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.nsu.lyutaevdronov.array.ConcurrentPersistentArray;
+import ru.nsu.lyutaevdronov.array.HeadArray;
+import ru.nsu.lyutaevdronov.array.IndexRange;
+import ru.nsu.lyutaevdronov.array.MemoryEstimate;
 import ru.nsu.lyutaevdronov.array.PersistentArray;
+import ru.nsu.lyutaevdronov.common.ConflictResolver;
+import ru.nsu.lyutaevdronov.common.ElementCodec;
+import ru.nsu.lyutaevdronov.common.OperationLog;
+import ru.nsu.lyutaevdronov.common.RetentionPolicy;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 final class PersistentArrayTest {
     @Test
@@ -297,4 +326,839 @@ final class PersistentArrayTest {
         persistentArray.undo();
         assertThat(persistentArray).hasToString("[1, 2, 3]");
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Тест на добавление, изменение и pop через границы листов")
+    void testManyElements() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+
+        for (int i = 0; i < 1000; i++) {
+            persistentArray.add(i);
+        }
+        assertThat(persistentArray).hasSize(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(persistentArray.get(i)).isEqualTo(i);
+        }
+
+        persistentArray.set(5, -5);
+        persistentArray.set(999, -999);
+        assertThat(persistentArray.get(5)).isEqualTo(-5);
+        assertThat(persistentArray.get(999)).isEqualTo(-999);
+
+        persistentArray.undo();
+        persistentArray.undo();
+        for (int i = 999; i >= 900; i--) {
+            assertThat(persistentArray.pop()).isEqualTo(i);
+        }
+        assertThat(persistentArray).hasSize(900);
+        persistentArray.add(1000);
+        assertThat(persistentArray.get(900)).isEqualTo(1000);
+
+        persistentArray.undo();
+        persistentArray.undo();
+        assertThat(persistentArray).hasSize(901);
+        assertThat(persistentArray.get(900)).isEqualTo(900);
+
+        int expected = 0;
+        for (Integer value : persistentArray) {
+            assertThat(value).isEqualTo(expected++);
+        }
+    }
+
+    @Test
+    @DisplayName("Тест на вставку и удаление в середину большого массива")
+    void testInsertRemoveInMiddle() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        for (int i = 0; i < 100; i++) {
+            persistentArray.add(i);
+        }
+
+        persistentArray.add(40, -1);
+        assertThat(persistentArray).hasSize(101);
+        assertThat(persistentArray.get(39)).isEqualTo(39);
+        assertThat(persistentArray.get(40)).isEqualTo(-1);
+        assertThat(persistentArray.get(100)).isEqualTo(99);
+
+        assertThat(persistentArray.remove(40)).isEqualTo(-1);
+        assertThat(persistentArray.remove(0)).isZero();
+        assertThat(persistentArray).hasSize(99);
+        assertThat(persistentArray.get(0)).isEqualTo(1);
+        assertThat(persistentArray.get(98)).isEqualTo(99);
+
+        persistentArray.undo();
+        persistentArray.undo();
+        persistentArray.undo();
+        assertThat(persistentArray).hasSize(100);
+        assertThat(persistentArray.get(40)).isEqualTo(40);
+    }
+
+    @Test
+    @DisplayName("Тест на пакетные изменения через транзиентную версию")
+    void testWithMutations() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        for (int i = 0; i < 100; i++) {
+            persistentArray.add(i);
+        }
+        int versionCount = persistentArray.getVersionCount();
+
+        persistentArray.withMutations(transientArray -> {
+            for (int i = 100; i < 5000; i++) {
+                transientArray.add(i);
+            }
+            transientArray.set(3, -3);
+            transientArray.set(4999, -4999);
+            assertThat(transientArray.pop()).isEqualTo(-4999);
+            assertThat(transientArray.size()).isEqualTo(4999);
+        });
+
+        assertThat(persistentArray.getVersionCount()).isEqualTo(versionCount + 1);
+        assertThat(persistentArray).hasSize(4999);
+        assertThat(persistentArray.get(3)).isEqualTo(-3);
+        assertThat(persistentArray.get(4998)).isEqualTo(4998);
+
+        persistentArray.undo();
+        assertThat(persistentArray).hasSize(100);
+        assertThat(persistentArray.get(3)).isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("Тест на pop в транзиентной версии и повторное использование")
+    void testTransientPop() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        PersistentArray.Transient<Integer> transientArray = persistentArray.asTransient();
+        for (int i = 0; i < 2000; i++) {
+            transientArray.add(i);
+        }
+        for (int i = 1999; i >= 10; i--) {
+            assertThat(transientArray.pop()).isEqualTo(i);
+        }
+        transientArray.persistent();
+
+        assertThat(persistentArray).hasToString("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9]");
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> transientArray.add(10));
+    }
+
+    @Test
+    @DisplayName("Тест на случайные вставки и удаления в середину в сравнении с ArrayList")
+    void testRandomInsertRemove() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        List<Integer> expected = new ArrayList<>();
+        Random random = new Random(42);
+
+        for (int step = 0; step < 3000; step++) {
+            int operation = random.nextInt(10);
+            if (expected.isEmpty() || operation < 4) {
+                persistentArray.add(step);
+                expected.add(step);
+            } else if (operation < 7) {
+                int index = random.nextInt(expected.size());
+                persistentArray.add(index, step);
+                expected.add(index, step);
+            } else if (operation < 9) {
+                int index = random.nextInt(expected.size());
+                assertThat(persistentArray.remove(index)).isEqualTo(expected.remove(index));
+            } else {
+                int index = random.nextInt(expected.size());
+                persistentArray.set(index, -step);
+                expected.set(index, -step);
+            }
+        }
+
+        assertThat(persistentArray).containsExactlyElementsOf(expected);
+
+        List<Integer> previous = new ArrayList<>(expected);
+        persistentArray.add(expected.size() / 2, -1);
+        persistentArray.undo();
+        assertThat(persistentArray).containsExactlyElementsOf(previous);
+    }
+
+    @Test
+    @DisplayName("Тест на итератор и параллельный поток по версии массива")
+    void testIteratorAndStream() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            persistentArray.add(i);
+            expected.add(i);
+        }
+        persistentArray.add(333, -1);
+        expected.add(333, -1);
+        persistentArray.remove(10);
+        expected.remove(10);
+
+        Iterator<Integer> iterator = persistentArray.iterator();
+        persistentArray.add(5000);
+        List<Integer> iterated = new ArrayList<>();
+        iterator.forEachRemaining(iterated::add);
+        assertThat(iterated).isEqualTo(expected);
+
+        expected.add(5000);
+        assertThat(persistentArray.stream().parallel().toList()).isEqualTo(expected);
+        assertThat(persistentArray.stream().parallel().mapToLong(Integer::longValue).sum())
+                .isEqualTo(expected.stream().mapToLong(Integer::longValue).sum());
+        assertThat(persistentArray.spliterator().hasCharacteristics(Spliterator.SUBSIZED)).isTrue();
+    }
+
+    @Test
+    @DisplayName("Тест на параллельные map, filter, reduce и forEach")
+    void testParallelOperations() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 3);
+        for (int i = 0; i < 20000; i++) {
+            persistentArray.add(i);
+        }
+        persistentArray.add(7000, -1);
+        List<Integer> expected = new ArrayList<>(persistentArray);
+
+        PersistentArray<String> mapped = persistentArray.parallelMap(String::valueOf);
+        assertThat(mapped).containsExactlyElementsOf(expected.stream().map(String::valueOf).toList());
+        mapped.undo();
+        assertThat(mapped).isEmpty();
+
+        PersistentArray<Integer> filtered = persistentArray.parallelFilter(value -> value % 3 == 0);
+        assertThat(filtered).containsExactlyElementsOf(expected.stream().filter(value -> value % 3 == 0).toList());
+        filtered.add(1);
+        assertThat(filtered.get(filtered.size() - 1)).isEqualTo(1);
+
+        assertThat(persistentArray.parallelReduce(0, Integer::sum))
+                .isEqualTo(expected.stream().mapToInt(Integer::intValue).sum());
+        assertThat(persistentArray.parallelReduce(0L, (sum, value) -> sum + value, Long::sum))
+                .isEqualTo(expected.stream().mapToLong(Integer::longValue).sum());
+
+        AtomicLong sum = new AtomicLong();
+        persistentArray.parallelForEach(sum::addAndGet);
+        assertThat(sum.get()).isEqualTo(expected.stream().mapToLong(Integer::longValue).sum());
+    }
+
+    @Test
+    @DisplayName("Тест на добавление коллекции одной версией и создание массива из потока")
+    void testAddAllAndFrom() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        persistentArray.add(-1);
+        persistentArray.add(-2);
+        List<Integer> values = IntStream.range(0, 500).boxed().toList();
+
+        assertThat(persistentArray.addAll(values)).isTrue();
+        assertThat(persistentArray.addAll(1, values)).isTrue();
+        assertThat(persistentArray.addAll(List.of())).isFalse();
+
+        List<Integer> expected = new ArrayList<>(List.of(-1, -2));
+        expected.addAll(values);
+        expected.addAll(1, values);
+        assertThat(persistentArray).containsExactlyElementsOf(expected);
+
+        persistentArray.undo();
+        assertThat(persistentArray).hasSize(502);
+        persistentArray.undo();
+        assertThat(persistentArray).containsExactly(-1, -2);
+
+        List<Integer> many = IntStream.range(0, 50000).boxed().toList();
+        assertThat(PersistentArray.from(many.stream())).containsExactlyElementsOf(many);
+        assertThat(PersistentArray.from(many.parallelStream().filter(value -> value % 7 != 0)))
+                .containsExactlyElementsOf(many.stream().filter(value -> value % 7 != 0).toList());
+    }
+
+    @Test
+    @DisplayName("Тест на рост и уменьшение высоты дерева сверх начальной глубины")
+    void testDynamicHeight() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(1, 2);
+        for (int i = 0; i < 1000; i++) {
+            persistentArray.add(i);
+        }
+        assertThat(persistentArray).hasSize(1000);
+        assertThat(persistentArray.get(999)).isEqualTo(999);
+
+        persistentArray.withMutations(transientArray -> {
+            for (int i = 0; i < 995; i++) {
+                transientArray.pop();
+            }
+        });
+        assertThat(persistentArray).containsExactly(0, 1, 2, 3, 4);
+
+        persistentArray.undo();
+        for (int i = 0; i < 990; i++) {
+            persistentArray.remove(0);
+        }
+        assertThat(persistentArray).containsExactly(990, 991, 992, 993, 994, 995, 996, 997, 998, 999);
+    }
+
+    @Test
+    @DisplayName("Тест на срез массива")
+    void testSlice() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        for (int i = 0; i < 1000; i++) {
+            persistentArray.add(i);
+        }
+
+        PersistentArray<Integer> slice = persistentArray.slice(990, 1000);
+        assertThat(slice).containsExactly(990, 991, 992, 993, 994, 995, 996, 997, 998, 999);
+        assertThat(persistentArray.subList(100, 900)).containsExactlyElementsOf(IntStream.range(100, 900).boxed().toList());
+        assertThat(persistentArray.slice(500, 500)).isEmpty();
+        assertThat(slice.getVersionCount()).isEqualTo(1);
+
+        slice.set(0, -1);
+        slice.add(1000);
+        assertThat(slice).hasSize(11).startsWith(-1, 991);
+        slice.undo();
+        slice.undo();
+        slice.undo();
+        assertThat(slice).containsExactlyElementsOf(IntStream.range(990, 1000).boxed().toList());
+        assertThat(persistentArray).hasSize(1000);
+        assertThat(persistentArray.get(990)).isEqualTo(990);
+
+        assertThatExceptionOfType(IndexOutOfBoundsException.class)
+                .isThrownBy(() -> persistentArray.slice(10, 1001));
+    }
+
+    @Test
+    @DisplayName("Тест на конкатенацию массивов")
+    void testConcat() {
+        PersistentArray<Integer> left = new PersistentArray<>(8, 2);
+        PersistentArray<Integer> right = new PersistentArray<>(8, 2);
+        for (int i = 0; i < 777; i++) {
+            left.add(i);
+        }
+        for (int i = 777; i < 1500; i++) {
+            right.add(i);
+        }
+
+        PersistentArray<Integer> result = left.concat(right);
+        assertThat(result).containsExactlyElementsOf(IntStream.range(0, 1500).boxed().toList());
+        assertThat(left).hasSize(777);
+        assertThat(right).hasSize(723);
+
+        result.undo();
+        assertThat(result).containsExactlyElementsOf(left);
+
+        PersistentArray<Integer> other = new PersistentArray<>();
+        other.add(-1);
+        assertThat(left.concat(other).get(777)).isEqualTo(-1);
+    }
+
+    @Test
+    @DisplayName("Тест на политику хранения версий")
+    void testRetentionPolicy() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        for (int i = 0; i < 100; i++) {
+            persistentArray.add(i);
+        }
+        assertThat(persistentArray.getVersionCount()).isEqualTo(101);
+        long unboundedBytes = persistentArray.estimateRetainedBytes();
+
+        persistentArray.setRetentionPolicy(RetentionPolicy.keepLast(5).withCheckpointEvery(50));
+        assertThat(persistentArray.getVersionCount()).isEqualTo(7);
+        assertThat(persistentArray.estimateRetainedBytes()).isLessThan(unboundedBytes);
+
+        for (int i = 0; i < 4; i++) {
+            persistentArray.undo();
+        }
+        assertThat(persistentArray).hasSize(96);
+        persistentArray.undo();
+        assertThat(persistentArray).hasSize(50);
+        persistentArray.undo();
+        assertThat(persistentArray).isEmpty();
+        persistentArray.undo();
+        assertThat(persistentArray).isEmpty();
+
+        persistentArray.redo();
+        persistentArray.add(-1);
+        assertThat(persistentArray).hasSize(51);
+        persistentArray.deleteBranch("main");
+        assertThat(persistentArray.getVersionCount()).isLessThanOrEqualTo(7);
+    }
+
+    @Test
+    @DisplayName("Тест на индекс версий нескольких веток с политикой хранения")
+    void testRetentionPolicyWithBranches() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        for (int i = 0; i < 10; i++) {
+            persistentArray.add(i);
+        }
+        long first = persistentArray.getVersionId() - 9;
+        persistentArray.undo();
+        persistentArray.add(-1);
+        String forked = persistentArray.getCurrentBranch();
+        persistentArray.setRetentionPolicy(RetentionPolicy.keepLast(3));
+        for (int i = 0; i < 10; i++) {
+            persistentArray.set(0, -i);
+        }
+
+        // В main остаются последние три версии и отмененная, в новой ветке - последние три
+        assertThat(persistentArray.getVersionCount()).isEqualTo(7);
+        assertThat(persistentArray.get(first + 8, 7)).isEqualTo(7);
+        assertThat(persistentArray.checkout(first + 9)).hasSize(10);
+        assertThatExceptionOfType(NoSuchElementException.class)
+                .isThrownBy(() -> persistentArray.checkout(first + 5));
+
+        persistentArray.switchBranch("main");
+        persistentArray.deleteBranch(forked);
+        assertThat(persistentArray.getVersionCount()).isEqualTo(4);
+        persistentArray.redo();
+        assertThat(persistentArray).hasSize(10);
+    }
+
+    @Test
+    @DisplayName("Тест на чтение версий по номеру")
+    void testCheckout() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        long emptyVersion = persistentArray.getVersionId();
+        for (int i = 0; i < 100; i++) {
+            persistentArray.add(i);
+        }
+        long fiftyVersion = emptyVersion + 50;
+        persistentArray.set(10, -10);
+
+        assertThat(persistentArray.get(fiftyVersion, 10)).isEqualTo(10);
+        assertThat(persistentArray.checkout(fiftyVersion)).containsExactlyElementsOf(IntStream.range(0, 50).boxed().toList());
+        assertThat(persistentArray.checkout(emptyVersion)).isEmpty();
+        assertThat(persistentArray.get(10)).isEqualTo(-10);
+
+        // Отмена в полученном массиве не переходит к пустой версии
+        PersistentArray<Integer> checkout = persistentArray.checkout(fiftyVersion);
+        long checkoutVersion = checkout.getVersionId();
+        assertThat(checkout.getVersionCount()).isEqualTo(1);
+        checkout.undo();
+        assertThat(checkout.getVersionId()).isEqualTo(checkoutVersion);
+        assertThat(checkout).hasSize(50);
+
+        persistentArray.setRetentionPolicy(RetentionPolicy.keepLast(2));
+        assertThatExceptionOfType(NoSuchElementException.class)
+                .isThrownBy(() -> persistentArray.checkout(fiftyVersion));
+    }
+
+    @Test
+    @DisplayName("Ветвление истории после undo")
+    void testBranches() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        persistentArray.add(1);
+        persistentArray.add(2);
+        persistentArray.add(3);
+        persistentArray.undo();
+        persistentArray.add(4);
+
+        String forked = persistentArray.getCurrentBranch();
+        assertThat(persistentArray.getBranchNames()).containsExactly("main", forked);
+        assertThat(persistentArray).containsExactly(1, 2, 4);
+        assertThat(persistentArray.getVersionCount()).isEqualTo(5);
+
+        persistentArray.switchBranch("main");
+        assertThat(persistentArray).containsExactly(1, 2);
+        persistentArray.redo();
+        assertThat(persistentArray).containsExactly(1, 2, 3);
+
+        persistentArray.createBranch("experiment");
+        persistentArray.set(0, 10);
+        persistentArray.switchBranch(forked);
+        assertThat(persistentArray).containsExactly(1, 2, 4);
+
+        persistentArray.deleteBranch("experiment");
+        persistentArray.deleteBranch("main");
+        assertThat(persistentArray.getBranchNames()).containsExactly(forked);
+        assertThat(persistentArray.getVersionCount()).isEqualTo(4);
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> persistentArray.deleteBranch(forked));
+    }
+
+    @Test
+    @DisplayName("conj/assoc разделяют историю с исходным массивом")
+    void testConjSharesHistory() {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>(8, 2);
+        for (int i = 0; i < 1000; i++) {
+            persistentArray.add(i);
+        }
+        persistentArray.undo();
+
+        PersistentArray<Integer> conj = persistentArray.conj(-1);
+        PersistentArray<Integer> assoc = conj.assoc(0, -2);
+        assertThat(assoc.getVersionCount()).isEqualTo(1003);
+        assertThat(assoc.get(persistentArray.getVersionId(), 998)).isEqualTo(998);
+
+        assoc.undo();
+        assoc.undo();
+        assoc.undo();
+        assertThat(assoc).hasSize(998);
+        assertThat(persistentArray).hasSize(999);
+        persistentArray.redo();
+        assertThat(persistentArray).hasSize(1000);
+        assertThat(conj).hasSize(1000).endsWith(998, -1);
+    }
+
+    @Test
+    @DisplayName("Память на conj и assoc не зависит от длины истории")
+    void testConjAllocationIndependentOfHistory() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        long shortHistory = conjAllocation(threads, 1_000);
+        long longHistory = conjAllocation(threads, 100_000);
+        // История выросла в 100 раз, память на conj растет только вместе с глубиной деревьев
+        assertThat(longHistory).isLessThan(shortHistory * 3);
+    }
+
+    private static long conjAllocation(ThreadMXBean threads, int versions) {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        for (int i = 0; i < versions; i++) {
+            persistentArray.add(i);
+        }
+        // После undo conj начинает новую ветку
+        persistentArray.undo();
+
+        long thread = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(persistentArray.conj(i).assoc(0, i).getVersionCount()).isEqualTo(versions + 3);
+        }
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    @Test
+    @DisplayName("Запись и чтение снимка с историей")
+    void testSnapshot(@TempDir Path directory) throws IOException {
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        for (int i = 0; i < 10_000; i++) {
+            persistentArray.add(i);
+        }
+        for (int i = 0; i < 100; i++) {
+            persistentArray.set(i * 97, -i);
+        }
+        persistentArray.undo();
+        persistentArray.add(-1);
+        long version = persistentArray.getVersionId() - 50;
+
+        Path file = directory.resolve("array.snapshot");
+        persistentArray.writeSnapshot(file, ElementCodec.INTEGER);
+        // Каждая версия по отдельности заняла бы сотни мегабайт, общие узлы записаны один раз,
+        // по отдельности записаны только хвосты версий
+        assertThat(Files.size(file)).isLessThan(2_000_000);
+
+        PersistentArray<Integer> restored = PersistentArray.readSnapshot(file, ElementCodec.INTEGER);
+        assertThat(restored).containsExactlyElementsOf(persistentArray);
+        assertThat(restored.getVersionCount()).isEqualTo(persistentArray.getVersionCount());
+        assertThat(restored.estimateRetainedBytes()).isEqualTo(persistentArray.estimateRetainedBytes());
+        assertThat(restored.getBranchNames()).isEqualTo(persistentArray.getBranchNames());
+        assertThat(restored.checkout(version)).containsExactlyElementsOf(persistentArray.checkout(version));
+
+        restored.switchBranch("main");
+        restored.redo();
+        assertThat(restored.get(99 * 97)).isEqualTo(-99);
+        assertThat(restored.get(9_999)).isEqualTo(9_999);
+    }
+
+    @Test
+    @DisplayName("Тест на восстановление массива из снимка и журнала операций")
+    void testOperationLog(@TempDir Path directory) throws IOException {
+        Path snapshot = directory.resolve("array.snapshot");
+        Path logFile = directory.resolve("array.log");
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        persistentArray.addAll(List.of(1, 2, 3));
+        persistentArray.writeSnapshot(snapshot, ElementCodec.INTEGER);
+
+        try (OperationLog log = OperationLog.open(logFile, 4, 1)) {
+            persistentArray.attachOperationLog(log, ElementCodec.INTEGER);
+            persistentArray.add(4);
+            persistentArray.set(0, 10);
+            persistentArray.add(1, 20);
+            persistentArray.remove(3);
+            persistentArray.undo();
+            persistentArray.createBranch("feature");
+            persistentArray.switchBranch("feature");
+            persistentArray.pop();
+            PersistentArray.Transient<Integer> transientArray = persistentArray.asTransient();
+            for (int i = 0; i < 100; i++) {
+                transientArray.add(i);
+            }
+            transientArray.set(0, -1);
+            transientArray.persistent();
+            persistentArray.attachOperationLog(null, null);
+        }
+
+        PersistentArray<Integer> restored = PersistentArray.readSnapshot(snapshot, ElementCodec.INTEGER);
+        assertThat(restored.replayOperationLog(logFile, ElementCodec.INTEGER)).isEqualTo(9);
+        assertThat(restored).containsExactlyElementsOf(persistentArray);
+        assertThat(restored.getCurrentBranch()).isEqualTo("feature");
+        assertThat(restored.getVersionCount()).isEqualTo(persistentArray.getVersionCount());
+
+        restored.undo();
+        persistentArray.undo();
+        assertThat(restored).containsExactlyElementsOf(persistentArray);
+
+        // Оборванная при сбое запись отбрасывается при открытии журнала
+        Files.write(logFile, new byte[]{0, 0, 0, 100, 1, 2}, StandardOpenOption.APPEND);
+        long size = Files.size(logFile);
+        try (OperationLog log = OperationLog.open(logFile, 1, 0)) {
+            assertThat(Files.size(logFile)).isEqualTo(size - 6);
+            log.truncate();
+        }
+        assertThat(Files.size(logFile)).isZero();
+    }
+
+    @Test
+    @DisplayName("Тест на повтор транзиентной сессии из журнала операций")
+    void testTransientLogReplay(@TempDir Path directory) throws IOException {
+        Path logFile = directory.resolve("array.log");
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        try (OperationLog log = OperationLog.open(logFile, 1, 0)) {
+            persistentArray.attachOperationLog(log, ElementCodec.INTEGER);
+            persistentArray.add(0);
+            PersistentArray.Transient<Integer> transientArray = persistentArray.asTransient();
+            transientArray.add(2);
+            transientArray.persistent();
+
+            PersistentArray.Transient<Integer> staleTransient = persistentArray.asTransient();
+            persistentArray.add(1);
+            staleTransient.add(3);
+            assertThatExceptionOfType(ConcurrentModificationException.class).isThrownBy(staleTransient::persistent);
+            assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() -> staleTransient.add(4));
+            persistentArray.attachOperationLog(null, null);
+        }
+
+        assertThat(persistentArray).containsExactly(0, 2, 1);
+        PersistentArray<Integer> restored = new PersistentArray<>();
+        assertThat(restored.replayOperationLog(logFile, ElementCodec.INTEGER)).isEqualTo(3);
+        assertThat(restored).containsExactlyElementsOf(persistentArray);
+        assertThat(restored.getVersionCount()).isEqualTo(persistentArray.getVersionCount());
+    }
+
+    @Test
+    @DisplayName("Тест на восстановление версии другого массива")
+    void testRestore(@TempDir Path directory) throws IOException {
+        PersistentArray<Integer> source = PersistentArray.from(IntStream.range(0, 1_000).boxed());
+        PersistentArray<Integer> narrow = new PersistentArray<>(16, 2);
+        for (int i = 0; i < 100; i++) {
+            narrow.add(i);
+        }
+
+        Path logFile = directory.resolve("array.log");
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        try (OperationLog log = OperationLog.open(logFile, 1, 0)) {
+            persistentArray.attachOperationLog(log, ElementCodec.INTEGER);
+            persistentArray.add(-1);
+            persistentArray.restore(new HeadAccess<>(source).head());
+            persistentArray.set(0, -2);
+            assertThatExceptionOfType(IllegalArgumentException.class)
+                    .isThrownBy(() -> persistentArray.restore(new HeadAccess<>(narrow).head()));
+            assertThatExceptionOfType(IllegalArgumentException.class)
+                    .isThrownBy(() -> narrow.restore(new HeadAccess<>(source).head()));
+            persistentArray.attachOperationLog(null, null);
+        }
+
+        assertThat(persistentArray).hasSize(1_000).startsWith(-2, 1, 2);
+        PersistentArray<Integer> restored = new PersistentArray<>();
+        assertThat(restored.replayOperationLog(logFile, ElementCodec.INTEGER)).isEqualTo(3);
+        assertThat(restored).containsExactlyElementsOf(persistentArray);
+        restored.undo();
+        assertThat(restored).containsExactlyElementsOf(source);
+    }
+
+    @Test
+    @DisplayName("Тест на конкурентное изменение массива несколькими потоками")
+    void testConcurrentArray() throws Exception {
+        int writers = 4;
+        int count = 10_000;
+        ConcurrentPersistentArray<Integer> array = new ConcurrentPersistentArray<>();
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int writer = 0; writer < writers; writer++) {
+                int offset = writer * count;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < count; i++) {
+                        array.add(offset + i);
+                    }
+                }));
+            }
+            // Читатель всегда видит версию целиком: размер версии совпадает с количеством элементов
+            Future<?> reader = executor.submit(() -> {
+                while (array.size() < writers * count) {
+                    int size = 0;
+                    for (Integer ignored : array) {
+                        size++;
+                    }
+                    assertThat(size).isLessThanOrEqualTo(writers * count);
+                }
+            });
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(array.size()).isEqualTo(writers * count);
+        PersistentArray<Integer> snapshot = array.toPersistentArray();
+        assertThat(snapshot.stream().sorted().toList()).isEqualTo(IntStream.range(0, writers * count).boxed().toList());
+
+        array.update(current -> current.conj(-1).conj(-2));
+        assertThat(array.get(writers * count + 1)).isEqualTo(-2);
+        array.undo();
+        assertThat(array.size()).isEqualTo(writers * count);
+        array.redo();
+        assertThat(array.size()).isEqualTo(writers * count + 2);
+        assertThat(snapshot).hasSize(writers * count);
+
+        PersistentArray.Snapshot<Integer> view = array.snapshot();
+        array.clear();
+        assertThat(view).hasSize(writers * count + 2).endsWith(-1, -2);
+        assertThatExceptionOfType(UnsupportedOperationException.class).isThrownBy(() -> view.add(1));
+    }
+
+    @Test
+    @DisplayName("Тест на анализ памяти и разделения узлов между версиями")
+    void testAnalyzeMemory() {
+        PersistentArray<Integer> persistentArray = PersistentArray.from(IntStream.range(0, 10_000).boxed());
+        for (int i = 0; i < 100; i++) {
+            persistentArray.set(i * 97, -i);
+        }
+
+        MemoryEstimate.Report report = persistentArray.analyzeMemory();
+        assertThat(report.versions()).hasSize(persistentArray.getVersionCount());
+        assertThat(report.retainedBytes()).isEqualTo(persistentArray.estimateRetainedBytes());
+        assertThat(report.sharingRatio()).isGreaterThan(50);
+        assertThat(report.totalBytes()).isGreaterThan(50 * report.retainedBytes());
+
+        // Изменение элемента дерева из 312 листов копирует корень, внутренний узел и лист,
+        // хвост остается общим, добавляется только объект версии
+        MemoryEstimate.VersionFootprint last = report.versions().get(report.versions().size() - 1);
+        assertThat(last.addedNodes()).isEqualTo(3);
+        assertThat(last.nodes()).isEqualTo(report.versions().get(1).nodes());
+        assertThat(last.bytes()).isEqualTo(MemoryEstimate.of(List.of(new HeadAccess<>(persistentArray).head())));
+        assertThat(report.versions().stream().mapToLong(MemoryEstimate.VersionFootprint::addedBytes).sum())
+                .isEqualTo(report.retainedBytes());
+    }
+
+    @Test
+    @DisplayName("Тест на структурное сравнение версий")
+    void testDiff() {
+        PersistentArray<Integer> persistentArray = PersistentArray.from(IntStream.range(0, 10_000).boxed());
+        long base = persistentArray.getVersionId();
+        persistentArray.set(5, -1);
+        persistentArray.set(5_000, -2);
+        persistentArray.set(5_001, -3);
+        long changed = persistentArray.getVersionId();
+        persistentArray.add(-4);
+        long appended = persistentArray.getVersionId();
+
+        assertThat(persistentArray.diff(base, base)).isEmpty();
+        assertThat(persistentArray.diff(base, changed))
+                .containsExactly(new IndexRange(5, 6), new IndexRange(5_000, 5_002));
+        assertThat(persistentArray.diff(changed, appended)).containsExactly(new IndexRange(10_000, 10_001));
+        assertThat(persistentArray.diff(appended, base))
+                .containsExactly(new IndexRange(5, 6), new IndexRange(5_000, 5_002), new IndexRange(10_000, 10_001));
+
+        // Вставка и удаление сдвигают элементы, поэтому сравнение проверяется полным перебором
+        Random random = new Random(7);
+        List<Long> versions = new ArrayList<>(List.of(base));
+        for (int i = 0; i < 200; i++) {
+            int index = random.nextInt(persistentArray.size());
+            switch (random.nextInt(4)) {
+                case 0 -> persistentArray.set(index, -i);
+                case 1 -> persistentArray.add(index, -i);
+                case 2 -> persistentArray.remove(index);
+                default -> persistentArray.add(index % 3);
+            }
+            versions.add(persistentArray.getVersionId());
+        }
+        for (int i = 0; i < 50; i++) {
+            long first = versions.get(random.nextInt(versions.size()));
+            long second = versions.get(random.nextInt(versions.size()));
+            List<Integer> a = persistentArray.checkout(first).stream().toList();
+            List<Integer> b = persistentArray.checkout(second).stream().toList();
+            List<Integer> expected = IntStream.range(0, Math.max(a.size(), b.size()))
+                    .filter(index -> index >= Math.min(a.size(), b.size()) || !a.get(index).equals(b.get(index)))
+                    .boxed()
+                    .toList();
+            assertThat(persistentArray.diff(first, second)
+                    .flatMap(range -> IntStream.range(range.from(), range.to()).boxed())
+                    .toList())
+                    .isEqualTo(expected);
+        }
+    }
+
+    @Test
+    @DisplayName("Тест на трехстороннее слияние версий")
+    void testMerge() {
+        PersistentArray<Integer> persistentArray = PersistentArray.from(IntStream.range(0, 10_000).boxed());
+        long base = persistentArray.getVersionId();
+        persistentArray.set(5, -5);
+        persistentArray.set(7, -7);
+        persistentArray.add(-100);
+        long left = persistentArray.getVersionId();
+        for (int i = 0; i < 3; i++) {
+            persistentArray.undo();
+        }
+        persistentArray.set(5_000, -5_000);
+        persistentArray.set(7, 70);
+        persistentArray.add(-200);
+        long right = persistentArray.getVersionId();
+
+        List<String> conflicts = new ArrayList<>();
+        persistentArray.merge(base, left, right, (index, baseValue, leftValue, rightValue) -> {
+            conflicts.add(index + ": " + baseValue + " " + leftValue + " " + rightValue);
+            return leftValue + rightValue;
+        });
+
+        assertThat(conflicts).containsExactly("7: 7 -7 70");
+        assertThat(persistentArray).hasSize(10_002).endsWith(-100, -200);
+        assertThat(persistentArray.get(5)).isEqualTo(-5);
+        assertThat(persistentArray.get(7)).isEqualTo(63);
+        assertThat(persistentArray.get(5_000)).isEqualTo(-5_000);
+        assertThat(persistentArray.diff(left, persistentArray.getVersionId()))
+                .containsExactly(new IndexRange(7, 8), new IndexRange(5_000, 5_001), new IndexRange(10_001, 10_002));
+
+        persistentArray.merge(base, base, right, ConflictResolver.preferLeft());
+        assertThat(persistentArray.diff(persistentArray.getVersionId(), right)).isEmpty();
+
+        persistentArray.undo();
+        persistentArray.undo();
+        persistentArray.pop();
+        long popped = persistentArray.getVersionId();
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> persistentArray.merge(right, popped, left, ConflictResolver.preferLeft()));
+    }
+
+    @Test
+    @DisplayName("Тест на повтор слияния версий из журнала операций")
+    void testMergeLogReplay(@TempDir Path directory) throws IOException {
+        Path logFile = directory.resolve("array.log");
+        PersistentArray<Integer> persistentArray = new PersistentArray<>();
+        try (OperationLog log = OperationLog.open(logFile, 1, 0)) {
+            persistentArray.attachOperationLog(log, ElementCodec.INTEGER);
+            persistentArray.addAll(List.of(1, 2, 3));
+            long base = persistentArray.getVersionId();
+            persistentArray.set(0, 10);
+            persistentArray.set(1, 20);
+            long left = persistentArray.getVersionId();
+            persistentArray.undo();
+            persistentArray.undo();
+            persistentArray.set(1, 200);
+            persistentArray.add(4);
+            long right = persistentArray.getVersionId();
+            persistentArray.merge(base, left, right, (index, baseValue, leftValue, rightValue) -> leftValue + rightValue);
+            persistentArray.set(2, 30);
+            persistentArray.undo();
+            persistentArray.attachOperationLog(null, null);
+        }
+
+        assertThat(persistentArray).containsExactly(10, 220, 3, 4);
+        PersistentArray<Integer> restored = new PersistentArray<>();
+        restored.replayOperationLog(logFile, ElementCodec.INTEGER);
+        assertThat(restored).containsExactlyElementsOf(persistentArray);
+        assertThat(restored.getVersionCount()).isEqualTo(persistentArray.getVersionCount());
+        restored.redo();
+        assertThat(restored).containsExactly(10, 220, 30, 4);
+    }
+
+    /**
+     * Массив, который открывает тестам свою текущую версию
+     */
+    private static final class HeadAccess<E> extends PersistentArray<E> {
+        private HeadAccess(PersistentArray<E> other) {
+            super(other);
+        }
+
+        private HeadArray<E> head() {
+            return getCurrentHead();
+        }
+    }
+}
@@ -2,9 +2,22 @@ package ru.nsu.lyutaevdronov;
 
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.nsu.lyutaevdronov.common.ConflictResolver;
+import ru.nsu.lyutaevdronov.common.ElementCodec;
+import ru.nsu.lyutaevdronov.common.OperationLog;
+import ru.nsu.lyutaevdronov.common.RetentionPolicy;
 import ru.nsu.lyutaevdronov.map.PersistentAssociativeArray;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 final class PersistentAssociativeArrayTest {
     @Test
@@ -239,4 +252,217 @@ final class PersistentAssociativeArrayTest {
                 .containsEntry("A", 1)
                 .containsEntry("B", 2);
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Тест на политику хранения версий")
+    void testRetentionPolicy() {
+        PersistentAssociativeArray<String, Integer> persistentMap = new PersistentAssociativeArray<>();
+        persistentMap.setRetentionPolicy(RetentionPolicy.keepLast(3));
+        for (int i = 0; i < 20; i++) {
+            persistentMap.put("key" + i, i);
+        }
+        assertThat(persistentMap.getVersionCount()).isEqualTo(3);
+
+        persistentMap.undo();
+        persistentMap.undo();
+        persistentMap.undo();
+        assertThat(persistentMap)
+                .hasSize(18)
+                .doesNotContainKey("key18");
+
+        persistentMap.redo();
+        assertThat(persistentMap).containsEntry("key18", 18);
+    }
+
+    @Test
+    @DisplayName("Тест на чтение версий по номеру")
+    void testCheckout() {
+        PersistentAssociativeArray<String, Integer> persistentMap = new PersistentAssociativeArray<>();
+        persistentMap.put("A", 1);
+        long version = persistentMap.getVersionId();
+        persistentMap.put("A", 2);
+        persistentMap.put("B", 3);
+
+        assertThat(persistentMap.get(version, "A")).isEqualTo(1);
+        assertThat(persistentMap.get(version, "B")).isNull();
+        assertThat(persistentMap.checkout(version))
+                .hasSize(1)
+                .containsEntry("A", 1);
+        assertThat(persistentMap)
+                .containsEntry("A", 2)
+                .containsEntry("B", 3);
+
+        // Отмена в полученном ассоциативном массиве не переходит к пустой версии
+        PersistentAssociativeArray<String, Integer> checkout = persistentMap.checkout(version);
+        long checkoutVersion = checkout.getVersionId();
+        assertThat(checkout.getVersionCount()).isEqualTo(1);
+        checkout.undo();
+        assertThat(checkout.getVersionId()).isEqualTo(checkoutVersion);
+        assertThat(checkout).containsExactly(Map.entry("A", 1));
+        checkout.put("B", 2);
+        checkout.undo();
+        assertThat(checkout).containsExactly(Map.entry("A", 1));
+    }
+
+    @Test
+    @DisplayName("Запись и чтение снимка с историей")
+    void testSnapshot(@TempDir Path directory) throws IOException {
+        PersistentAssociativeArray<String, Integer> persistentMap = new PersistentAssociativeArray<>();
+        for (int i = 0; i < 100; i++) {
+            persistentMap.put("key" + i, i);
+        }
+        persistentMap.remove("key5");
+        persistentMap.undo();
+
+        Path file = directory.resolve("map.snapshot");
+        persistentMap.writeSnapshot(file, ElementCodec.STRING, ElementCodec.nullable(ElementCodec.INTEGER));
+        PersistentAssociativeArray<String, Integer> restored =
+                PersistentAssociativeArray.readSnapshot(file, ElementCodec.STRING, ElementCodec.nullable(ElementCodec.INTEGER));
+
+        assertThat(restored).isEqualTo(persistentMap);
+        assertThat(restored.getVersionCount()).isEqualTo(persistentMap.getVersionCount());
+        restored.redo();
+        assertThat(restored).hasSize(99).doesNotContainKey("key5");
+        restored.undo();
+        restored.undo();
+        assertThat(restored).hasSize(99).doesNotContainKey("key99");
+    }
+
+    @Test
+    @DisplayName("Тест на неизменяемое представление версии")
+    void testSnapshotView() throws Exception {
+        PersistentAssociativeArray<String, Integer> persistentMap = new PersistentAssociativeArray<>();
+        for (int i = 0; i < 100; i++) {
+            persistentMap.put("key" + i, i);
+        }
+        Map<String, Integer> expected = Map.copyOf(persistentMap);
+
+        PersistentAssociativeArray.Snapshot<String, Integer> snapshot = persistentMap.snapshot();
+        CompletableFuture<Integer> reader = CompletableFuture.supplyAsync(() ->
+                snapshot.values().stream().mapToInt(Integer::intValue).sum());
+        persistentMap.put("key0", -1);
+        persistentMap.remove("key1");
+        persistentMap.clear();
+        persistentMap.undo();
+        persistentMap.undo();
+
+        assertThat(reader.get()).isEqualTo(4950);
+        assertThat(snapshot).isEqualTo(expected).hasSize(100).containsEntry("key0", 0).containsKey("key1");
+        assertThat(snapshot.get("absent")).isNull();
+        assertThatExceptionOfType(UnsupportedOperationException.class).isThrownBy(() -> snapshot.put("key0", 1));
+        assertThatExceptionOfType(UnsupportedOperationException.class)
+                .isThrownBy(() -> snapshot.entrySet().iterator().next().setValue(1));
+        assertThat(persistentMap).containsEntry("key0", -1).containsKey("key1");
+    }
+
+    @Test
+    @DisplayName("Тест на изменения сопоставлений между версиями")
+    void testDiff() {
+        PersistentAssociativeArray<String, Integer> persistentMap = new PersistentAssociativeArray<>();
+        for (int i = 0; i < 100; i++) {
+            persistentMap.put("key" + i, i);
+        }
+        long base = persistentMap.getVersionId();
+        persistentMap.put("key1", -1);
+        persistentMap.put("key2", 2);
+        persistentMap.remove("key3");
+        persistentMap.put("new", 0);
+        long changed = persistentMap.getVersionId();
+
+        assertThat(persistentMap.diff(base, base)).isEmpty();
+        assertThat(persistentMap.diff(base, changed)).containsExactlyInAnyOrder(
+                new PersistentAssociativeArray.Change<>(PersistentAssociativeArray.ChangeType.CHANGED, "key1", 1, -1),
+                new PersistentAssociativeArray.Change<>(PersistentAssociativeArray.ChangeType.REMOVED, "key3", 3, null),
+                new PersistentAssociativeArray.Change<>(PersistentAssociativeArray.ChangeType.ADDED, "new", null, 0));
+        assertThat(persistentMap.diff(changed, base)).containsExactlyInAnyOrder(
+                new PersistentAssociativeArray.Change<>(PersistentAssociativeArray.ChangeType.CHANGED, "key1", -1, 1),
+                new PersistentAssociativeArray.Change<>(PersistentAssociativeArray.ChangeType.ADDED, "key3", null, 3),
+                new PersistentAssociativeArray.Change<>(PersistentAssociativeArray.ChangeType.REMOVED, "new", 0, null));
+    }
+
+    @Test
+    @DisplayName("Тест на трехстороннее слияние версий")
+    void testMerge() {
+        PersistentAssociativeArray<String, Integer> persistentMap = new PersistentAssociativeArray<>();
+        for (int i = 0; i < 100; i++) {
+            persistentMap.put("key" + i, i);
+        }
+        long base = persistentMap.getVersionId();
+        persistentMap.put("key1", -1);
+        persistentMap.remove("key2");
+        persistentMap.put("left", 1);
+        long left = persistentMap.getVersionId();
+        for (int i = 0; i < 3; i++) {
+            persistentMap.undo();
+        }
+        persistentMap.put("key1", -10);
+        persistentMap.put("key3", -3);
+        persistentMap.remove("key2");
+        persistentMap.put("right", 2);
+        long right = persistentMap.getVersionId();
+
+        List<String> conflicts = new ArrayList<>();
+        persistentMap.merge(base, left, right, (key, baseValue, leftValue, rightValue) -> {
+            conflicts.add(key + ": " + baseValue + " " + leftValue + " " + rightValue);
+            return rightValue;
+        });
+
+        assertThat(conflicts).containsExactly("key1: 1 -1 -10");
+        assertThat(persistentMap).hasSize(101)
+                .containsEntry("key1", -10)
+                .containsEntry("key3", -3)
+                .containsEntry("left", 1)
+                .containsEntry("right", 2)
+                .doesNotContainKey("key2");
+        persistentMap.undo();
+        assertThat(persistentMap).containsEntry("right", 2).doesNotContainKey("left");
+
+        // Конфликт удаления и изменения: null от resolver выбирает удаление
+        PersistentAssociativeArray<String, Integer> conflictMap = new PersistentAssociativeArray<>();
+        conflictMap.put("a", 1);
+        conflictMap.put("b", 2);
+        long conflictBase = conflictMap.getVersionId();
+        conflictMap.remove("a");
+        long removed = conflictMap.getVersionId();
+        conflictMap.undo();
+        conflictMap.put("a", 5);
+        long changed = conflictMap.getVersionId();
+
+        conflictMap.merge(conflictBase, removed, changed, ConflictResolver.preferLeft());
+        assertThat(conflictMap).containsOnly(Map.entry("b", 2)).doesNotContainKey("a");
+        conflictMap.merge(conflictBase, removed, changed, ConflictResolver.preferRight());
+        assertThat(conflictMap).containsOnly(Map.entry("a", 5), Map.entry("b", 2));
+        conflictMap.merge(conflictBase, changed, removed, ConflictResolver.preferRight());
+        assertThat(conflictMap).containsOnly(Map.entry("b", 2));
+    }
+
+    @Test
+    @DisplayName("Тест на повтор слияния версий из журнала операций")
+    void testMergeLogReplay(@TempDir Path directory) throws IOException {
+        Path logFile = directory.resolve("map.log");
+        PersistentAssociativeArray<String, Integer> persistentMap = new PersistentAssociativeArray<>();
+        try (OperationLog log = OperationLog.open(logFile, 1, 0)) {
+            persistentMap.attachOperationLog(log, ElementCodec.STRING, ElementCodec.INTEGER);
+            persistentMap.put("a", 1);
+            persistentMap.put("b", 2);
+            long base = persistentMap.getVersionId();
+            persistentMap.put("a", 10);
+            long left = persistentMap.getVersionId();
+            persistentMap.undo();
+            persistentMap.put("a", 100);
+            persistentMap.put("c", 3);
+            long right = persistentMap.getVersionId();
+            persistentMap.merge(base, left, right, (key, baseValue, leftValue, rightValue) -> leftValue + rightValue);
+            persistentMap.remove("b");
+            persistentMap.attachOperationLog(null, null, null);
+        }
+
+        assertThat(persistentMap).containsOnly(Map.entry("a", 110), Map.entry("c", 3));
+        PersistentAssociativeArray<String, Integer> restored = new PersistentAssociativeArray<>();
+        restored.replayOperationLog(logFile, ElementCodec.STRING, ElementCodec.INTEGER);
+        assertThat(restored).isEqualTo(persistentMap);
+        assertThat(restored.getVersionCount()).isEqualTo(persistentMap.getVersionCount());
+        restored.undo();
+        assertThat(restored).containsOnly(Map.entry("a", 110), Map.entry("b", 2), Map.entry("c", 3));
+    }
+}
@@ -0,0 +1,127 @@
+package ru.nsu.lyutaevdronov;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.nsu.lyutaevdronov.array.MappedLongArray;
+import ru.nsu.lyutaevdronov.array.PersistentArray;
+import ru.nsu.lyutaevdronov.array.PersistentDoubleArray;
+import ru.nsu.lyutaevdronov.array.PersistentIntArray;
+import ru.nsu.lyutaevdronov.array.PersistentLongArray;
+import ru.nsu.lyutaevdronov.common.PersistentData;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+final class PersistentPrimitiveArrayTest {
+    @Test
+    @DisplayName("Тест на добавление, изменение и pop для массива int")
+    void testIntArray() {
+        PersistentIntArray array = new PersistentIntArray();
+        for (int i = 0; i < 1000; i++) {
+            array.add(i);
+        }
+
+        assertThat(array.size()).isEqualTo(1000);
+        assertThat(array.getInt(0)).isZero();
+        assertThat(array.getInt(999)).isEqualTo(999);
+
+        assertThat(array.setInt(10, -10)).isEqualTo(10);
+        assertThat(array.setInt(999, -999)).isEqualTo(999);
+        assertThat(array.getInt(10)).isEqualTo(-10);
+
+        array.undo();
+        array.undo();
+        assertThat(array.getInt(10)).isEqualTo(10);
+
+        for (int i = 999; i >= 900; i--) {
+            assertThat(array.popInt()).isEqualTo(i);
+        }
+        assertThat(array.size()).isEqualTo(900);
+        assertThat(array.toIntArray()).hasSize(900).startsWith(0, 1, 2).endsWith(898, 899);
+
+        assertThatExceptionOfType(IndexOutOfBoundsException.class)
+                .isThrownBy(() -> array.getInt(900));
+    }
+
+    @Test
+    @DisplayName("Тест на undo/redo для массивов long и double")
+    void testLongAndDoubleUndoRedo() {
+        PersistentLongArray longs = new PersistentLongArray(32);
+        longs.add(1L);
+        longs.add(2L);
+        longs.add(Long.MAX_VALUE);
+        assertThat(longs).hasToString("[1, 2, " + Long.MAX_VALUE + "]");
+
+        longs.undo();
+        assertThat(longs).hasToString("[1, 2]");
+        longs.redo();
+        assertThat(longs.getLong(2)).isEqualTo(Long.MAX_VALUE);
+        assertThat(longs.getVersionCount()).isEqualTo(4);
+
+        PersistentDoubleArray doubles = new PersistentDoubleArray();
+        doubles.add(0.5);
+        doubles.add(1.5);
+        doubles.setDouble(0, 2.5);
+        doubles.undo();
+        assertThat(doubles.toDoubleArray()).containsExactly(0.5, 1.5);
+        assertThat(doubles.popDouble()).isEqualTo(1.5);
+        assertThat(doubles.popDouble()).isEqualTo(0.5);
+        assertThatExceptionOfType(NoSuchElementException.class)
+                .isThrownBy(doubles::popDouble);
+
+        doubles.undo();
+        doubles.undo();
+        doubles.undo();
+        doubles.undo();
+        assertThat(doubles.isEmpty()).isTrue();
+    }
+
+    @Test
+    @DisplayName("Тест на вложенность массива int в персистентный массив")
+    void testInsertedIntArray() {
+        PersistentArray<PersistentData> persistentArray = new PersistentArray<>();
+        PersistentIntArray ints = new PersistentIntArray();
+        persistentArray.add(ints);
+
+        ints.add(1);
+        ints.add(2);
+        persistentArray.undo();
+        assertThat(ints).hasToString("[1]");
+
+        persistentArray.redo();
+        assertThat(ints).hasToString("[1, 2]");
+    }
+
+    @Test
+    @DisplayName("Тест на массив long с узлами в отображенном файле")
+    void testMappedLongArray(@TempDir Path directory) throws IOException {
+        try (MappedLongArray array = new MappedLongArray(directory.resolve("nodes.bin"), 2)) {
+            for (int i = 0; i < 10_000; i++) {
+                array.add(i);
+            }
+            assertThat(array.getLong(0)).isZero();
+            assertThat(array.getLong(9_999)).isEqualTo(9_999);
+
+            assertThat(array.setLong(1_234, -1)).isEqualTo(1_234);
+            assertThat(array.getLong(1_234)).isEqualTo(-1);
+            array.undo();
+            assertThat(array.getLong(1_234)).isEqualTo(1_234);
+            array.redo();
+            assertThat(array.getLong(1_234)).isEqualTo(-1);
+
+            for (int i = 9_999; i >= 5_000; i--) {
+                assertThat(array.popLong()).isEqualTo(i);
+            }
+            assertThat(array.toLongArray()).hasSize(5_000).startsWith(0, 1, 2).endsWith(4_998, 4_999);
+            assertThat(array.getVersionCount()).isEqualTo(15_002);
+            assertThat(array.getStoreSize()).isPositive();
+            assertThatExceptionOfType(IndexOutOfBoundsException.class)
+                    .isThrownBy(() -> array.getLong(5_000));
+        }
+    }
+}